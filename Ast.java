@@ -0,0 +1,278 @@
+import java.util.*;
+
+// Typed abstract syntax tree built by the parser. The names are resolved
+// to symbol table entries and every expression knows its type, so the
+// lowering (and any optimisation before it) does not need the parser.
+public class Ast {
+    // binary operators, named after the command words they lower to.
+    // AND and OR have no command word, they are lowered to jumps.
+    public static final String
+        ADD = "ADD", SUB = "SUB", MUL = "MUL", DIV = "DIV", RLT = "RLT",
+        AND = "AND", OR = "OR";
+
+    // true if the value of a boolean expression is known to be 0 or 1.
+    // A boolean variable could hold anything if it was never assigned.
+    public static boolean isNormalized(Expression e) {
+        if (e instanceof Constant) {
+            return ((Constant) e).value == 0 || ((Constant) e).value == 1;
+        }
+        if (e instanceof Not) return true;
+        if (e instanceof Binary) {
+            String op = ((Binary) e).op;
+            return op.equals(RLT) || op.equals(AND) || op.equals(OR);
+        }
+        return false;
+    }
+
+    // true if evaluating the expression can not fail or have an effect,
+    // so it can be left out
+    public static boolean isPure(Expression e) {
+        if (e instanceof Constant) return true;
+        if (e instanceof Access) return ((Access) e).isLocal();
+        if (e instanceof Not) return isPure(((Not) e).operand);
+        if (e instanceof Negate) return isPure(((Negate) e).operand);
+        if (e instanceof Binary) {
+            Binary b = (Binary) e;
+            if (b.op.equals(DIV) && !(b.right instanceof Constant
+                                      && ((Constant) b.right).value != 0)) {
+                return false;
+            }
+            return isPure(b.left) && isPure(b.right);
+        }
+        return false;
+    }
+
+    public static abstract class Node {
+        public int line; // source line, for the line table
+
+        public Node(int line) {
+            this.line = line;
+        }
+    }
+
+    /*------------------------------------------------------------------------*
+     * Program structure                                                      *
+     *------------------------------------------------------------------------*/
+
+    public static class Program {
+        public ArrayList<FunctionDecl> functions = new ArrayList<FunctionDecl>();
+        public FunctionDecl main;
+    }
+
+    public static class FunctionDecl extends Node {
+        public SymbolTable.Function fn; // null for main
+        public SymbolTable.Scope scope; // frame_size is read when lowering
+        public ArrayList<Statement> body = new ArrayList<Statement>();
+        public Return result;
+
+        public FunctionDecl(int line, SymbolTable.Function fn,
+                            SymbolTable.Scope scope) {
+            super(line);
+            this.fn = fn;
+            this.scope = scope;
+        }
+
+        public boolean isMain() {
+            return this.fn == null;
+        }
+    }
+
+    /*------------------------------------------------------------------------*
+     * Statements                                                             *
+     *------------------------------------------------------------------------*/
+
+    public static abstract class Statement extends Node {
+        public Statement(int line) {
+            super(line);
+        }
+    }
+
+    public static class If extends Statement {
+        public Expression condition;
+        public Statement then;
+
+        public If(int line, Expression condition, Statement then) {
+            super(line);
+            this.condition = condition;
+            this.then = then;
+        }
+    }
+
+    // do body while (condition);
+    public static class DoWhile extends Statement {
+        public Statement body;
+        public Expression condition;
+
+        public DoWhile(int line, Statement body, Expression condition) {
+            super(line);
+            this.body = body;
+            this.condition = condition;
+        }
+    }
+
+    public static class Print extends Statement {
+        public Expression value;
+
+        public Print(int line, Expression value) {
+            super(line);
+            this.value = value;
+        }
+    }
+
+    public static class Block extends Statement {
+        public ArrayList<Statement> statements;
+
+        public Block(int line, ArrayList<Statement> statements) {
+            super(line);
+            this.statements = statements;
+        }
+    }
+
+    public static class Assign extends Statement {
+        public Access target;
+        public Expression value;
+
+        public Assign(int line, Access target, Expression value) {
+            super(line);
+            this.target = target;
+            this.value = value;
+        }
+    }
+
+    // the return statement ending every function body, main included
+    public static class Return extends Statement {
+        public Expression value;
+
+        public Return(int line, Expression value) {
+            super(line);
+            this.value = value;
+        }
+    }
+
+    /*------------------------------------------------------------------------*
+     * Expressions                                                            *
+     *------------------------------------------------------------------------*/
+
+    public static abstract class Expression extends Node {
+        public int type; // one of the parser's type constants
+
+        public Expression(int line, int type) {
+            super(line);
+            this.type = type;
+        }
+    }
+
+    // integer and boolean literals, booleans are 0 or 1
+    public static class Constant extends Expression {
+        public int value;
+
+        public Constant(int line, int type, int value) {
+            super(line, type);
+            this.value = value;
+        }
+    }
+
+    // a local variable, or an element of the array in a local variable
+    // when index is not null
+    public static class Access extends Expression {
+        public SymbolTable.Variable var;
+        public Expression index;
+
+        public Access(int line, int type, SymbolTable.Variable var,
+                      Expression index) {
+            super(line, type);
+            this.var = var;
+            this.index = index;
+        }
+
+        public boolean isLocal() {
+            return this.index == null;
+        }
+    }
+
+    public static class Length extends Expression {
+        public Access array;
+
+        public Length(int line, int type, Access array) {
+            super(line, type);
+            this.array = array;
+        }
+    }
+
+    public static class Binary extends Expression {
+        public String op;
+        public Expression left, right;
+
+        public Binary(int line, int type, String op, Expression left,
+                      Expression right) {
+            super(line, type);
+            this.op = op;
+            this.left = left;
+            this.right = right;
+        }
+    }
+
+    // boolean negation
+    public static class Not extends Expression {
+        public Expression operand;
+
+        public Not(int line, int type, Expression operand) {
+            super(line, type);
+            this.operand = operand;
+        }
+    }
+
+    // integer negation
+    public static class Negate extends Expression {
+        public Expression operand;
+
+        public Negate(int line, int type, Expression operand) {
+            super(line, type);
+            this.operand = operand;
+        }
+    }
+
+    public static class NewArray extends Expression {
+        public Expression size;
+
+        public NewArray(int line, int type, Expression size) {
+            super(line, type);
+            this.size = size;
+        }
+    }
+
+    public static class Read extends Expression {
+        public Read(int line, int type) {
+            super(line, type);
+        }
+    }
+
+    public static class Call extends Expression {
+        public SymbolTable.Function fn;
+        public ArrayList<Expression> arguments;
+
+        public Call(int line, int type, SymbolTable.Function fn,
+                    ArrayList<Expression> arguments) {
+            super(line, type);
+            this.fn = fn;
+            this.arguments = arguments;
+        }
+    }
+
+    // an inlined call: the statements store the arguments in the locals
+    // of the caller that stand for the parameters and run the body of
+    // the function, and then the value is evaluated
+    public static class Inline extends Expression {
+        public SymbolTable.Function fn; // the inlined function
+        public ArrayList<Statement> body;
+        public Expression value;
+
+        public Inline(int line, int type, SymbolTable.Function fn,
+                      ArrayList<Statement> body, Expression value) {
+            super(line, type);
+            this.fn = fn;
+            this.body = body;
+            this.value = value;
+        }
+    }
+}
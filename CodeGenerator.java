@@ -21,6 +21,12 @@ public class CodeGenerator {
         this.slx.emit(CommandWord.valueOf(word), arg1, arg2);
     }
 
+    // Instructions emitted from now on get this source line in the line
+    // table, the lowering sets it from the AST nodes
+    public void setLine(int line) {
+        this.slx.setSourceLine(line);
+    }
+
     public int newLabel() {
         return this.label_counter++;
     }
@@ -1,13 +1,41 @@
 import fi.tkk.cs.tkkcc.SlxCompiler;
 import fi.tkk.cs.tkkcc.slx.*;
 import java.io.*;
+import java.nio.file.Paths;
 
 public class Compiler implements SlxCompiler {
     private Scanner scanner;
     private Parser parser;
+    // null if the emitted code is not optimised
+    private PeepholeOptimizer peephole = new PeepholeOptimizer();
+    // the statements and functions removed from the last program
+    private DeadCodeEliminator eliminator;
+    // the largest function inlined, 0 for no inlining
+    private int inline_budget = Inliner.DEFAULT_BUDGET;
+    private Inliner inliner;
 
     public Compiler() {}
 
+    public void setPeepholeOptimizer(PeepholeOptimizer optimizer) {
+        this.peephole = optimizer;
+    }
+
+    public PeepholeOptimizer getPeepholeOptimizer() {
+        return this.peephole;
+    }
+
+    public DeadCodeEliminator getDeadCodeEliminator() {
+        return this.eliminator;
+    }
+
+    public void setInlineBudget(int budget) {
+        this.inline_budget = budget;
+    }
+
+    public Inliner getInliner() {
+        return this.inliner;
+    }
+
     @Override
     public boolean isErrors() {
         return this.parser.errors.count > 0;
@@ -20,17 +48,63 @@ public class Compiler implements SlxCompiler {
         this.parser.st = new SymbolTable(this.parser);
         this.parser.gen = new CodeGenerator();
         this.parser.Parse();
+        // the AST of an erroneous program may be incomplete
+        if (!this.isErrors()) {
+            new ConstantFolder().fold(this.parser.program);
+            this.eliminator = new DeadCodeEliminator();
+            this.eliminator.eliminate(this.parser.program);
+            this.inliner = new Inliner(this.parser.st, this.inline_budget);
+            this.inliner.inline(this.parser.program);
+            // the constant arguments of the inlined calls may fold, and
+            // the inlined functions may not be called any more
+            new ConstantFolder().fold(this.parser.program);
+            this.eliminator.eliminate(this.parser.program);
+            new Lowering(this.parser.gen).lower(this.parser.program);
+            if (this.peephole != null) {
+                return this.peephole.optimize(parser.gen.getProgram());
+            }
+        }
         return parser.gen.getProgram();
     }
 
     public static void main(String[] args) {
-        String input_file_path = args[0];
+        // -b writes the program in the binary object format,
+        // -n leaves out the peephole optimisation,
+        // -i <budget> sets the size of the largest function inlined
+        boolean binary = false;
         Compiler compiler = new Compiler();
+        for (int i=0; i<args.length - 1; i++) {
+            if (args[i].equals("-b")) binary = true;
+            if (args[i].equals("-n")) compiler.setPeepholeOptimizer(null);
+            if (args[i].equals("-i")) {
+                compiler.setInlineBudget(Integer.parseInt(args[++i]));
+            }
+        }
+        String input_file_path = args[args.length - 1];
         SlxProgram program = compiler.compile(input_file_path);
         String output;
 
         if (program != null && !compiler.isErrors()) {
             System.out.println("No errors found, writing the program to .slx file");
+            String dead_code = compiler.eliminator.removed + " statements";
+            for (SymbolTable.Function fn : compiler.eliminator.removed_functions) {
+                dead_code += ", function " + fn.name;
+            }
+            System.out.println("Dead code removed: " + dead_code);
+            System.out.println("Calls inlined: " + compiler.inliner.inlined);
+            if (compiler.peephole != null) {
+                System.out.println("Peephole rules applied: " +
+                                   compiler.peephole.getHitCounts());
+            }
+
+            if (binary) {
+                try {
+                    SlxObjectFile.write(program, Paths.get("out.slx"));
+                } catch (IOException ex) {
+                    System.out.println("writer error");
+                }
+                return;
+            }
 
             output = program.toString();
             try {
@@ -0,0 +1,265 @@
+import java.util.*;
+
+// Evaluates the constant subexpressions of the AST at compile time and
+// applies the algebraic identities of int and boolean. The results are
+// exactly what the SLX machine would compute: int arithmetic wraps
+// around at 32 bits, a division by zero is left for the runtime to
+// report, and a subexpression is only dropped when evaluating it could
+// have no effect (no call, read, allocation, array access or division
+// that could fail).
+public class ConstantFolder {
+    private static final int // types, as in the parser
+        INTEGER=1;
+
+    public int folded; // number of nodes replaced
+
+    public void fold(Ast.Program program) {
+        for (Ast.FunctionDecl function : program.functions) {
+            this.foldFunction(function);
+        }
+        this.foldFunction(program.main);
+    }
+
+    private void foldFunction(Ast.FunctionDecl function) {
+        for (Ast.Statement statement : function.body) {
+            this.foldStatement(statement);
+        }
+        function.result.value = this.foldExpression(function.result.value);
+    }
+
+    private void foldStatement(Ast.Statement statement) {
+        if (statement instanceof Ast.If) {
+            Ast.If s = (Ast.If) statement;
+            s.condition = this.foldExpression(s.condition);
+            this.foldStatement(s.then);
+        } else if (statement instanceof Ast.DoWhile) {
+            Ast.DoWhile s = (Ast.DoWhile) statement;
+            this.foldStatement(s.body);
+            s.condition = this.foldExpression(s.condition);
+        } else if (statement instanceof Ast.Print) {
+            Ast.Print s = (Ast.Print) statement;
+            s.value = this.foldExpression(s.value);
+        } else if (statement instanceof Ast.Block) {
+            for (Ast.Statement inner : ((Ast.Block) statement).statements) {
+                this.foldStatement(inner);
+            }
+        } else if (statement instanceof Ast.Assign) {
+            Ast.Assign s = (Ast.Assign) statement;
+            this.foldAccess(s.target);
+            s.value = this.foldExpression(s.value);
+        }
+    }
+
+    private void foldAccess(Ast.Access access) {
+        if (!access.isLocal()) {
+            access.index = this.foldExpression(access.index);
+        }
+    }
+
+    // returns the folded expression, which may be the same node
+    private Ast.Expression foldExpression(Ast.Expression expression) {
+        if (expression instanceof Ast.Access) {
+            this.foldAccess((Ast.Access) expression);
+        } else if (expression instanceof Ast.Length) {
+            this.foldAccess(((Ast.Length) expression).array);
+        } else if (expression instanceof Ast.Binary) {
+            Ast.Binary e = (Ast.Binary) expression;
+            e.left = this.foldExpression(e.left);
+            e.right = this.foldExpression(e.right);
+            return this.foldBinary(e);
+        } else if (expression instanceof Ast.Not) {
+            Ast.Not e = (Ast.Not) expression;
+            e.operand = this.foldExpression(e.operand);
+            return this.foldNot(e);
+        } else if (expression instanceof Ast.Negate) {
+            Ast.Negate e = (Ast.Negate) expression;
+            e.operand = this.foldExpression(e.operand);
+            return this.foldNegate(e);
+        } else if (expression instanceof Ast.NewArray) {
+            Ast.NewArray e = (Ast.NewArray) expression;
+            e.size = this.foldExpression(e.size);
+        } else if (expression instanceof Ast.Call) {
+            ArrayList<Ast.Expression> arguments = ((Ast.Call) expression).arguments;
+            for (int i=0; i<arguments.size(); i++) {
+                arguments.set(i, this.foldExpression(arguments.get(i)));
+            }
+        } else if (expression instanceof Ast.Inline) {
+            Ast.Inline e = (Ast.Inline) expression;
+            for (Ast.Statement statement : e.body) {
+                this.foldStatement(statement);
+            }
+            e.value = this.foldExpression(e.value);
+        }
+        return expression;
+    }
+
+    private Ast.Expression foldNot(Ast.Not e) {
+        // NOT pushes 0 for 1 and 1 for anything else
+        if (isConstant(e.operand)) {
+            return this.constant(e, value(e.operand) == 1 ? 0 : 1);
+        }
+        // !!b is b only if b is 0 or 1
+        if (e.operand instanceof Ast.Not
+            && Ast.isNormalized(((Ast.Not) e.operand).operand)) {
+            this.folded++;
+            return ((Ast.Not) e.operand).operand;
+        }
+        return e;
+    }
+
+    private Ast.Expression foldNegate(Ast.Negate e) {
+        if (isConstant(e.operand)) {
+            return this.constant(e, -value(e.operand));
+        }
+        // - - x is x for every int, Integer.MIN_VALUE included
+        if (e.operand instanceof Ast.Negate) {
+            this.folded++;
+            return ((Ast.Negate) e.operand).operand;
+        }
+        return e;
+    }
+
+    private Ast.Expression foldBinary(Ast.Binary e) {
+        // constants go to the right of + and *, the order does not matter
+        // as a constant has no effect
+        if ((e.op.equals(Ast.ADD) || e.op.equals(Ast.MUL))
+            && isConstant(e.left) && !isConstant(e.right)) {
+            Ast.Expression swapped = e.left;
+            e.left = e.right;
+            e.right = swapped;
+        }
+        Ast.Expression left = e.left, right = e.right;
+
+        if (isConstant(left) && isConstant(right)) {
+            int l = value(left), r = value(right);
+            if (e.op.equals(Ast.ADD)) return this.constant(e, l + r);
+            if (e.op.equals(Ast.SUB)) return this.constant(e, l - r);
+            if (e.op.equals(Ast.MUL)) return this.constant(e, l * r);
+            if (e.op.equals(Ast.DIV) && r != 0) return this.constant(e, l / r);
+            if (e.op.equals(Ast.RLT)) return this.constant(e, l < r ? 1 : 0);
+            if (e.op.equals(Ast.AND)) {
+                return this.constant(e, l == 1 && r == 1 ? 1 : 0);
+            }
+            if (e.op.equals(Ast.OR)) {
+                return this.constant(e, l == 1 || r == 1 ? 1 : 0);
+            }
+            return e;
+        }
+
+        if (e.op.equals(Ast.ADD)) {
+            if (isConstant(right, 0)) return this.replace(left);
+            return this.reassociate(e);
+        }
+        if (e.op.equals(Ast.SUB)) {
+            if (isConstant(right, 0)) return this.replace(left);
+            if (isConstant(left, 0)) {
+                return this.foldNegate(new Ast.Negate(e.line, INTEGER, right));
+            }
+            if (Ast.isPure(left) && sameValue(left, right)) return this.constant(e, 0);
+            return this.reassociate(e);
+        }
+        if (e.op.equals(Ast.MUL)) {
+            if (isConstant(right, 1)) return this.replace(left);
+            if (isConstant(right, -1)) {
+                return this.foldNegate(new Ast.Negate(e.line, INTEGER, left));
+            }
+            if (isConstant(right, 0) && Ast.isPure(left)) return this.constant(e, 0);
+            return this.reassociate(e);
+        }
+        if (e.op.equals(Ast.DIV)) {
+            if (isConstant(right, 1)) return this.replace(left);
+            if (isConstant(right, -1)) {
+                return this.foldNegate(new Ast.Negate(e.line, INTEGER, left));
+            }
+            return e;
+        }
+        if (e.op.equals(Ast.RLT)) {
+            if (Ast.isPure(left) && sameValue(left, right)) return this.constant(e, 0);
+            return e;
+        }
+        if (e.op.equals(Ast.AND) || e.op.equals(Ast.OR)) {
+            // the value that decides: 0 for && and 1 for ||
+            int decides = e.op.equals(Ast.AND) ? 0 : 1;
+            // true && b and b && true are b only if b is 0 or 1,
+            // and the same for false || b and b || false
+            if (isConstant(left, 1 - decides) && Ast.isNormalized(right)) {
+                return this.replace(right);
+            }
+            if (isConstant(right, 1 - decides) && Ast.isNormalized(left)) {
+                return this.replace(left);
+            }
+            // the right side is not evaluated when the left one decides,
+            // but the left side always is
+            if (isConstant(left) && (value(left) == 1) == (decides == 1)) {
+                return this.constant(e, decides);
+            }
+            if (isConstant(right) && (value(right) == 1) == (decides == 1)
+                && Ast.isPure(left)) {
+                return this.constant(e, decides);
+            }
+            return e;
+        }
+        return e;
+    }
+
+    // (x + c1) + c2 is x + (c1 + c2), and the same for - and *, as int
+    // addition and multiplication stay associative when they wrap around
+    private Ast.Expression reassociate(Ast.Binary e) {
+        if (!isConstant(e.right) || !(e.left instanceof Ast.Binary)) return e;
+        Ast.Binary inner = (Ast.Binary) e.left;
+        if (!isConstant(inner.right)) return e;
+        int c1 = value(inner.right), c2 = value(e.right);
+
+        if (e.op.equals(Ast.MUL) && inner.op.equals(Ast.MUL)) {
+            e.left = inner.left;
+            e.right = this.constant(e.right, c1 * c2);
+            return this.foldBinary(e);
+        }
+        if (isAdditive(e.op) && isAdditive(inner.op)) {
+            // x - c is x + (-c), even for c = Integer.MIN_VALUE
+            int sum = (inner.op.equals(Ast.ADD) ? c1 : -c1)
+                + (e.op.equals(Ast.ADD) ? c2 : -c2);
+            e.left = inner.left;
+            e.op = Ast.ADD;
+            e.right = this.constant(e.right, sum);
+            return this.foldBinary(e);
+        }
+        return e;
+    }
+
+    private static boolean isAdditive(String op) {
+        return op.equals(Ast.ADD) || op.equals(Ast.SUB);
+    }
+
+    private Ast.Expression replace(Ast.Expression expression) {
+        this.folded++;
+        return expression;
+    }
+
+    private Ast.Expression constant(Ast.Expression replaced, int value) {
+        this.folded++;
+        return new Ast.Constant(replaced.line, replaced.type, value);
+    }
+
+    private static boolean isConstant(Ast.Expression e) {
+        return e instanceof Ast.Constant;
+    }
+
+    private static boolean isConstant(Ast.Expression e, int value) {
+        return isConstant(e) && value(e) == value;
+    }
+
+    private static int value(Ast.Expression e) {
+        return ((Ast.Constant) e).value;
+    }
+
+    // true if two pure expressions always have the same value
+    private static boolean sameValue(Ast.Expression a, Ast.Expression b) {
+        if (isConstant(a) && isConstant(b)) return value(a) == value(b);
+        if (a instanceof Ast.Access && b instanceof Ast.Access) {
+            return ((Ast.Access) a).isLocal() && ((Ast.Access) b).isLocal()
+                && ((Ast.Access) a).var == ((Ast.Access) b).var;
+        }
+        return false;
+    }
+}
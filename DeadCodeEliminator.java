@@ -0,0 +1,300 @@
+import java.util.*;
+
+// Removes the code of the AST that can never run or whose result is
+// never used: the functions main can not call, the if statements with a
+// constant or an empty branch, the statements after a loop that never
+// ends, and the stores to locals that are not read before the next
+// store. Like the ConstantFolder, it only drops an expression when
+// evaluating it could have no effect.
+public class DeadCodeEliminator {
+    public int removed; // statements removed
+    public ArrayList<SymbolTable.Function> removed_functions =
+        new ArrayList<SymbolTable.Function>();
+
+    // the stores found dead by the last liveness pass
+    private HashSet<Ast.Statement> dead_stores = new HashSet<Ast.Statement>();
+
+    public void eliminate(Ast.Program program) {
+        for (Ast.FunctionDecl function : program.functions) {
+            this.eliminateFunction(function);
+        }
+        this.eliminateFunction(program.main);
+        this.removeUncalledFunctions(program);
+    }
+
+    private void eliminateFunction(Ast.FunctionDecl function) {
+        // removing a statement can leave a store without readers, and
+        // removing a store can leave an if statement empty
+        int before;
+        do {
+            before = this.removed;
+            HashSet<SymbolTable.Variable> live =
+                new HashSet<SymbolTable.Variable>();
+            scan(function.result.value, live, null);
+            this.dead_stores.clear();
+            this.liveBefore(function.body, live, true);
+            function.body = this.simplifyList(function.body);
+        } while (this.removed != before);
+    }
+
+    /*------------------------------------------------------------------------*
+     * Unreachable statements                                                 *
+     *------------------------------------------------------------------------*/
+
+    private ArrayList<Ast.Statement> simplifyList(
+        ArrayList<Ast.Statement> statements) {
+        ArrayList<Ast.Statement> result = new ArrayList<Ast.Statement>();
+        boolean reachable = true;
+        for (Ast.Statement statement : statements) {
+            Ast.Statement simple = reachable ? this.simplify(statement) : null;
+            if (simple == null) {
+                this.removed++;
+                continue;
+            }
+            result.add(simple);
+            reachable = completes(simple);
+        }
+        return result;
+    }
+
+    // returns the statement without its dead parts, null if nothing is left
+    private Ast.Statement simplify(Ast.Statement statement) {
+        if (statement instanceof Ast.If) {
+            Ast.If s = (Ast.If) statement;
+            s.then = this.simplifyBranch(s.then);
+            // the if statement takes anything but 0 as true
+            if (s.condition instanceof Ast.Constant) {
+                if (((Ast.Constant) s.condition).value == 0) return null;
+                return isEmpty(s.then) ? null : s.then;
+            }
+            if (isEmpty(s.then) && Ast.isPure(s.condition)) return null;
+            return s;
+        } else if (statement instanceof Ast.DoWhile) {
+            Ast.DoWhile s = (Ast.DoWhile) statement;
+            s.body = this.simplifyBranch(s.body);
+            // the loop is only repeated for 1, so the body runs once
+            if (s.condition instanceof Ast.Constant
+                && ((Ast.Constant) s.condition).value != 1) {
+                return isEmpty(s.body) ? null : s.body;
+            }
+            return s;
+        } else if (statement instanceof Ast.Block) {
+            Ast.Block s = (Ast.Block) statement;
+            s.statements = this.simplifyList(s.statements);
+            return s.statements.isEmpty() ? null : s;
+        } else if (statement instanceof Ast.Assign) {
+            return this.dead_stores.contains(statement) ? null : statement;
+        }
+        return statement;
+    }
+
+    // the branch of an if or a loop can not be null, so an empty branch
+    // becomes an empty block
+    private Ast.Statement simplifyBranch(Ast.Statement branch) {
+        Ast.Statement simple = this.simplify(branch);
+        if (simple != null) return simple;
+        if (!isEmpty(branch)) this.removed++;
+        return new Ast.Block(branch.line, new ArrayList<Ast.Statement>());
+    }
+
+    private static boolean isEmpty(Ast.Statement statement) {
+        return statement instanceof Ast.Block
+            && ((Ast.Block) statement).statements.isEmpty();
+    }
+
+    // false if the statement never lets the execution continue after it,
+    // which only a loop repeated forever does
+    private static boolean completes(Ast.Statement statement) {
+        if (statement instanceof Ast.DoWhile) {
+            Ast.DoWhile s = (Ast.DoWhile) statement;
+            boolean forever = s.condition instanceof Ast.Constant
+                && ((Ast.Constant) s.condition).value == 1;
+            return !forever && completes(s.body);
+        }
+        if (statement instanceof Ast.Block) {
+            ArrayList<Ast.Statement> inner = ((Ast.Block) statement).statements;
+            return inner.isEmpty() || completes(inner.get(inner.size() - 1));
+        }
+        return true;
+    }
+
+    /*------------------------------------------------------------------------*
+     * Dead stores                                                            *
+     *------------------------------------------------------------------------*/
+
+    // returns the locals live before the statements, given the ones live
+    // after them. With remove the stores to locals that are not live
+    // after them are put in dead_stores, if their value is pure.
+    private HashSet<SymbolTable.Variable> liveBefore(
+        ArrayList<Ast.Statement> statements,
+        HashSet<SymbolTable.Variable> live, boolean remove) {
+        for (int i=statements.size() - 1; i>=0; i--) {
+            live = this.liveBefore(statements.get(i), live, remove);
+        }
+        return live;
+    }
+
+    private HashSet<SymbolTable.Variable> liveBefore(
+        Ast.Statement statement, HashSet<SymbolTable.Variable> live,
+        boolean remove) {
+        HashSet<SymbolTable.Variable> before =
+            new HashSet<SymbolTable.Variable>(live);
+        if (statement instanceof Ast.If) {
+            Ast.If s = (Ast.If) statement;
+            // the branch may be skipped, so what is live after it stays live
+            before.addAll(this.liveBefore(s.then, live, remove));
+            scan(s.condition, before, null);
+        } else if (statement instanceof Ast.DoWhile) {
+            Ast.DoWhile s = (Ast.DoWhile) statement;
+            // the locals live at the start of the body, up to a fixed point
+            HashSet<SymbolTable.Variable> start =
+                new HashSet<SymbolTable.Variable>();
+            while (true) {
+                HashSet<SymbolTable.Variable> next = this.liveBefore(
+                    s.body, liveAfterBody(s, live, start), false);
+                if (next.equals(start)) break;
+                start = next;
+            }
+            if (remove) {
+                this.liveBefore(s.body, liveAfterBody(s, live, start), true);
+            }
+            before = start;
+        } else if (statement instanceof Ast.Print) {
+            scan(((Ast.Print) statement).value, before, null);
+        } else if (statement instanceof Ast.Block) {
+            ArrayList<Ast.Statement> inner = ((Ast.Block) statement).statements;
+            before = this.liveBefore(inner, live, remove);
+        } else if (statement instanceof Ast.Assign) {
+            Ast.Assign s = (Ast.Assign) statement;
+            if (s.target.isLocal()) {
+                if (remove && !live.contains(s.target.var)
+                    && Ast.isPure(s.value)) {
+                    this.dead_stores.add(s);
+                    return before;
+                }
+                before.remove(s.target.var);
+            } else {
+                // the array may be shared, its elements are always live
+                scan(s.target, before, null);
+            }
+            scan(s.value, before, null);
+        }
+        return before;
+    }
+
+    // after the body the condition is evaluated and the loop either
+    // starts again or ends
+    private static HashSet<SymbolTable.Variable> liveAfterBody(
+        Ast.DoWhile loop, HashSet<SymbolTable.Variable> live,
+        HashSet<SymbolTable.Variable> start) {
+        HashSet<SymbolTable.Variable> after =
+            new HashSet<SymbolTable.Variable>(live);
+        after.addAll(start);
+        scan(loop.condition, after, null);
+        return after;
+    }
+
+    /*------------------------------------------------------------------------*
+     * Uncalled functions                                                     *
+     *------------------------------------------------------------------------*/
+
+    private void removeUncalledFunctions(Ast.Program program) {
+        HashMap<SymbolTable.Function, Ast.FunctionDecl> declarations =
+            new HashMap<SymbolTable.Function, Ast.FunctionDecl>();
+        for (Ast.FunctionDecl function : program.functions) {
+            declarations.put(function.fn, function);
+        }
+
+        // the functions reachable from main over the call graph
+        HashSet<SymbolTable.Function> called =
+            new HashSet<SymbolTable.Function>();
+        ArrayList<Ast.FunctionDecl> work = new ArrayList<Ast.FunctionDecl>();
+        work.add(program.main);
+        while (!work.isEmpty()) {
+            Ast.FunctionDecl function = work.remove(work.size() - 1);
+            HashSet<SymbolTable.Function> calls =
+                new HashSet<SymbolTable.Function>();
+            for (Ast.Statement statement : function.body) {
+                scan(statement, null, calls);
+            }
+            scan(function.result.value, null, calls);
+            for (SymbolTable.Function fn : calls) {
+                if (called.add(fn)) work.add(declarations.get(fn));
+            }
+        }
+
+        Iterator<Ast.FunctionDecl> functions = program.functions.iterator();
+        while (functions.hasNext()) {
+            Ast.FunctionDecl function = functions.next();
+            if (!called.contains(function.fn)) {
+                functions.remove();
+                this.removed_functions.add(function.fn);
+            }
+        }
+    }
+
+    /*------------------------------------------------------------------------*
+     * Helpers                                                                *
+     *------------------------------------------------------------------------*/
+
+    // adds the locals a statement reads and the functions it calls,
+    // either set may be null
+    private static void scan(Ast.Statement statement,
+                             HashSet<SymbolTable.Variable> reads,
+                             HashSet<SymbolTable.Function> calls) {
+        if (statement instanceof Ast.If) {
+            scan(((Ast.If) statement).condition, reads, calls);
+            scan(((Ast.If) statement).then, reads, calls);
+        } else if (statement instanceof Ast.DoWhile) {
+            scan(((Ast.DoWhile) statement).body, reads, calls);
+            scan(((Ast.DoWhile) statement).condition, reads, calls);
+        } else if (statement instanceof Ast.Print) {
+            scan(((Ast.Print) statement).value, reads, calls);
+        } else if (statement instanceof Ast.Block) {
+            for (Ast.Statement inner : ((Ast.Block) statement).statements) {
+                scan(inner, reads, calls);
+            }
+        } else if (statement instanceof Ast.Assign) {
+            Ast.Assign s = (Ast.Assign) statement;
+            if (!s.target.isLocal()) scan(s.target, reads, calls);
+            scan(s.value, reads, calls);
+        }
+    }
+
+    // adds the locals an expression reads and the functions it calls,
+    // either set may be null
+    private static void scan(Ast.Expression expression,
+                             HashSet<SymbolTable.Variable> reads,
+                             HashSet<SymbolTable.Function> calls) {
+        if (expression instanceof Ast.Access) {
+            Ast.Access e = (Ast.Access) expression;
+            if (reads != null) reads.add(e.var);
+            if (!e.isLocal()) scan(e.index, reads, calls);
+        } else if (expression instanceof Ast.Length) {
+            scan(((Ast.Length) expression).array, reads, calls);
+        } else if (expression instanceof Ast.Binary) {
+            scan(((Ast.Binary) expression).left, reads, calls);
+            scan(((Ast.Binary) expression).right, reads, calls);
+        } else if (expression instanceof Ast.Not) {
+            scan(((Ast.Not) expression).operand, reads, calls);
+        } else if (expression instanceof Ast.Negate) {
+            scan(((Ast.Negate) expression).operand, reads, calls);
+        } else if (expression instanceof Ast.NewArray) {
+            scan(((Ast.NewArray) expression).size, reads, calls);
+        } else if (expression instanceof Ast.Call) {
+            Ast.Call e = (Ast.Call) expression;
+            if (calls != null) calls.add(e.fn);
+            for (Ast.Expression argument : e.arguments) {
+                scan(argument, reads, calls);
+            }
+        } else if (expression instanceof Ast.Inline) {
+            // its stores only go to the locals of the inlined function,
+            // which are not used outside it and are left as they are
+            Ast.Inline e = (Ast.Inline) expression;
+            for (Ast.Statement statement : e.body) {
+                scan(statement, reads, calls);
+            }
+            scan(e.value, reads, calls);
+        }
+    }
+}
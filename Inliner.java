@@ -0,0 +1,439 @@
+import java.util.*;
+
+// Inlines the calls of small functions that are not recursive. The
+// parameters and locals of the function get new slots at the end of the
+// caller's frame, the arguments are stored in them, and the call is
+// replaced by a copy of the body and of the returned expression, which
+// saves the SFR, SBR and RET of the call. The budget is the largest
+// function inlined, counted in tree nodes. A function that creates an
+// array is never inlined: the RET of its call frees the array, and an
+// inlined copy in a loop would use more heap on every round.
+public class Inliner {
+    public static final int DEFAULT_BUDGET = 20;
+
+    public ArrayList<String> inlined = new ArrayList<String>(); // the calls
+
+    private SymbolTable st;
+    private int budget;
+    private HashMap<SymbolTable.Function, Ast.FunctionDecl> declarations =
+        new HashMap<SymbolTable.Function, Ast.FunctionDecl>();
+    private HashSet<SymbolTable.Function> recursive =
+        new HashSet<SymbolTable.Function>();
+    private Ast.FunctionDecl current_function;
+    // the call being inlined: the first slot of the callee's frame in
+    // the caller's frame, the slots of the callee's locals, and the
+    // arguments used in place of their parameters
+    private int base;
+    private HashMap<SymbolTable.Variable, SymbolTable.Variable> moved;
+    private HashMap<SymbolTable.Variable, Ast.Expression> substituted;
+
+    public Inliner(SymbolTable st, int budget) {
+        this.st = st;
+        this.budget = budget;
+    }
+
+    public void inline(Ast.Program program) {
+        HashMap<SymbolTable.Function, HashSet<SymbolTable.Function>> calls =
+            new HashMap<SymbolTable.Function, HashSet<SymbolTable.Function>>();
+        for (Ast.FunctionDecl function : program.functions) {
+            this.declarations.put(function.fn, function);
+            HashSet<SymbolTable.Function> called =
+                new HashSet<SymbolTable.Function>();
+            for (Ast.Statement statement : function.body) {
+                this.inlineStatement(statement, called);
+            }
+            this.inlineExpression(function.result.value, called);
+            calls.put(function.fn, called);
+        }
+        for (SymbolTable.Function fn : calls.keySet()) {
+            if (reaches(calls, fn, fn, new HashSet<SymbolTable.Function>())) {
+                this.recursive.add(fn);
+            }
+        }
+
+        // a function is declared before its callers, so the calls in it
+        // are inlined before it is copied
+        for (Ast.FunctionDecl function : program.functions) {
+            this.inlineFunction(function);
+        }
+        this.inlineFunction(program.main);
+    }
+
+    // true if from can call to, directly or through other functions
+    private static boolean reaches(
+        HashMap<SymbolTable.Function, HashSet<SymbolTable.Function>> calls,
+        SymbolTable.Function from, SymbolTable.Function to,
+        HashSet<SymbolTable.Function> visited) {
+        for (SymbolTable.Function callee : calls.get(from)) {
+            if (callee == to) return true;
+            if (visited.add(callee) && reaches(calls, callee, to, visited)) {
+                return true;
+            }
+        }
+        return false;
+    }
+
+    private void inlineFunction(Ast.FunctionDecl function) {
+        this.current_function = function;
+        for (Ast.Statement statement : function.body) {
+            this.inlineStatement(statement, null);
+        }
+        function.result.value = this.inlineExpression(function.result.value, null);
+    }
+
+    /*------------------------------------------------------------------------*
+     * Finding the calls                                                      *
+     *------------------------------------------------------------------------*/
+
+    // With called, only collects the called functions. Without it,
+    // inlines the calls that fit in the budget.
+    private void inlineStatement(Ast.Statement statement,
+                                 HashSet<SymbolTable.Function> called) {
+        if (statement instanceof Ast.If) {
+            Ast.If s = (Ast.If) statement;
+            s.condition = this.inlineExpression(s.condition, called);
+            this.inlineStatement(s.then, called);
+        } else if (statement instanceof Ast.DoWhile) {
+            Ast.DoWhile s = (Ast.DoWhile) statement;
+            this.inlineStatement(s.body, called);
+            s.condition = this.inlineExpression(s.condition, called);
+        } else if (statement instanceof Ast.Print) {
+            Ast.Print s = (Ast.Print) statement;
+            s.value = this.inlineExpression(s.value, called);
+        } else if (statement instanceof Ast.Block) {
+            for (Ast.Statement inner : ((Ast.Block) statement).statements) {
+                this.inlineStatement(inner, called);
+            }
+        } else if (statement instanceof Ast.Assign) {
+            Ast.Assign s = (Ast.Assign) statement;
+            this.inlineExpression(s.target, called);
+            s.value = this.inlineExpression(s.value, called);
+        }
+    }
+
+    // returns the expression with its calls inlined
+    private Ast.Expression inlineExpression(Ast.Expression expression,
+                                            HashSet<SymbolTable.Function> called) {
+        if (expression instanceof Ast.Access) {
+            Ast.Access e = (Ast.Access) expression;
+            if (!e.isLocal()) e.index = this.inlineExpression(e.index, called);
+        } else if (expression instanceof Ast.Length) {
+            this.inlineExpression(((Ast.Length) expression).array, called);
+        } else if (expression instanceof Ast.Binary) {
+            Ast.Binary e = (Ast.Binary) expression;
+            e.left = this.inlineExpression(e.left, called);
+            e.right = this.inlineExpression(e.right, called);
+        } else if (expression instanceof Ast.Not) {
+            Ast.Not e = (Ast.Not) expression;
+            e.operand = this.inlineExpression(e.operand, called);
+        } else if (expression instanceof Ast.Negate) {
+            Ast.Negate e = (Ast.Negate) expression;
+            e.operand = this.inlineExpression(e.operand, called);
+        } else if (expression instanceof Ast.NewArray) {
+            Ast.NewArray e = (Ast.NewArray) expression;
+            e.size = this.inlineExpression(e.size, called);
+        } else if (expression instanceof Ast.Call) {
+            Ast.Call e = (Ast.Call) expression;
+            // the arguments first, so that the slots of a call inlined in
+            // an argument are not shared with the call around it
+            for (int i=0; i<e.arguments.size(); i++) {
+                Ast.Expression argument = e.arguments.get(i);
+                e.arguments.set(i, this.inlineExpression(argument, called));
+            }
+            if (called != null) {
+                called.add(e.fn);
+            } else if (!this.recursive.contains(e.fn)
+                       && !allocates(this.declarations.get(e.fn))
+                       && size(this.declarations.get(e.fn)) <= this.budget) {
+                return this.inlineCall(e);
+            }
+        }
+        return expression;
+    }
+
+    /*------------------------------------------------------------------------*
+     * Inlining a call                                                        *
+     *------------------------------------------------------------------------*/
+
+    private Ast.Expression inlineCall(Ast.Call call) {
+        Ast.FunctionDecl callee = this.declarations.get(call.fn);
+        // the frame of the callee goes after the one of the caller
+        this.base = this.current_function.scope.frame_size;
+        this.current_function.scope.frame_size += callee.scope.frame_size;
+        this.moved = new HashMap<SymbolTable.Variable, SymbolTable.Variable>();
+        this.substituted = new HashMap<SymbolTable.Variable, Ast.Expression>();
+
+        ArrayList<Ast.Statement> body = new ArrayList<Ast.Statement>();
+        for (int i=0; i<call.arguments.size(); i++) {
+            SymbolTable.Variable parameter = call.fn.parameters.get(i);
+            Ast.Expression argument = call.arguments.get(i);
+            // a constant or a local of the caller can be read in place of
+            // the parameter, as the inlined code can not change the
+            // caller's locals
+            if ((argument instanceof Ast.Constant
+                 || (argument instanceof Ast.Access
+                     && ((Ast.Access) argument).isLocal()))
+                && !isAssigned(callee.body, parameter)) {
+                this.substituted.put(parameter, argument);
+                continue;
+            }
+            SymbolTable.Variable slot = this.move(parameter);
+            Ast.Access target = new Ast.Access(call.line, slot.type, slot, null);
+            body.add(new Ast.Assign(call.line, target, argument));
+        }
+        for (Ast.Statement statement : callee.body) {
+            body.add(this.copy(statement));
+        }
+        Ast.Expression value = this.copy(callee.result.value);
+
+        String caller = this.current_function.isMain()
+            ? "main" : this.current_function.fn.name;
+        this.inlined.add(call.fn.name + " into " + caller +
+                         " at line " + call.line);
+        // with all the arguments substituted, a function that only
+        // returns an expression needs no statements
+        if (body.isEmpty()) return value;
+        return new Ast.Inline(call.line, call.type, call.fn, body, value);
+    }
+
+    // the local of the caller that stands for a local of the callee
+    private SymbolTable.Variable move(SymbolTable.Variable var) {
+        SymbolTable.Variable copy = this.moved.get(var);
+        if (copy == null) {
+            copy = this.st.new Variable(var.name, var.type);
+            copy.adr = this.base + var.adr;
+            copy.level = var.level;
+            this.moved.put(var, copy);
+        }
+        return copy;
+    }
+
+    private Ast.Statement copy(Ast.Statement statement) {
+        if (statement instanceof Ast.If) {
+            Ast.If s = (Ast.If) statement;
+            return new Ast.If(s.line, this.copy(s.condition),
+                              this.copy(s.then));
+        } else if (statement instanceof Ast.DoWhile) {
+            Ast.DoWhile s = (Ast.DoWhile) statement;
+            return new Ast.DoWhile(s.line, this.copy(s.body),
+                                   this.copy(s.condition));
+        } else if (statement instanceof Ast.Print) {
+            Ast.Print s = (Ast.Print) statement;
+            return new Ast.Print(s.line, this.copy(s.value));
+        } else if (statement instanceof Ast.Block) {
+            ArrayList<Ast.Statement> statements = new ArrayList<Ast.Statement>();
+            for (Ast.Statement inner : ((Ast.Block) statement).statements) {
+                statements.add(this.copy(inner));
+            }
+            return new Ast.Block(statement.line, statements);
+        } else if (statement instanceof Ast.Assign) {
+            Ast.Assign s = (Ast.Assign) statement;
+            return new Ast.Assign(s.line, (Ast.Access) this.copy(s.target),
+                                  this.copy(s.value));
+        }
+        throw new IllegalArgumentException("unknown statement " + statement);
+    }
+
+    private Ast.Expression copy(Ast.Expression expression) {
+        int line = expression.line, type = expression.type;
+        if (expression instanceof Ast.Constant) {
+            return new Ast.Constant(line, type, ((Ast.Constant) expression).value);
+        } else if (expression instanceof Ast.Access) {
+            Ast.Access e = (Ast.Access) expression;
+            Ast.Expression index = e.isLocal() ? null : this.copy(e.index);
+            Ast.Expression argument = this.substituted.get(e.var);
+            if (argument instanceof Ast.Constant) {
+                int value = ((Ast.Constant) argument).value;
+                return new Ast.Constant(line, type, value);
+            }
+            if (argument != null) {
+                // the argument is already a variable of the caller
+                SymbolTable.Variable var = ((Ast.Access) argument).var;
+                return new Ast.Access(line, type, var, index);
+            }
+            return new Ast.Access(line, type, this.move(e.var), index);
+        } else if (expression instanceof Ast.Length) {
+            Ast.Access array = ((Ast.Length) expression).array;
+            return new Ast.Length(line, type, (Ast.Access) this.copy(array));
+        } else if (expression instanceof Ast.Binary) {
+            Ast.Binary e = (Ast.Binary) expression;
+            return new Ast.Binary(line, type, e.op, this.copy(e.left),
+                                  this.copy(e.right));
+        } else if (expression instanceof Ast.Not) {
+            Ast.Expression operand = ((Ast.Not) expression).operand;
+            return new Ast.Not(line, type, this.copy(operand));
+        } else if (expression instanceof Ast.Negate) {
+            Ast.Expression operand = ((Ast.Negate) expression).operand;
+            return new Ast.Negate(line, type, this.copy(operand));
+        } else if (expression instanceof Ast.NewArray) {
+            Ast.Expression size = ((Ast.NewArray) expression).size;
+            return new Ast.NewArray(line, type, this.copy(size));
+        } else if (expression instanceof Ast.Read) {
+            return new Ast.Read(line, type);
+        } else if (expression instanceof Ast.Call) {
+            Ast.Call e = (Ast.Call) expression;
+            ArrayList<Ast.Expression> arguments = new ArrayList<Ast.Expression>();
+            for (Ast.Expression argument : e.arguments) {
+                arguments.add(this.copy(argument));
+            }
+            return new Ast.Call(line, type, e.fn, arguments);
+        } else if (expression instanceof Ast.Inline) {
+            // a call inlined in the callee, its slots are in the callee's frame
+            Ast.Inline e = (Ast.Inline) expression;
+            ArrayList<Ast.Statement> body = new ArrayList<Ast.Statement>();
+            for (Ast.Statement statement : e.body) {
+                body.add(this.copy(statement));
+            }
+            return new Ast.Inline(line, type, e.fn, body, this.copy(e.value));
+        }
+        throw new IllegalArgumentException("unknown expression " + expression);
+    }
+
+    // true if the statements store to the local
+    private static boolean isAssigned(ArrayList<Ast.Statement> statements,
+                                      SymbolTable.Variable var) {
+        for (Ast.Statement statement : statements) {
+            if (isAssigned(statement, var)) return true;
+        }
+        return false;
+    }
+
+    private static boolean isAssigned(Ast.Statement statement,
+                                      SymbolTable.Variable var) {
+        if (statement instanceof Ast.If) {
+            return isAssigned(((Ast.If) statement).then, var);
+        } else if (statement instanceof Ast.DoWhile) {
+            return isAssigned(((Ast.DoWhile) statement).body, var);
+        } else if (statement instanceof Ast.Block) {
+            return isAssigned(((Ast.Block) statement).statements, var);
+        } else if (statement instanceof Ast.Assign) {
+            Ast.Access target = ((Ast.Assign) statement).target;
+            return target.isLocal() && target.var == var;
+        }
+        return false;
+    }
+
+    // true if the body or the result of a function creates an array,
+    // also in the calls already inlined in it
+    private static boolean allocates(Ast.FunctionDecl function) {
+        for (Ast.Statement statement : function.body) {
+            if (allocates(statement)) return true;
+        }
+        return allocates(function.result.value);
+    }
+
+    private static boolean allocates(Ast.Statement statement) {
+        if (statement instanceof Ast.If) {
+            Ast.If s = (Ast.If) statement;
+            return allocates(s.condition) || allocates(s.then);
+        } else if (statement instanceof Ast.DoWhile) {
+            Ast.DoWhile s = (Ast.DoWhile) statement;
+            return allocates(s.body) || allocates(s.condition);
+        } else if (statement instanceof Ast.Print) {
+            return allocates(((Ast.Print) statement).value);
+        } else if (statement instanceof Ast.Block) {
+            for (Ast.Statement inner : ((Ast.Block) statement).statements) {
+                if (allocates(inner)) return true;
+            }
+        } else if (statement instanceof Ast.Assign) {
+            Ast.Assign s = (Ast.Assign) statement;
+            return allocates(s.target) || allocates(s.value);
+        }
+        return false;
+    }
+
+    // a call that is not inlined frees its arrays itself
+    private static boolean allocates(Ast.Expression expression) {
+        if (expression instanceof Ast.Access) {
+            Ast.Access e = (Ast.Access) expression;
+            return !e.isLocal() && allocates(e.index);
+        } else if (expression instanceof Ast.Binary) {
+            Ast.Binary e = (Ast.Binary) expression;
+            return allocates(e.left) || allocates(e.right);
+        } else if (expression instanceof Ast.Not) {
+            return allocates(((Ast.Not) expression).operand);
+        } else if (expression instanceof Ast.Negate) {
+            return allocates(((Ast.Negate) expression).operand);
+        } else if (expression instanceof Ast.NewArray) {
+            return true;
+        } else if (expression instanceof Ast.Call) {
+            for (Ast.Expression argument : ((Ast.Call) expression).arguments) {
+                if (allocates(argument)) return true;
+            }
+        } else if (expression instanceof Ast.Inline) {
+            Ast.Inline e = (Ast.Inline) expression;
+            for (Ast.Statement statement : e.body) {
+                if (allocates(statement)) return true;
+            }
+            return allocates(e.value);
+        }
+        return false;
+    }
+
+    /*------------------------------------------------------------------------*
+     * Size                                                                   *
+     *------------------------------------------------------------------------*/
+
+    // the number of tree nodes in the body and the result of a function
+    private static int size(Ast.FunctionDecl function) {
+        int size = size(function.result.value);
+        for (Ast.Statement statement : function.body) {
+            size += size(statement);
+        }
+        return size;
+    }
+
+    private static int size(Ast.Statement statement) {
+        if (statement instanceof Ast.If) {
+            Ast.If s = (Ast.If) statement;
+            return 1 + size(s.condition) + size(s.then);
+        } else if (statement instanceof Ast.DoWhile) {
+            Ast.DoWhile s = (Ast.DoWhile) statement;
+            return 1 + size(s.body) + size(s.condition);
+        } else if (statement instanceof Ast.Print) {
+            return 1 + size(((Ast.Print) statement).value);
+        } else if (statement instanceof Ast.Block) {
+            int size = 0;
+            for (Ast.Statement inner : ((Ast.Block) statement).statements) {
+                size += size(inner);
+            }
+            return size;
+        } else if (statement instanceof Ast.Assign) {
+            Ast.Assign s = (Ast.Assign) statement;
+            return 1 + size(s.target) + size(s.value);
+        }
+        return 1;
+    }
+
+    private static int size(Ast.Expression expression) {
+        if (expression instanceof Ast.Access) {
+            Ast.Access e = (Ast.Access) expression;
+            return e.isLocal() ? 1 : 1 + size(e.index);
+        } else if (expression instanceof Ast.Length) {
+            return 1 + size(((Ast.Length) expression).array);
+        } else if (expression instanceof Ast.Binary) {
+            Ast.Binary e = (Ast.Binary) expression;
+            return 1 + size(e.left) + size(e.right);
+        } else if (expression instanceof Ast.Not) {
+            return 1 + size(((Ast.Not) expression).operand);
+        } else if (expression instanceof Ast.Negate) {
+            return 1 + size(((Ast.Negate) expression).operand);
+        } else if (expression instanceof Ast.NewArray) {
+            return 1 + size(((Ast.NewArray) expression).size);
+        } else if (expression instanceof Ast.Call) {
+            int size = 1;
+            for (Ast.Expression argument : ((Ast.Call) expression).arguments) {
+                size += size(argument);
+            }
+            return size;
+        } else if (expression instanceof Ast.Inline) {
+            Ast.Inline e = (Ast.Inline) expression;
+            int size = size(e.value);
+            for (Ast.Statement statement : e.body) {
+                size += size(statement);
+            }
+            return size;
+        }
+        return 1;
+    }
+}
@@ -0,0 +1,235 @@
+import java.util.*;
+
+// Lowers the typed AST to SLX through the code generator. The code is
+// the same the parser used to emit directly from its semantic actions,
+// except for && and ||, which jump over their right operand when the
+// left one already decides the value.
+public class Lowering {
+    private CodeGenerator gen;
+    private Ast.FunctionDecl current_function;
+
+    private static final int MAIN_LABEL = -1;
+
+    public Lowering(CodeGenerator gen) {
+        this.gen = gen;
+    }
+
+    public void lower(Ast.Program program) {
+        this.gen.setLine(0);
+        this.gen.emit("JMP", MAIN_LABEL);
+        for (Ast.FunctionDecl function : program.functions) {
+            this.lowerFunction(function);
+        }
+        this.lowerFunction(program.main);
+        this.gen.emit("HLT");
+    }
+
+    private void lowerFunction(Ast.FunctionDecl function) {
+        this.current_function = function;
+        this.gen.setLine(function.line);
+        this.gen.emit("LAB", function.isMain() ? MAIN_LABEL : function.fn.label);
+        for (Ast.Statement statement : function.body) {
+            this.lowerStatement(statement);
+        }
+        this.lowerExpression(function.result.value);
+        // main leaves its value on the stack and falls through to HLT
+        if (!function.isMain()) {
+            this.gen.setLine(function.result.line);
+            this.gen.emit("RET");
+        }
+    }
+
+    /*------------------------------------------------------------------------*
+     * Statements                                                             *
+     *------------------------------------------------------------------------*/
+
+    private void lowerStatement(Ast.Statement statement) {
+        if (statement instanceof Ast.If) {
+            Ast.If s = (Ast.If) statement;
+            int if_end = this.gen.newLabel();
+            if (isJumpCondition(s.condition)) {
+                this.lowerJump(s.condition, false, if_end);
+            } else {
+                // a plain value is tested with JZE, so anything but 0 is true
+                this.lowerExpression(s.condition);
+                this.gen.setLine(s.line);
+                this.gen.emit("JZE", if_end);
+            }
+            this.lowerStatement(s.then);
+            this.gen.emit("LAB", if_end);
+        } else if (statement instanceof Ast.DoWhile) {
+            Ast.DoWhile s = (Ast.DoWhile) statement;
+            int while_start = this.gen.newLabel();
+            this.gen.setLine(s.line);
+            this.gen.emit("LAB", while_start);
+            this.lowerStatement(s.body);
+            this.lowerJump(s.condition, true, while_start);
+        } else if (statement instanceof Ast.Print) {
+            Ast.Print s = (Ast.Print) statement;
+            this.lowerExpression(s.value);
+            this.gen.setLine(s.line);
+            this.gen.emit("WRI");
+        } else if (statement instanceof Ast.Block) {
+            for (Ast.Statement inner : ((Ast.Block) statement).statements) {
+                this.lowerStatement(inner);
+            }
+        } else if (statement instanceof Ast.Assign) {
+            Ast.Assign s = (Ast.Assign) statement;
+            this.lowerAddress(s.target);
+            this.lowerExpression(s.value);
+            this.gen.setLine(s.line);
+            this.gen.emit(s.target.isLocal() ? "STL" : "STM");
+        } else {
+            throw new IllegalArgumentException("unknown statement " + statement);
+        }
+    }
+
+    /*------------------------------------------------------------------------*
+     * Conditions                                                             *
+     *------------------------------------------------------------------------*/
+
+    // true for the conditions that lowerJump compiles to more than one jump
+    private static boolean isJumpCondition(Ast.Expression condition) {
+        if (condition instanceof Ast.Not) return true;
+        if (!(condition instanceof Ast.Binary)) return false;
+        String op = ((Ast.Binary) condition).op;
+        return op.equals(Ast.AND) || op.equals(Ast.OR);
+    }
+
+    // jumps to label when the boolean condition is jump_if and falls
+    // through otherwise, without pushing the value of && and ||. As for
+    // NOT, only 1 is true.
+    private void lowerJump(Ast.Expression condition, boolean jump_if,
+                           int label) {
+        if (condition instanceof Ast.Not) {
+            this.lowerJump(((Ast.Not) condition).operand, !jump_if, label);
+            return;
+        }
+        if (isJumpCondition(condition)) {
+            Ast.Binary e = (Ast.Binary) condition;
+            boolean is_and = e.op.equals(Ast.AND);
+            if (jump_if != is_and) {
+                // a false left side of && (a true one of ||) decides,
+                // and so does the right side
+                this.lowerJump(e.left, jump_if, label);
+                this.lowerJump(e.right, jump_if, label);
+            } else {
+                // the left side can only decide the other way, so the
+                // right side is skipped
+                int skip = this.gen.newLabel();
+                this.lowerJump(e.left, !jump_if, skip);
+                this.lowerJump(e.right, jump_if, label);
+                this.gen.emit("LAB", skip);
+            }
+            return;
+        }
+        this.lowerExpression(condition);
+        this.gen.setLine(condition.line);
+        if (jump_if) {
+            // we don't have jump if command word,
+            // so need to negate and use jump if not
+            this.gen.emit("NOT");
+        } else if (!Ast.isNormalized(condition)) {
+            this.gen.emit("ENT", 1);
+            this.gen.emit("REQ");
+        }
+        this.gen.emit("JZE", label);
+    }
+
+    /*------------------------------------------------------------------------*
+     * Expressions                                                            *
+     *------------------------------------------------------------------------*/
+
+    private void lowerExpression(Ast.Expression expression) {
+        if (expression instanceof Ast.Constant) {
+            this.gen.setLine(expression.line);
+            this.gen.emit("ENT", ((Ast.Constant) expression).value);
+        } else if (expression instanceof Ast.Access) {
+            Ast.Access e = (Ast.Access) expression;
+            this.lowerAddress(e);
+            this.gen.setLine(e.line);
+            this.gen.emit(e.isLocal() ? "LDL" : "LDM");
+        } else if (expression instanceof Ast.Length) {
+            Ast.Length e = (Ast.Length) expression;
+            // the array pointer is in the frame, the length is at the pointer
+            this.lowerAddress(e.array);
+            this.gen.setLine(e.line);
+            this.gen.emit("LDL");
+            this.gen.emit("LDM");
+        } else if (expression instanceof Ast.Binary) {
+            this.lowerBinary((Ast.Binary) expression);
+        } else if (expression instanceof Ast.Not) {
+            this.lowerExpression(((Ast.Not) expression).operand);
+            this.gen.setLine(expression.line);
+            this.gen.emit("NOT");
+        } else if (expression instanceof Ast.Negate) {
+            this.lowerExpression(((Ast.Negate) expression).operand);
+            this.gen.setLine(expression.line);
+            this.gen.emit("UMN");
+        } else if (expression instanceof Ast.NewArray) {
+            this.lowerExpression(((Ast.NewArray) expression).size);
+            this.gen.setLine(expression.line);
+            this.gen.emit("ALC");
+        } else if (expression instanceof Ast.Read) {
+            this.gen.setLine(expression.line);
+            this.gen.emit("REA");
+        } else if (expression instanceof Ast.Call) {
+            Ast.Call e = (Ast.Call) expression;
+            for (Ast.Expression argument : e.arguments) {
+                this.lowerExpression(argument);
+            }
+            this.gen.setLine(e.line);
+            this.gen.emit("SFR", this.current_function.scope.frame_size);
+            this.gen.emit("SBR", e.fn.label, e.arguments.size());
+        } else if (expression instanceof Ast.Inline) {
+            // the statements leave the stack as they found it
+            Ast.Inline e = (Ast.Inline) expression;
+            for (Ast.Statement statement : e.body) {
+                this.lowerStatement(statement);
+            }
+            this.lowerExpression(e.value);
+        } else {
+            throw new IllegalArgumentException("unknown expression " + expression);
+        }
+    }
+
+    private void lowerBinary(Ast.Binary e) {
+        if (isJumpCondition(e)) {
+            // the value is 0 for && (1 for ||) if the left side decides,
+            // else the right side normalised to 0/1
+            boolean is_and = e.op.equals(Ast.AND);
+            int decided = this.gen.newLabel();
+            int end = this.gen.newLabel();
+            this.lowerJump(e.left, !is_and, decided);
+            this.lowerExpression(e.right);
+            this.gen.setLine(e.line);
+            if (!Ast.isNormalized(e.right)) {
+                this.gen.emit("ENT", 1);
+                this.gen.emit("REQ");
+            }
+            this.gen.emit("JMP", end);
+            this.gen.emit("LAB", decided);
+            this.gen.emit("ENT", is_and ? 0 : 1);
+            this.gen.emit("LAB", end);
+            return;
+        }
+        this.lowerExpression(e.left);
+        this.lowerExpression(e.right);
+        this.gen.setLine(e.line);
+        this.gen.emit(e.op);
+    }
+
+    // pushes the frame offset of a local, or the memory address of an
+    // array element
+    private void lowerAddress(Ast.Access access) {
+        this.gen.setLine(access.line);
+        this.gen.emit("ENT", access.var.adr);
+        if (access.isLocal()) return;
+        this.gen.emit("LDL");
+        this.lowerExpression(access.index);
+        this.gen.setLine(access.line);
+        this.gen.emit("ENT", 1);
+        this.gen.emit("ADD");
+        this.gen.emit("ADD");
+    }
+}
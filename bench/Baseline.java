@@ -0,0 +1,158 @@
+package bench;
+
+import java.io.IOException;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.Paths;
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Locale;
+import java.util.Map;
+import java.util.regex.Matcher;
+import java.util.regex.Pattern;
+import org.openjdk.jmh.infra.BenchmarkParams;
+import org.openjdk.jmh.results.Result;
+import org.openjdk.jmh.results.RunResult;
+import org.openjdk.jmh.runner.Runner;
+import org.openjdk.jmh.runner.RunnerException;
+import org.openjdk.jmh.runner.options.CommandLineOptionException;
+import org.openjdk.jmh.runner.options.CommandLineOptions;
+
+/**
+ * Records the baseline of the {@link SlxBenchmark} results.
+ *
+ * The benchmarks are run with the JMH options given after the name of
+ * the baseline file, and the primary result of each one, its score and
+ * error, is written to the file, one benchmark per line. The auxiliary
+ * counters, the profiler results and the raw samples are left out: they
+ * are in the JMH output of the run, and the baseline only has to be
+ * compared against. The results of the benchmarks that were run replace
+ * their lines in an existing baseline and the other lines are kept, so
+ * that a change can re-record only the benchmarks it affects, e.g. with
+ * <code>-p mode=SWITCH</code>.
+ */
+public final class Baseline {
+    /** A field of a baseline line: a string or a number */
+    private static final Pattern FIELD =
+        Pattern.compile("\"(\\w+)\": (\"([^\"]*)\"|[^,}]+)");
+
+    /**
+     * Not instantiable.
+     */
+    private Baseline() {
+        super();
+    }
+
+    /**
+     * Run the benchmarks and update the baseline.
+     *
+     * @param args the baseline file and the JMH options
+     * @throws CommandLineOptionException if the options are invalid
+     * @throws RunnerException if the benchmarks fail
+     * @throws IOException if the baseline can not be read or written
+     */
+    public static void main(final String[] args)
+        throws CommandLineOptionException, RunnerException, IOException {
+        if (args.length == 0) {
+            throw new IllegalArgumentException
+                ("Usage: Baseline <baseline file> [JMH options]");
+        }
+        final Path file = Paths.get(args[0]);
+        final String[] options = new String[args.length - 1];
+        System.arraycopy(args, 1, options, 0, options.length);
+
+        final Map<String, String> lines = Baseline.read(file);
+        final Collection<RunResult> results =
+            new Runner(new CommandLineOptions(options)).run();
+        for (RunResult result : results) {
+            final BenchmarkParams params = result.getParams();
+            final Result primary = result.getPrimaryResult();
+            final String benchmark = params.getBenchmark()
+                .substring(params.getBenchmark().lastIndexOf('.') + 1);
+            final String line = String.format
+                (Locale.ROOT, "{\"benchmark\": \"%s\", \"program\": \"%s\", "
+                 + "\"mode\": \"%s\", \"score\": %s, \"error\": %s, "
+                 + "\"unit\": \"%s\", \"samples\": %d}",
+                 benchmark, params.getParam("program"),
+                 params.getParam("mode"), Baseline.number(primary.getScore()),
+                 Baseline.number(primary.getScoreError()),
+                 primary.getScoreUnit(), primary.getSampleCount());
+            lines.put(Baseline.key(line), line);
+        }
+        Baseline.write(file, lines);
+    }
+
+    /**
+     * Read the lines of an existing baseline.
+     *
+     * @param file the baseline
+     * @return the lines by their benchmark and parameters, in file order
+     * @throws IOException if the file can not be read
+     */
+    private static Map<String, String> read(final Path file)
+        throws IOException {
+        final Map<String, String> lines = new LinkedHashMap<String, String>();
+        if (!Files.isRegularFile(file)) {
+            return lines;
+        }
+        for (String line : Files.readAllLines(file, StandardCharsets.UTF_8)) {
+            line = line.trim();
+            if (line.endsWith(",")) {
+                line = line.substring(0, line.length() - 1);
+            }
+            if (line.startsWith("{")) {
+                lines.put(Baseline.key(line), line);
+            }
+        }
+        return lines;
+    }
+
+    /**
+     * Write the baseline as a JSON array.
+     *
+     * @param file the baseline
+     * @param lines the lines of the results
+     * @throws IOException if the file can not be written
+     */
+    private static void write(final Path file, final Map<String, String> lines)
+        throws IOException {
+        final List<String> out = new ArrayList<String>();
+        out.add("[");
+        int left = lines.size();
+        for (String line : lines.values()) {
+            out.add("  " + line + (--left > 0 ? "," : ""));
+        }
+        out.add("]");
+        Files.write(file, out, StandardCharsets.UTF_8);
+    }
+
+    /**
+     * Get the benchmark and parameters a line is the result of.
+     *
+     * @param line the line
+     * @return the key of the line
+     */
+    private static String key(final String line) {
+        final Map<String, String> fields = new LinkedHashMap<String, String>();
+        final Matcher matcher = FIELD.matcher(line);
+        while (matcher.find()) {
+            fields.put(matcher.group(1), matcher.group(3));
+        }
+        return fields.get("benchmark") + " " + fields.get("program") + " "
+            + fields.get("mode");
+    }
+
+    /**
+     * Format a result for JSON, which has no NaN.
+     *
+     * @param value the value
+     * @return the value with three decimals, or null if it is not a number
+     */
+    private static String number(final double value) {
+        return Double.isNaN(value) || Double.isInfinite(value)
+            ? "null" : String.format(Locale.ROOT, "%.3f", value);
+    }
+}
@@ -0,0 +1,231 @@
+package bench;
+
+import fi.tkk.cs.tkkcc.SlxCompiler;
+import fi.tkk.cs.tkkcc.slx.ExecutionMode;
+import fi.tkk.cs.tkkcc.slx.Interpreter;
+import fi.tkk.cs.tkkcc.slx.SlxProgram;
+import java.io.IOException;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.Paths;
+import java.util.List;
+import java.util.concurrent.TimeUnit;
+import java.util.logging.Logger;
+import org.openjdk.jmh.annotations.AuxCounters;
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Level;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Warmup;
+
+/**
+ * JMH benchmarks of the SLX interpreter.
+ *
+ * Each benchmark compiles a test program once per trial and then runs
+ * it with a new interpreter per invocation, the way the test runner
+ * does: {@link #fromFile} loads the text of the program with
+ * <code>new Interpreter(String)</code>, {@link #fromProgram} starts
+ * from the compiled program with
+ * <code>new Interpreter(SlxProgram, String)</code>. The programs are
+ * the tests that stress calls, arrays and loops, and scaled up
+ * variants of them in bench/programs.
+ *
+ * Besides the time per run, the benchmarks count the VM instructions
+ * executed as an auxiliary counter, reported in the unit of the primary
+ * result: instructions per time unit with <code>-bm thrpt</code>, time
+ * per instruction in the default average time mode. {@link #coldStart}
+ * times single runs from the first one on, which shows the warm-up of
+ * the engines. The allocation rate is measured with the gc profiler,
+ * as the Makefile does.
+ *
+ * The run time of an iteration varies by tens of percent on a shared
+ * machine, and the compiled code of the engines differs from one JVM to
+ * the next, so the defaults average 10 iterations in each of 5 forks.
+ * That keeps the error of the steady state results within about 10%
+ * of the score, which the baseline needs to be compared against. The
+ * single runs of {@link #coldStart} stay far noisier. For a quick look
+ * fewer iterations are enough, e.g. <code>-f 1 -i 3</code>.
+ *
+ * The programs are looked up relative to the directory given with the
+ * system property slx.root, the current directory by default. JMH does
+ * not accept benchmarks in the default package, where the compiler is,
+ * so the compiler is loaded by name through {@link SlxCompiler}.
+ */
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.MICROSECONDS)
+@Warmup(iterations = 5, time = 1)
+@Measurement(iterations = 10, time = 1)
+@Fork(value = 5, jvmArgsAppend = {"-Xms1g", "-Xmx1g"})
+@State(Scope.Benchmark)
+public class SlxBenchmark {
+    /** Step limit high enough for the scaled up programs */
+    private static final int STEP_LIMIT = Integer.MAX_VALUE / 2;
+    /** Name of the compiler class, which is in the default package */
+    private static final String COMPILER_CLASS = "Compiler";
+    /** Directories searched for the programs, in order */
+    private static final String[] PROGRAM_DIRS = {"hard/tests",
+                                                  "bench/programs"};
+    /** The programs print, but read nothing */
+    private static final int[] NO_INPUT = new int[0];
+
+    /** Name of the test program, without the .tst suffix */
+    @Param({"fib-rec", "sort", "while", "whileInner", "fib-rec-large",
+            "sort-large", "while-large"})
+    public String program;
+
+    /** Execution mode of the interpreter */
+    @Param({"SWITCH", "CLOSURE", "BYTECODE", "REGISTER"})
+    public ExecutionMode mode;
+
+    /** The compiled program */
+    private SlxProgram compiled;
+    /** The compiled program as an .slx text file */
+    private String slxFile;
+    /** Number of instructions one run executes */
+    private long steps;
+
+    /**
+     * Instructions executed during an iteration.
+     */
+    @State(Scope.Thread)
+    @AuxCounters(AuxCounters.Type.OPERATIONS)
+    public static class Instructions {
+        /** The count, read by JMH */
+        public long instructions;
+
+        /**
+         * Start counting from zero.
+         */
+        @Setup(Level.Iteration)
+        public void reset() {
+            this.instructions = 0;
+        }
+    }
+
+    /**
+     * Compile the program and count the instructions it executes.
+     *
+     * @throws IOException if the program can not be read or the .slx
+     *         file written
+     */
+    @Setup(Level.Trial)
+    public void compile() throws IOException {
+        Logger.getLogger(Interpreter.class.getName())
+            .setLevel(java.util.logging.Level.WARNING);
+        final Path source = SlxBenchmark.find(this.program + ".tst");
+        final SlxCompiler compiler = SlxBenchmark.newCompiler();
+        this.compiled = compiler.compile(source.toString());
+        if (compiler.isErrors()) {
+            throw new IllegalStateException
+                ("Benchmark program does not compile: " + source);
+        }
+
+        final Path file = Files.createTempFile(this.program, ".slx");
+        file.toFile().deleteOnExit();
+        Files.write(file,
+                    this.compiled.toString().getBytes(StandardCharsets.UTF_8));
+        this.slxFile = file.toString();
+
+        final Interpreter profiled = new Interpreter(this.compiled);
+        profiled.setStepLimit(STEP_LIMIT);
+        profiled.setProfiling(true);
+        profiled.execute(false, NO_INPUT);
+        this.steps = profiled.getProfile().getSteps();
+    }
+
+    /**
+     * Create the compiler of the default package.
+     *
+     * @return a new compiler
+     */
+    private static SlxCompiler newCompiler() {
+        try {
+            return (SlxCompiler) Class.forName(COMPILER_CLASS)
+                .getDeclaredConstructor().newInstance();
+        } catch (final ReflectiveOperationException e) {
+            throw new IllegalStateException
+                ("Compiler not found on the class path: " + COMPILER_CLASS, e);
+        }
+    }
+
+    /**
+     * Find a program in the program directories.
+     *
+     * @param name the file name
+     * @return the path
+     * @throws IOException if there is no such program
+     */
+    private static Path find(final String name) throws IOException {
+        final String root = System.getProperty("slx.root", ".");
+        for (String dir : PROGRAM_DIRS) {
+            final Path path = Paths.get(root, dir, name);
+            if (Files.isRegularFile(path)) {
+                return path;
+            }
+        }
+        throw new IOException("Benchmark program not found: " + name);
+    }
+
+    /**
+     * Run the program with a configured interpreter.
+     *
+     * @param interpreter the interpreter
+     * @param counter where to count the instructions
+     * @return the printed integers
+     */
+    private List<Integer> run(final Interpreter interpreter,
+                              final Instructions counter) {
+        interpreter.setStepLimit(STEP_LIMIT);
+        interpreter.setExecutionMode(this.mode);
+        interpreter.execute(false, NO_INPUT);
+        counter.instructions += this.steps;
+        return interpreter.getResult();
+    }
+
+    /**
+     * Load the program from its .slx file and run it.
+     *
+     * @param counter where to count the instructions
+     * @return the printed integers
+     */
+    @Benchmark
+    public List<Integer> fromFile(final Instructions counter) {
+        return this.run(new Interpreter(this.slxFile), counter);
+    }
+
+    /**
+     * Run the compiled program.
+     *
+     * @param counter where to count the instructions
+     * @return the printed integers
+     */
+    @Benchmark
+    public List<Integer> fromProgram(final Instructions counter) {
+        return this.run(new Interpreter(this.compiled, "WARNING"), counter);
+    }
+
+    /**
+     * Run the compiled program once per iteration, without warm-up, so
+     * that the iterations show how the run time develops from the
+     * first run of a fresh JVM.
+     *
+     * @param counter where to count the instructions
+     * @return the printed integers
+     */
+    @Benchmark
+    @BenchmarkMode(Mode.SingleShotTime)
+    @Warmup(iterations = 0)
+    @Measurement(iterations = 30)
+    @Fork(value = 5, jvmArgsAppend = {"-Xms1g", "-Xmx1g"})
+    public List<Integer> coldStart(final Instructions counter) {
+        return this.run(new Interpreter(this.compiled, "WARNING"), counter);
+    }
+}
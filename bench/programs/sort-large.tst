@@ -0,0 +1,48 @@
+main begin
+  int i;
+  int j;
+  int k;
+  int seed;
+  int[] array;
+  boolean changed;
+  array = new int [300];
+  seed = 12345;
+  i = 0;
+  do
+  begin
+    seed = seed * 1103 + 12345;
+    seed = seed - (seed / 65536) * 65536;
+    array[i] = seed;
+    i = i + 1;
+  end
+  while(i < array.length);
+
+  do
+  begin
+    changed = false;
+    j = 1;
+    do
+    begin
+      if (array[j] < array[j - 1]) then
+      begin
+        k = array[j];
+        array[j] = array[j - 1];
+        array[j - 1] = k;
+        changed = true;
+      end
+      j = j + 1;
+    end
+    while(j < array.length);
+  end
+  while(changed);
+
+  j = 0;
+  do
+  begin
+    print(array[j]);
+    j = j + 30;
+  end
+  while(j < array.length);
+
+  return 0;
+end
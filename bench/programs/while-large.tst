@@ -0,0 +1,29 @@
+main begin
+  int a;
+  int b;
+  int sum;
+  a = 0;
+  do
+  begin
+    b = 0;
+    sum = 0;
+    do
+    begin
+      sum = sum + a * b;
+      b = b + 1;
+    end
+    while(b < 300);
+
+    if (a / 30 * 30 < a) then
+    begin
+    end
+    if (!(a / 30 * 30 < a)) then
+    begin
+      print(sum);
+    end
+    a = a + 1;
+  end
+  while(a < 300);
+
+  return 0;
+end
@@ -0,0 +1,243 @@
+package fi.tkk.cs.tkkcc.slx;
+
+import java.io.ByteArrayOutputStream;
+import java.io.OutputStream;
+import java.io.StringWriter;
+import java.lang.invoke.MethodHandle;
+import java.lang.invoke.MethodHandles;
+import java.lang.invoke.MethodType;
+import java.net.URI;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.LinkedHashMap;
+import java.util.Map;
+import java.util.NoSuchElementException;
+import java.util.function.IntConsumer;
+import java.util.function.IntSupplier;
+import java.util.logging.Level;
+
+import javax.tools.FileObject;
+import javax.tools.ForwardingJavaFileManager;
+import javax.tools.JavaCompiler;
+import javax.tools.JavaFileObject;
+import javax.tools.SimpleJavaFileObject;
+import javax.tools.StandardJavaFileManager;
+import javax.tools.ToolProvider;
+
+/**
+ * Ahead of time compiling execution engine.
+ *
+ * Translates the program to a Java class with the {@link JvmTranslator},
+ * compiles the class in process with the system Java compiler and runs
+ * it, so the program is compiled to machine code by the JIT compiler of
+ * the JVM like any other Java code. The compiled classes are cached by
+ * the code of the program, so running the same program again only
+ * costs the execution.
+ *
+ * Programs that can not be translated (see {@link ControlFlow}) are run
+ * by the {@link FastEngine}, as are programs using the segmented memory
+ * layout and all programs if the Java compiler is not available.
+ */
+final class BytecodeEngine extends Engine {
+    /** Maximum number of compiled programs kept */
+    private static final int CACHE_SIZE = 64;
+    /** Type of the run method of the compiled classes */
+    private static final MethodType RUN_TYPE =
+        MethodType.methodType(void.class, int[].class, int[].class,
+                              IntSupplier.class, IntConsumer.class);
+
+    /** Compiled programs by code, <code>null</code> if not translatable */
+    private static final Map<CodeKey, MethodHandle> cache =
+        Collections.synchronizedMap
+        (new LinkedHashMap<CodeKey, MethodHandle>(16, 0.75f, true) {
+                private static final long serialVersionUID = 1L;
+
+                @Override
+                protected boolean removeEldestEntry
+                    (final Map.Entry<CodeKey, MethodHandle> eldest) {
+                    return this.size() > CACHE_SIZE;
+                }
+            });
+
+    @Override
+    void execute(final Machine m, final IntInput input,
+                 final IntOutput output) {
+        // The compiled code addresses the memory as one array
+        final int[] memory = m.memory.getArray();
+        final MethodHandle run = memory == null ? null
+            : BytecodeEngine.compiled(m.program, m.programCounter);
+        if (run == null) {
+            new FastEngine().execute(m, input, output);
+            return;
+        }
+
+        final int[] registers = new int[JvmTranslator.REGISTERS];
+        registers[JvmTranslator.FP] = m.framePointer;
+        registers[JvmTranslator.HP] = m.heapPointer;
+        registers[JvmTranslator.LIMIT] = m.stepLimit;
+        final IntSupplier in = new IntSupplier() {
+                @Override
+                public int getAsInt() {
+                    return input.read();
+                }
+            };
+        final IntConsumer out = new IntConsumer() {
+                @Override
+                public void accept(final int value) {
+                    output.write(value);
+                }
+            };
+        try {
+            run.invokeExact(memory, registers, in, out);
+        } catch (IllegalStateException e) {
+            throw Engine.fail(e.getMessage());
+        } catch (NoSuchElementException e) {
+            // No more input
+            log.severe("Could not read input at line " +
+                       m.program.getSourceLine(registers[JvmTranslator.PC]));
+        } catch (StackOverflowError e) {
+            throw Engine.fail("Call stack overflow");
+        } catch (RuntimeException e) {
+            throw e;
+        } catch (Error e) {
+            throw e;
+        } catch (Throwable t) {
+            throw new ExecutionException(t);
+        } finally {
+            m.framePointer = registers[JvmTranslator.FP];
+            m.heapPointer = registers[JvmTranslator.HP];
+        }
+    }
+
+    /**
+     * Get the compiled run method of a program, compiling it if needed.
+     *
+     * @param program the program
+     * @param entry the pc to start from
+     * @return the method, <code>null</code> if the program can not be
+     *         compiled
+     */
+    private static MethodHandle compiled(final LinkedProgram program,
+                                         final int entry) {
+        final CodeKey key = new CodeKey(program.getCode(), entry);
+        synchronized (cache) {
+            if (cache.containsKey(key)) {
+                return cache.get(key);
+            }
+        }
+        MethodHandle run = null;
+        try {
+            final ControlFlow flow = new ControlFlow(program.getCode(), entry);
+            run = BytecodeEngine.load(JvmTranslator.translate(flow));
+        } catch (IllegalInstructionException e) {
+            log.fine("Program not compiled: " + e.getMessage());
+        }
+        cache.put(key, run);
+        return run;
+    }
+
+    /**
+     * Compile and load a generated class.
+     *
+     * @param source the source of the class
+     * @return the run method of the class, <code>null</code> if it
+     *         could not be compiled
+     */
+    private static MethodHandle load(final String source) {
+        final JavaCompiler compiler = ToolProvider.getSystemJavaCompiler();
+        if (compiler == null) {
+            log.fine("Program not compiled: no Java compiler available");
+            return null;
+        }
+        final String name = JvmTranslator.class.getPackage().getName()
+            .replace('.', '/') + "/" + JvmTranslator.CLASS_NAME;
+        final JavaFileObject sourceFile = new SimpleJavaFileObject
+            (URI.create("string:///" + name + ".java"),
+             JavaFileObject.Kind.SOURCE) {
+                @Override
+                public CharSequence getCharContent
+                    (final boolean ignoreEncodingErrors) {
+                    return source;
+                }
+            };
+        final ByteArrayOutputStream classFile = new ByteArrayOutputStream();
+        final StandardJavaFileManager standard =
+            compiler.getStandardFileManager(null, null, null);
+        final ForwardingJavaFileManager<StandardJavaFileManager> files =
+            new ForwardingJavaFileManager<StandardJavaFileManager>(standard) {
+                @Override
+                public JavaFileObject getJavaFileForOutput
+                    (final Location location, final String className,
+                     final JavaFileObject.Kind kind,
+                     final FileObject sibling) {
+                    return new SimpleJavaFileObject
+                        (URI.create("bytes:///" + name + ".class"), kind) {
+                            @Override
+                            public OutputStream openOutputStream() {
+                                return classFile;
+                            }
+                        };
+                }
+            };
+        final StringWriter messages = new StringWriter();
+        final boolean success = compiler.getTask
+            (messages, files, null,
+             Arrays.asList("-g:none", "-nowarn", "-proc:none"), null,
+             Arrays.asList(sourceFile)).call();
+        if (!success) {
+            log.fine("Program not compiled: " + messages);
+            return null;
+        }
+        if (log.isLoggable(Level.FINEST)) {
+            log.finest(source);
+        }
+        try {
+            final MethodHandles.Lookup lookup = MethodHandles.lookup()
+                .defineHiddenClass(classFile.toByteArray(), true);
+            return lookup.findStatic(lookup.lookupClass(), "run", RUN_TYPE);
+        } catch (ReflectiveOperationException e) {
+            log.fine("Program not loaded: " + e);
+            return null;
+        }
+    }
+
+    /**
+     * Cache key: the code of a program and its entry pc.
+     */
+    private static final class CodeKey {
+        /** The code */
+        private final int[] code;
+        /** The entry pc */
+        private final int entry;
+        /** The hash code */
+        private final int hash;
+
+        /**
+         * Initialize a new key.
+         *
+         * @param code the code, not modified later
+         * @param entry the entry pc
+         */
+        CodeKey(final int[] code, final int entry) {
+            super();
+            this.code = code;
+            this.entry = entry;
+            this.hash = Arrays.hashCode(code) * 31 + entry;
+        }
+
+        @Override
+        public int hashCode() {
+            return this.hash;
+        }
+
+        @Override
+        public boolean equals(final Object o) {
+            if (!(o instanceof CodeKey)) {
+                return false;
+            }
+            final CodeKey other = (CodeKey) o;
+            return this.entry == other.entry
+                && Arrays.equals(this.code, other.code);
+        }
+    }
+}
@@ -0,0 +1,571 @@
+package fi.tkk.cs.tkkcc.slx;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.NoSuchElementException;
+
+/**
+ * Closure compiling execution engine.
+ *
+ * Each basic block of the linked program is compiled once, when it is
+ * first entered, into an array of node objects and an exit that picks
+ * the next block. The operands and branch targets of the instructions
+ * are final fields of the nodes, so the engine does not decode
+ * anything while running, and the JIT compiler sees a small class per
+ * instruction kind.
+ *
+ * Blocks end at jumps, calls, returns, halts and reads. A block may
+ * start in the middle of another one, when a jump or a return lands
+ * there; the instructions are then simply compiled twice.
+ *
+ * The step limit is checked once per block. When the remaining steps
+ * do not cover a whole block, its instructions are counted one by one
+ * so that the program stops at the same step as in the other engines.
+ */
+final class ClosureEngine extends Engine {
+
+    @Override
+    void execute(final Machine m, final IntInput input,
+                 final IntOutput output) {
+        final Compilation compilation = new Compilation(m, input, output);
+        Block block = compilation.blockAt(m.programCounter);
+        int step = 0;
+        while (block != null) {
+            m.programCounter = block.pc;
+            if (step > m.stepLimit - block.length) {
+                // Not enough steps left for the whole block
+                final int left = m.stepLimit - step;
+                for (int i = 0; i < left && i < block.body.length; i++) {
+                    block.body[i].run(m);
+                }
+                if (left > block.body.length) {
+                    block.exit.run(m);
+                }
+                step = m.stepLimit;
+                break;
+            }
+            final Node[] body = block.body;
+            for (int i = 0; i < body.length; i++) {
+                body[i].run(m);
+            }
+            step += block.length;
+            block = block.exit.run(m);
+        }
+
+        // Even halting on the last step counts as too many
+        if (step >= m.stepLimit) {
+            log.severe("Program execution halted due too many steps");
+            throw new ExecutionException();
+        }
+    }
+
+    /**
+     * Check that the operand stack holds enough values.
+     *
+     * @param m the machine
+     * @param count the number of values needed
+     */
+    private static void require(final Machine m, final int count) {
+        if (m.stackPointer < count) {
+            throw Engine.fail("Stack underflow");
+        }
+    }
+
+    /**
+     * A straight line instruction.
+     */
+    private abstract static class Node {
+        /**
+         * Execute the instruction.
+         *
+         * @param m the machine
+         */
+        abstract void run(Machine m);
+    }
+
+    /**
+     * The instruction that ends a block.
+     */
+    private abstract static class Exit {
+        /**
+         * Execute the instruction.
+         *
+         * @param m the machine
+         * @return the next block, <code>null</code> if the program halts
+         */
+        abstract Block run(Machine m);
+    }
+
+    /**
+     * A compiled basic block.
+     */
+    private static final class Block {
+        /** The pc of the first instruction */
+        final int pc;
+        /** The straight line instructions */
+        final Node[] body;
+        /** The instruction ending the block */
+        final Exit exit;
+        /** Number of steps the block counts as */
+        final int length;
+
+        /**
+         * Initialize a new block.
+         *
+         * @param pc the pc of the first instruction
+         * @param body the straight line instructions
+         * @param exit the instruction ending the block
+         */
+        Block(final int pc, final Node[] body, final Exit exit) {
+            super();
+            this.pc = pc;
+            this.body = body;
+            this.exit = exit;
+            this.length = body.length + 1;
+        }
+    }
+
+    /**
+     * The blocks compiled for one execution, and the input and output
+     * of the execution.
+     */
+    private static final class Compilation {
+        /** The linked code */
+        private final int[] code;
+        /** The block starting at each pc, if compiled */
+        private final Block[] blocks;
+        /** The input */
+        private final IntInput input;
+        /** The output */
+        private final IntOutput output;
+
+        /**
+         * Initialize a new compilation.
+         *
+         * @param machine the machine
+         * @param input the input
+         * @param output the output
+         */
+        Compilation(final Machine machine, final IntInput input,
+                    final IntOutput output) {
+            super();
+            this.code = machine.program.getCode();
+            this.blocks = new Block[this.code.length];
+            this.input = input;
+            this.output = output;
+        }
+
+        /**
+         * Get the block starting at a pc, compiling it if needed.
+         *
+         * @param pc the pc
+         * @return the block
+         */
+        Block blockAt(final int pc) {
+            if (pc < 0 || pc >= this.code.length) {
+                throw Engine.fail("Program counter out of bounds");
+            }
+            Block block = this.blocks[pc];
+            if (block == null) {
+                block = this.compile(pc);
+                this.blocks[pc] = block;
+            }
+            return block;
+        }
+
+        /**
+         * Compile the block starting at a pc.
+         *
+         * @param start the pc
+         * @return the block
+         */
+        private Block compile(final int start) {
+            final List<Node> body = new ArrayList<Node>();
+            int pc = start;
+            Exit exit = null;
+            while (exit == null) {
+                if (pc >= this.code.length) {
+                    exit = this.fallOff();
+                    break;
+                }
+                final int opcode = this.code[pc];
+                final int next = pc + 1 + Opcode.getNumberOfParameters(opcode);
+                final Node node = this.node(pc);
+                if (node != null) {
+                    body.add(node);
+                } else {
+                    exit = this.exit(pc, next);
+                }
+                pc = next;
+            }
+            return new Block(start, body.toArray(new Node[body.size()]), exit);
+        }
+
+        /**
+         * Create the node of a straight line instruction.
+         *
+         * @param pc the pc of the instruction
+         * @return the node, <code>null</code> if the instruction ends
+         *         the block
+         */
+        private Node node(final int pc) {
+            switch (this.code[pc]) {
+            case Opcode.ENT:
+                final int value = this.code[pc + 1];
+                return new Node() {
+                    @Override
+                    void run(final Machine m) {
+                        m.push(value);
+                    }
+                };
+            case Opcode.ADD:
+                return new Node() {
+                    @Override
+                    void run(final Machine m) {
+                        require(m, 2);
+                        final int x = m.pop();
+                        m.stack[m.stackPointer - 1] += x;
+                    }
+                };
+            case Opcode.SUB:
+                return new Node() {
+                    @Override
+                    void run(final Machine m) {
+                        require(m, 2);
+                        final int x = m.pop();
+                        m.stack[m.stackPointer - 1] -= x;
+                    }
+                };
+            case Opcode.MUL:
+                return new Node() {
+                    @Override
+                    void run(final Machine m) {
+                        require(m, 2);
+                        final int x = m.pop();
+                        m.stack[m.stackPointer - 1] *= x;
+                    }
+                };
+            case Opcode.DIV:
+                return new Node() {
+                    @Override
+                    void run(final Machine m) {
+                        require(m, 2);
+                        final int x = m.pop();
+                        if (x == 0) {
+                            throw Engine.fail("Division by zero");
+                        }
+                        m.stack[m.stackPointer - 1] /= x;
+                    }
+                };
+            case Opcode.UMN:
+                return new Node() {
+                    @Override
+                    void run(final Machine m) {
+                        require(m, 1);
+                        m.stack[m.stackPointer - 1] =
+                            -m.stack[m.stackPointer - 1];
+                    }
+                };
+            case Opcode.NOT:
+                return new Node() {
+                    @Override
+                    void run(final Machine m) {
+                        require(m, 1);
+                        m.stack[m.stackPointer - 1] =
+                            m.stack[m.stackPointer - 1] == 1 ? 0 : 1;
+                    }
+                };
+            case Opcode.REQ:
+                return new Node() {
+                    @Override
+                    void run(final Machine m) {
+                        require(m, 2);
+                        final int x = m.pop();
+                        m.stack[m.stackPointer - 1] =
+                            m.stack[m.stackPointer - 1] == x ? 1 : 0;
+                    }
+                };
+            case Opcode.RNE:
+                return new Node() {
+                    @Override
+                    void run(final Machine m) {
+                        require(m, 2);
+                        final int x = m.pop();
+                        m.stack[m.stackPointer - 1] =
+                            m.stack[m.stackPointer - 1] != x ? 1 : 0;
+                    }
+                };
+            case Opcode.RLT:
+                return new Node() {
+                    @Override
+                    void run(final Machine m) {
+                        require(m, 2);
+                        final int x = m.pop();
+                        m.stack[m.stackPointer - 1] =
+                            m.stack[m.stackPointer - 1] < x ? 1 : 0;
+                    }
+                };
+            case Opcode.RGT:
+                return new Node() {
+                    @Override
+                    void run(final Machine m) {
+                        require(m, 2);
+                        final int x = m.pop();
+                        m.stack[m.stackPointer - 1] =
+                            m.stack[m.stackPointer - 1] > x ? 1 : 0;
+                    }
+                };
+            case Opcode.RLE:
+                return new Node() {
+                    @Override
+                    void run(final Machine m) {
+                        require(m, 2);
+                        final int x = m.pop();
+                        m.stack[m.stackPointer - 1] =
+                            m.stack[m.stackPointer - 1] <= x ? 1 : 0;
+                    }
+                };
+            case Opcode.RGE:
+                return new Node() {
+                    @Override
+                    void run(final Machine m) {
+                        require(m, 2);
+                        final int x = m.pop();
+                        m.stack[m.stackPointer - 1] =
+                            m.stack[m.stackPointer - 1] >= x ? 1 : 0;
+                    }
+                };
+            case Opcode.LDL:
+                return new Node() {
+                    @Override
+                    void run(final Machine m) {
+                        require(m, 1);
+                        m.stack[m.stackPointer - 1] =
+                            m.memory.get(m.framePointer
+                                         + m.stack[m.stackPointer - 1]);
+                    }
+                };
+            case Opcode.LDM:
+                return new Node() {
+                    @Override
+                    void run(final Machine m) {
+                        require(m, 1);
+                        final int address = m.stack[m.stackPointer - 1];
+                        m.stack[m.stackPointer - 1] = m.memory.get(address);
+                    }
+                };
+            case Opcode.STL:
+                return new Node() {
+                    @Override
+                    void run(final Machine m) {
+                        require(m, 2);
+                        final int x = m.pop();
+                        final int address = m.framePointer + m.pop();
+                        m.memory.set(address, x);
+                    }
+                };
+            case Opcode.STM:
+                return new Node() {
+                    @Override
+                    void run(final Machine m) {
+                        require(m, 2);
+                        final int x = m.pop();
+                        final int address = m.pop();
+                        m.memory.set(address, x);
+                    }
+                };
+            case Opcode.ALC:
+                return new Node() {
+                    @Override
+                    void run(final Machine m) {
+                        // Allocate memory: take area size from stack, add
+                        // one for length field. Move heap pointer and
+                        // store length field. Push the pointer to stack.
+                        require(m, 1);
+                        final int x = m.stack[m.stackPointer - 1];
+                        m.heapPointer = m.heapPointer - (x + 1) - 1;
+                        if (m.heapPointer < m.memory.getHeapBase()) {
+                            throw Engine.fail("Heap out of memory bounds");
+                        }
+                        m.memory.set(m.heapPointer, x);
+                        m.stack[m.stackPointer - 1] = m.heapPointer;
+                    }
+                };
+            case Opcode.SFR:
+                final int size = this.code[pc + 1];
+                return new Node() {
+                    @Override
+                    void run(final Machine m) {
+                        final int fp = m.framePointer;
+                        if (fp + size + Machine.FRAME_SIZE + 1
+                            >= m.memory.getStackLimit()) {
+                            throw Engine.fail
+                                ("Frame pointer out of memory bounds");
+                        }
+                        m.memory.set(fp + size + Machine.FRAME_SIZE - 1, fp);
+                        m.memory.set(fp + size + Machine.FRAME_SIZE,
+                                     m.heapPointer);
+                        m.framePointer = fp + size + Machine.FRAME_SIZE + 1;
+                    }
+                };
+            case Opcode.WRI:
+                final IntOutput out = this.output;
+                return new Node() {
+                    @Override
+                    void run(final Machine m) {
+                        require(m, 1);
+                        out.write(m.pop());
+                    }
+                };
+            default:
+                return null;
+            }
+        }
+
+        /**
+         * Create the exit of a block.
+         *
+         * @param pc the pc of the instruction ending the block
+         * @param next the pc following the instruction
+         * @return the exit
+         */
+        private Exit exit(final int pc, final int next) {
+            switch (this.code[pc]) {
+            case Opcode.JMP:
+                final int jumpTarget = this.code[pc + 1];
+                return new Exit() {
+                    private Block target;
+
+                    @Override
+
+                    Block run(final Machine m) {
+                        if (this.target == null) {
+                            this.target = blockAt(jumpTarget);
+                        }
+                        return this.target;
+                    }
+                };
+            case Opcode.JZE:
+                final int branchTarget = this.code[pc + 1];
+                return new Exit() {
+                    private Block taken;
+                    private Block notTaken;
+
+                    @Override
+
+                    Block run(final Machine m) {
+                        require(m, 1);
+                        if (m.pop() == 0) {
+                            if (this.taken == null) {
+                                this.taken = blockAt(branchTarget);
+                            }
+                            return this.taken;
+                        }
+                        if (this.notTaken == null) {
+                            this.notTaken = blockAt(next);
+                        }
+                        return this.notTaken;
+                    }
+                };
+            case Opcode.SBR:
+                final int callTarget = this.code[pc + 1];
+                final int argc = this.code[pc + 2];
+                return new Exit() {
+                    private Block target;
+
+                    @Override
+
+                    Block run(final Machine m) {
+                        // Previous command has to be SFR, otherwise
+                        // framepointer points to old frame
+                        final int fp = m.framePointer;
+                        m.memory.set(fp, next);
+                        if (m.stackPointer < argc) {
+                            throw Engine.fail("Stack underflow");
+                        }
+                        if (argc < 0) {
+                            throw Engine.fail("Negative amount of parameters");
+                        }
+                        if (fp + argc >= m.memory.getStackLimit()) {
+                            throw Engine.fail("Memory access out of bounds");
+                        }
+                        // Load parameters into frame in reverse order
+                        for (int i = argc; i > 0; i--) {
+                            m.memory.set(fp + i, m.pop());
+                        }
+                        if (this.target == null) {
+                            this.target = blockAt(callTarget);
+                        }
+                        return this.target;
+                    }
+                };
+            case Opcode.RET:
+                return new Exit() {
+                    @Override
+                    Block run(final Machine m) {
+                        final int fp = m.framePointer;
+                        final int returnPc = m.memory.get(fp);
+                        m.heapPointer = m.memory.get(fp - Machine.FRAME_SIZE + 1);
+                        m.framePointer = m.memory.get(fp - Machine.FRAME_SIZE);
+                        return blockAt(returnPc);
+                    }
+                };
+            case Opcode.HLT:
+                return new Exit() {
+                    @Override
+                    Block run(final Machine m) {
+                        return null;
+                    }
+                };
+            case Opcode.REA:
+                return new Exit() {
+                    private Block following;
+
+                    @Override
+
+                    Block run(final Machine m) {
+                        final int x;
+                        try {
+                            x = input.read();
+                        } catch (NoSuchElementException e) {
+                            // No more input
+                            log.severe("Could not read input at line " +
+                                       m.program.getSourceLine(pc));
+                            return null;
+                        }
+                        m.push(x);
+                        if (this.following == null) {
+                            this.following = blockAt(next);
+                        }
+                        return this.following;
+                    }
+                };
+            default:
+                return new Exit() {
+                    @Override
+                    Block run(final Machine m) {
+                        // Unknown instruction
+                        log.severe("Unknown instruction: " +
+                                   m.program.getInstruction(pc) +
+                                   " at line " + m.program.getSourceLine(pc));
+                        return null;
+                    }
+                };
+            }
+        }
+
+        /**
+         * Create the exit of a block that runs past the end of the code.
+         *
+         * @return the exit
+         */
+        private Exit fallOff() {
+            return new Exit() {
+                @Override
+                Block run(final Machine m) {
+                    throw Engine.fail("Program counter out of bounds");
+                }
+            };
+        }
+    }
+}
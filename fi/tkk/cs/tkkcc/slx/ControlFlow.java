@@ -0,0 +1,350 @@
+package fi.tkk.cs.tkkcc.slx;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+
+/**
+ * Control flow and stack depth analysis of linked code.
+ *
+ * The code is split into functions: the main program, which starts at
+ * pc 0, and every target of an SBR instruction. For each function the
+ * analysis finds the instructions reachable from its entry without
+ * following calls, and the depth of the operand stack before each of
+ * them, counted from the depth at the entry of the function. The
+ * analysis only accepts code in which the depth at each instruction is
+ * the same on every path, no instruction pops values pushed before the
+ * function was entered, and every RET of a function leaves the same
+ * number of values, zero or one, as the result of the function.
+ *
+ * The analysis works on unfused code and on code with the
+ * superinstructions of the {@link Fuser}.
+ */
+final class ControlFlow {
+    /** Depth marker of an instruction not in a function */
+    static final int UNREACHABLE = -1;
+
+    /** The analysed code */
+    private final int[] code;
+    /** The functions, by entry pc. The main program is first. */
+    private final Map<Integer, Function> functions;
+
+    /**
+     * Analyse linked code.
+     *
+     * @param code the linked code, fused or not
+     * @param entry the pc of the main program
+     * @throws IllegalInstructionException if the code can not be
+     *         analysed
+     */
+    ControlFlow(final int[] code, final int entry)
+        throws IllegalInstructionException {
+        super();
+        this.code = code;
+        this.functions = new LinkedHashMap<Integer, Function>();
+        this.functions.put(entry, new Function(entry, true));
+        for (int pc = 0; pc < code.length;
+             pc += Opcode.getNumberOfParameters(code[pc]) + 1) {
+            if (code[pc] < 0 || code[pc] >= Opcode.COUNT) {
+                throw new IllegalInstructionException
+                    ("Unknown opcode " + code[pc] + " at pc " + pc);
+            }
+            if ((code[pc] == Opcode.SBR || code[pc] == Opcode.CALL)
+                && !this.functions.containsKey(code[pc + 1])) {
+                this.functions.put(code[pc + 1],
+                                   new Function(code[pc + 1], false));
+            }
+        }
+
+        // The result count of a function depends on the result counts
+        // of the functions it calls, so iterate until nothing changes.
+        boolean changed = true;
+        int rounds = 0;
+        while (changed) {
+            if (rounds++ > this.functions.size()) {
+                throw new IllegalInstructionException
+                    ("Result counts of the functions do not settle");
+            }
+            changed = false;
+            for (Function function : this.functions.values()) {
+                changed |= function.analyse();
+            }
+        }
+    }
+
+    /**
+     * Get the analysed code.
+     *
+     * @return the code, shared
+     */
+    int[] getCode() {
+        return this.code;
+    }
+
+    /**
+     * Get the functions of the program.
+     *
+     * @return the functions, the main program first
+     */
+    List<Function> getFunctions() {
+        return Collections.unmodifiableList
+            (new ArrayList<Function>(this.functions.values()));
+    }
+
+    /**
+     * Get the function starting at a pc.
+     *
+     * @param entry the entry pc
+     * @return the function, <code>null</code> if none starts there
+     */
+    Function getFunction(final int entry) {
+        return this.functions.get(entry);
+    }
+
+    /**
+     * Get the pc of the instruction following an instruction.
+     *
+     * @param pc the pc of the instruction
+     * @return the pc of the next instruction
+     */
+    int next(final int pc) {
+        return pc + Opcode.getNumberOfParameters(this.code[pc]) + 1;
+    }
+
+    /**
+     * A function of the program.
+     */
+    final class Function {
+        /** The entry pc */
+        private final int entry;
+        /** True for the main program */
+        private final boolean main;
+        /** Stack depth before each instruction, or UNREACHABLE */
+        private final int[] depths;
+        /** Number of values a RET of this function leaves */
+        private int results = 1;
+        /** Maximum stack depth within the function */
+        private int maxDepth;
+
+        /**
+         * Initialize a new function.
+         *
+         * @param entry the entry pc
+         * @param main <code>true</code> for the main program
+         */
+        Function(final int entry, final boolean main) {
+            super();
+            this.entry = entry;
+            this.main = main;
+            this.depths = new int[ControlFlow.this.code.length];
+            if (entry < 0 || entry >= this.depths.length) {
+                throw new IllegalInstructionException
+                    ("Function entry out of code: " + entry);
+            }
+        }
+
+        /**
+         * Compute the stack depths of the function.
+         *
+         * @return <code>true</code> if the result count changed
+         */
+        private boolean analyse() {
+            final int[] code = ControlFlow.this.code;
+            Arrays.fill(this.depths, UNREACHABLE);
+            this.maxDepth = 0;
+            int returnDepth = UNREACHABLE;
+            final int[] work = new int[code.length + 1];
+            int count = 0;
+            this.depths[this.entry] = 0;
+            work[count++] = this.entry;
+            while (count > 0) {
+                final int pc = work[--count];
+                final int depth = this.depths[pc];
+                final int opcode = code[pc];
+                final int next = ControlFlow.this.next(pc);
+                int popped;
+                int pushed;
+                switch (opcode) {
+                case Opcode.ENT:
+                case Opcode.REA:
+                case Opcode.LDLI:
+                    popped = 0;
+                    pushed = 1;
+                    break;
+                case Opcode.LDL:
+                case Opcode.LDM:
+                case Opcode.ALC:
+                case Opcode.NOT:
+                case Opcode.UMN:
+                case Opcode.ADDI:
+                case Opcode.REQI:
+                    popped = 1;
+                    pushed = 1;
+                    break;
+                case Opcode.STL:
+                case Opcode.STM:
+                    popped = 2;
+                    pushed = 0;
+                    break;
+                case Opcode.WRI:
+                case Opcode.JZE:
+                case Opcode.STLI:
+                case Opcode.JONE:
+                    popped = 1;
+                    pushed = 0;
+                    break;
+                case Opcode.SBR:
+                case Opcode.CALL:
+                    popped = code[pc + 2];
+                    pushed = ControlFlow.this.functions.get(code[pc + 1])
+                        .results;
+                    break;
+                case Opcode.JMP:
+                case Opcode.SFR:
+                case Opcode.RET:
+                case Opcode.HLT:
+                case Opcode.INCL:
+                    popped = 0;
+                    pushed = 0;
+                    break;
+                case Opcode.BLT:
+                case Opcode.BGE:
+                case Opcode.JLT:
+                    popped = 2;
+                    pushed = 0;
+                    break;
+                default:
+                    // The arithmetic and relational operators, ALDE and
+                    // AIDX
+                    popped = 2;
+                    pushed = 1;
+                    break;
+                }
+                if (popped < 0 || depth < popped) {
+                    throw new IllegalInstructionException
+                        ("Stack underflow at pc " + pc);
+                }
+                final int after = depth - popped + pushed;
+                this.maxDepth = Math.max(this.maxDepth, after);
+
+                switch (opcode) {
+                case Opcode.RET:
+                    if (this.main) {
+                        throw new IllegalInstructionException
+                            ("Return from the main program at pc " + pc);
+                    }
+                    if (returnDepth != UNREACHABLE && returnDepth != depth) {
+                        throw new IllegalInstructionException
+                            ("Inconsistent result count at pc " + pc);
+                    }
+                    returnDepth = depth;
+                    break;
+                case Opcode.HLT:
+                    break;
+                case Opcode.JMP:
+                    count = this.flow(work, count, code[pc + 1], after, pc);
+                    break;
+                case Opcode.JZE:
+                case Opcode.JONE:
+                case Opcode.BLT:
+                case Opcode.BGE:
+                case Opcode.JLT:
+                    count = this.flow(work, count, code[pc + 1], after, pc);
+                    count = this.flow(work, count, next, after, pc);
+                    break;
+                default:
+                    count = this.flow(work, count, next, after, pc);
+                    break;
+                }
+            }
+            if (returnDepth > 1) {
+                throw new IllegalInstructionException
+                    ("Function at pc " + this.entry + " returns "
+                     + returnDepth + " values");
+            }
+            if (returnDepth != UNREACHABLE && returnDepth != this.results) {
+                this.results = returnDepth;
+                return true;
+            }
+            return false;
+        }
+
+        /**
+         * Record the stack depth at a successor of an instruction.
+         *
+         * @param work the work list
+         * @param count the length of the work list
+         * @param target the successor
+         * @param depth the depth at the successor
+         * @param pc the instruction, for diagnostics
+         * @return the new length of the work list
+         */
+        private int flow(final int[] work, final int count, final int target,
+                         final int depth, final int pc) {
+            if (target < 0 || target >= this.depths.length) {
+                throw new IllegalInstructionException
+                    ("Control leaves the code at pc " + pc);
+            }
+            if (this.depths[target] == UNREACHABLE) {
+                this.depths[target] = depth;
+                work[count] = target;
+                return count + 1;
+            }
+            if (this.depths[target] != depth) {
+                throw new IllegalInstructionException
+                    ("Inconsistent stack depth at pc " + target);
+            }
+            return count;
+        }
+
+        /**
+         * Get the entry pc of the function.
+         *
+         * @return the pc
+         */
+        int getEntry() {
+            return this.entry;
+        }
+
+        /**
+         * Is this the main program?
+         *
+         * @return <code>true</code> for the main program
+         */
+        boolean isMain() {
+            return this.main;
+        }
+
+        /**
+         * Get the stack depth before an instruction.
+         *
+         * @param pc the pc of the instruction
+         * @return the depth, UNREACHABLE if the instruction is not part
+         *         of this function
+         */
+        int getDepth(final int pc) {
+            return this.depths[pc];
+        }
+
+        /**
+         * Get the number of values the function returns.
+         *
+         * @return 0 or 1
+         */
+        int getResults() {
+            return this.results;
+        }
+
+        /**
+         * Get the maximum stack depth within the function.
+         *
+         * @return the depth
+         */
+        int getMaxDepth() {
+            return this.maxDepth;
+        }
+    }
+}
@@ -0,0 +1,68 @@
+package fi.tkk.cs.tkkcc.slx;
+
+import java.util.logging.Logger;
+
+/**
+ * An execution engine runs a linked program on a machine.
+ *
+ * The interpreter creates its engine when it is constructed, and again
+ * whenever a setting the engine depends on, such as the execution mode,
+ * is changed before the program is executed.
+ */
+abstract class Engine {
+    /** Log generator, shared with the interpreter. */
+    static final Logger log = Logger.getLogger(Interpreter.class.getName());
+
+    /**
+     * Run the program of a machine until it halts.
+     *
+     * @param machine the machine
+     * @param input the integer inputs of the program; the end of the
+     *              input halts the program
+     * @param output where the printed integers are written
+     * @throws ExecutionException if the program fails
+     */
+    abstract void execute(Machine machine, IntInput input, IntOutput output);
+
+    /**
+     * Run the program of a machine for a slice of steps, continuing from
+     * where the previous slice stopped. The slice may end a few steps
+     * late, after a superinstruction. Engines that can not stop in the
+     * middle of a program run it to its end.
+     *
+     * @param machine the machine
+     * @param input the integer inputs of the program; the end of the
+     *              input halts the program
+     * @param output where the printed integers are written
+     * @param steps the number of steps to execute
+     * @return <code>true</code> if the program halted, <code>false</code>
+     *         if it can be resumed
+     * @throws ExecutionException if the program fails
+     */
+    boolean run(final Machine machine, final IntInput input,
+                final IntOutput output, final int steps) {
+        this.execute(machine, input, output);
+        return true;
+    }
+
+    /**
+     * Can this engine execute superinstructions?
+     *
+     * @return <code>true</code> if the program should be fused when it
+     *         is linked for this engine
+     */
+    boolean isFusing() {
+        return false;
+    }
+
+    /**
+     * Report a failed runtime check.
+     *
+     * @param message the reason of the failure
+     * @return the exception to throw
+     */
+    static ExecutionException fail(final String message) {
+        log.severe(message);
+        return new ExecutionException();
+    }
+}
@@ -0,0 +1,22 @@
+package fi.tkk.cs.tkkcc.slx;
+
+/**
+ * Ways the interpreter can execute a program.
+ *
+ * Whatever the mode, the program is run by the tracing engine if the
+ * logging level of the interpreter is INFO or finer.
+ */
+public enum ExecutionMode {
+    /** Dispatch each instruction through a switch statement (default).
+     * Programs that pass the verifier run without the stack checks */
+    SWITCH,
+    /** Compile basic blocks into chains of node objects once and
+     * execute the nodes */
+    CLOSURE,
+    /** Translate the program to a Java class and let the JVM compile
+     * it */
+    BYTECODE,
+    /** Translate the stack code to register code with operands in
+     * frame slots and registers, and execute that */
+    REGISTER
+}
@@ -0,0 +1,53 @@
+package fi.tkk.cs.tkkcc.slx;
+
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+
+/**
+ * Outcome of one program run by the {@link ExecutionService}.
+ */
+public final class ExecutionResult {
+    /** Integers the program printed */
+    private final List<Integer> output;
+    /** True if the program ran to its end */
+    private final boolean completed;
+
+    /**
+     * Initialize a new result.
+     *
+     * @param output the integers the program printed
+     * @param completed <code>true</code> if the program ran to its end
+     */
+    ExecutionResult(final List<Integer> output, final boolean completed) {
+        super();
+        this.output =
+            Collections.unmodifiableList(new ArrayList<Integer>(output));
+        this.completed = completed;
+    }
+
+    /**
+     * Get the integers the program printed, up to the point where it
+     * stopped.
+     *
+     * @return the integers
+     */
+    public List<Integer> getOutput() {
+        return this.output;
+    }
+
+    /**
+     * Did the program run to its end? A program that could not be
+     * loaded or that failed a runtime check did not.
+     *
+     * @return <code>true</code> if the program completed
+     */
+    public boolean isCompleted() {
+        return this.completed;
+    }
+
+    @Override
+    public String toString() {
+        return (this.completed ? "completed " : "failed ") + this.output;
+    }
+}
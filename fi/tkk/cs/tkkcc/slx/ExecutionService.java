@@ -0,0 +1,170 @@
+package fi.tkk.cs.tkkcc.slx;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+
+/**
+ * Runs SLX programs in parallel.
+ *
+ * Each run gets an interpreter and machine of its own and collects the
+ * printed integers instead of writing them to stdout, so runs share no
+ * state except the read-only programs. The interpreters are quiet: the
+ * logging configuration is not touched and no run is traced, whatever
+ * the logging level.
+ *
+ * By default the runs are executed by a pool with one worker per
+ * processor. Any executor can be given instead, for example one that
+ * starts a thread per run.
+ */
+public final class ExecutionService {
+    /** Number of services created, for naming the worker threads */
+    private static final AtomicInteger services = new AtomicInteger();
+
+    /** The executor running the programs */
+    private final ExecutorService executor;
+    /** True if the executor was created by this service */
+    private final boolean ownExecutor;
+    /** How the programs are executed */
+    private volatile ExecutionMode executionMode = ExecutionMode.SWITCH;
+
+    /**
+     * Initialize a new service with one worker per processor.
+     */
+    public ExecutionService() {
+        this(Runtime.getRuntime().availableProcessors());
+    }
+
+    /**
+     * Initialize a new service with a fixed number of workers.
+     *
+     * @param workers the number of programs run at the same time
+     */
+    public ExecutionService(final int workers) {
+        super();
+        if (workers <= 0) {
+            throw new IllegalArgumentException
+                ("Number of workers must be positive!");
+        }
+        final int service = services.incrementAndGet();
+        this.executor = Executors.newFixedThreadPool
+            (workers, new ThreadFactory() {
+                    private final AtomicInteger threads = new AtomicInteger();
+
+                    @Override
+                    public Thread newThread(final Runnable r) {
+                        final Thread thread = new Thread
+                            (r, "slx-" + service + "-"
+                             + this.threads.incrementAndGet());
+                        thread.setDaemon(true);
+                        return thread;
+                    }
+                });
+        this.ownExecutor = true;
+    }
+
+    /**
+     * Initialize a new service on an executor. The executor is not shut
+     * down by the service.
+     *
+     * @param executor the executor running the programs
+     */
+    public ExecutionService(final ExecutorService executor) {
+        super();
+        if (executor == null) {
+            throw new IllegalArgumentException("Executor may not be null!");
+        }
+        this.executor = executor;
+        this.ownExecutor = false;
+    }
+
+    /**
+     * Set how the programs submitted from now on are executed.
+     *
+     * @param mode the execution mode
+     */
+    public void setExecutionMode(final ExecutionMode mode) {
+        if (mode == null) {
+            throw new IllegalArgumentException("Mode may not be null!");
+        }
+        this.executionMode = mode;
+    }
+
+    /**
+     * Run a program.
+     *
+     * @param program the program, not modified by the run
+     * @param input the integer inputs of the program, copied
+     * @return the result of the run
+     */
+    public Future<ExecutionResult> submit(final SlxProgram program,
+                                          final int[] input) {
+        if (program == null || input == null) {
+            throw new IllegalArgumentException("Parameter may not be null!");
+        }
+        final int[] inputCopy = input.clone();
+        final ExecutionMode mode = this.executionMode;
+        return this.executor.submit(new Callable<ExecutionResult>() {
+                @Override
+                public ExecutionResult call() {
+                    final Interpreter interpreter = new Interpreter(program);
+                    interpreter.setExecutionMode(mode);
+                    interpreter.execute(false, inputCopy);
+                    return new ExecutionResult
+                        (interpreter.getResult(),
+                         interpreter.isProgramExecuted());
+                }
+            });
+    }
+
+    /**
+     * Run a batch of programs.
+     *
+     * @param programs the programs
+     * @param inputs the inputs of the programs, in the same order
+     * @return the results, in the order of the programs
+     */
+    public List<Future<ExecutionResult>> submitAll
+        (final List<SlxProgram> programs, final List<int[]> inputs) {
+        if (programs.size() != inputs.size()) {
+            throw new IllegalArgumentException
+                ("Every program needs one input!");
+        }
+        final List<Future<ExecutionResult>> results =
+            new ArrayList<Future<ExecutionResult>>(programs.size());
+        for (int i = 0; i < programs.size(); i++) {
+            results.add(this.submit(programs.get(i), inputs.get(i)));
+        }
+        return results;
+    }
+
+    /**
+     * Stop accepting programs. The programs already submitted are run.
+     * An executor given to the service is left running.
+     */
+    public void shutdown() {
+        if (this.ownExecutor) {
+            this.executor.shutdown();
+        }
+    }
+
+    /**
+     * Wait until the programs submitted before {@link #shutdown} have
+     * been run.
+     *
+     * @param timeout the longest time to wait
+     * @param unit the unit of the timeout
+     * @return <code>true</code> if all programs were run
+     * @throws InterruptedException if interrupted while waiting
+     */
+    public boolean awaitTermination(final long timeout, final TimeUnit unit)
+        throws InterruptedException {
+        return this.executor.awaitTermination(timeout, unit);
+    }
+}
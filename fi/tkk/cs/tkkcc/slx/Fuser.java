@@ -0,0 +1,303 @@
+package fi.tkk.cs.tkkcc.slx;
+
+/**
+ * Superinstruction fusion.
+ *
+ * Rewrites the instruction sequences the compiler emits over and over
+ * into single superinstructions (see {@link Opcode}), so that the
+ * interpreter dispatches fewer instructions. The fuser works on the
+ * decoded instructions of a program before the labels are resolved;
+ * a label always ends a fused sequence, so no jump can land inside
+ * one.
+ */
+final class Fuser {
+    /** Opcode of an instruction removed by fusion */
+    static final int DELETED = -1;
+
+    /**
+     * Not instantiable.
+     */
+    private Fuser() {
+        super();
+    }
+
+    /**
+     * Fuse the instructions of a program in place. Fused instructions
+     * are replaced by a superinstruction at the position of their first
+     * (or, for stores, their last) instruction, the other positions are
+     * marked {@link #DELETED}.
+     *
+     * @param opcodes the opcode of each instruction
+     * @param params1 the first parameter of each instruction
+     * @param params2 the second parameter of each instruction
+     * @param params3 the third parameter of each instruction, only
+     *                used by superinstructions
+     * @return the number of times each superinstruction was created,
+     *         indexed by <code>opcode - Opcode.COMMAND_COUNT</code>
+     */
+    static int[] fuse(final int[] opcodes, final int[] params1,
+                      final int[] params2, final int[] params3) {
+        final int[] counts = new int[Opcode.COUNT - Opcode.COMMAND_COUNT];
+        Fuser.fuseStores(opcodes, params1, counts);
+        Fuser.fuseSequences(opcodes, params1, params2, counts);
+        Fuser.fuseIncrements(opcodes, params1, params2, counts);
+        Fuser.fuseCalls(opcodes, params1, params2, params3, counts);
+        return counts;
+    }
+
+    /**
+     * Fuse each STL with the ENT that pushed its address. The ENT may
+     * be any distance before the STL, as long as both are in the same
+     * basic block: the stored expression only works above the address
+     * on the stack. Calls end the block, since the callee may leave an
+     * arbitrary number of values on the stack, and a WRI between them
+     * prevents the fusion, so that the step limit stops the program
+     * after the same output as without fusion.
+     *
+     * @param opcodes the opcodes
+     * @param params1 the first parameters
+     * @param counts the fusion counters
+     */
+    private static void fuseStores(final int[] opcodes, final int[] params1,
+                                   final int[] counts) {
+        // For each value on the stack, the index of the ENT that pushed
+        // it, or -1 if it was computed. Values below the start of the
+        // block are unknown.
+        final int[] producers = new int[opcodes.length + 1];
+        int depth = 0;
+        int address;
+        for (int i = 0; i < opcodes.length; i++) {
+            switch (opcodes[i]) {
+            case Opcode.ENT:
+                producers[depth++] = i;
+                break;
+            case Opcode.REA:
+                producers[depth++] = -1;
+                break;
+            case Opcode.LDL:
+            case Opcode.LDM:
+            case Opcode.NOT:
+            case Opcode.UMN:
+            case Opcode.ALC:
+                depth = Math.max(depth - 1, 0);
+                producers[depth++] = -1;
+                break;
+            case Opcode.ADD:
+            case Opcode.SUB:
+            case Opcode.MUL:
+            case Opcode.DIV:
+            case Opcode.REQ:
+            case Opcode.RNE:
+            case Opcode.RLT:
+            case Opcode.RGT:
+            case Opcode.RLE:
+            case Opcode.RGE:
+                depth = Math.max(depth - 2, 0);
+                producers[depth++] = -1;
+                break;
+            case Opcode.WRI:
+                depth = Math.max(depth - 1, 0);
+                // The ENT would be counted after the print, so a step
+                // limit could stop the program one print later
+                for (int j = 0; j < depth; j++) {
+                    producers[j] = -1;
+                }
+                break;
+            case Opcode.STM:
+                depth = Math.max(depth - 2, 0);
+                break;
+            case Opcode.SFR:
+                break;
+            case Opcode.STL:
+                address = depth >= 2 ? producers[depth - 2] : -1;
+                depth = Math.max(depth - 2, 0);
+                if (address >= 0) {
+                    opcodes[address] = DELETED;
+                    opcodes[i] = Opcode.STLI;
+                    params1[i] = params1[address];
+                    counts[Opcode.STLI - Opcode.COMMAND_COUNT]++;
+                }
+                break;
+            default:
+                // Labels, branches, calls and returns end the block
+                depth = 0;
+                break;
+            }
+        }
+    }
+
+    /**
+     * Fuse short sequences of consecutive instructions.
+     *
+     * @param opcodes the opcodes
+     * @param params1 the first parameters
+     * @param params2 the second parameters
+     * @param counts the fusion counters
+     */
+    private static void fuseSequences(final int[] opcodes,
+                                      final int[] params1,
+                                      final int[] params2,
+                                      final int[] counts) {
+        final int[] live = Fuser.live(opcodes);
+        int i = 0;
+        while (i < live.length) {
+            final int first = live[i];
+            final int op0 = opcodes[first];
+            final int op1 = Fuser.opcodeAt(opcodes, live, i + 1);
+            final int op2 = Fuser.opcodeAt(opcodes, live, i + 2);
+            final int op3 = Fuser.opcodeAt(opcodes, live, i + 3);
+            int fused = DELETED;
+            int length = 0;
+            if (op0 == Opcode.ENT && params1[first] == 1
+                && op1 == Opcode.ADD && op2 == Opcode.ADD) {
+                if (op3 == Opcode.LDM) {
+                    fused = Opcode.ALDE;
+                    length = 4;
+                } else {
+                    fused = Opcode.AIDX;
+                    length = 3;
+                }
+            } else if (op0 == Opcode.ENT && op1 == Opcode.LDL) {
+                fused = Opcode.LDLI;
+                length = 2;
+            } else if (op0 == Opcode.ENT && op1 == Opcode.ADD) {
+                fused = Opcode.ADDI;
+                length = 2;
+            } else if (op0 == Opcode.ENT && op1 == Opcode.REQ) {
+                fused = Opcode.REQI;
+                length = 2;
+            } else if (op0 == Opcode.RLT && op1 == Opcode.NOT
+                       && op2 == Opcode.JZE) {
+                fused = Opcode.BLT;
+                length = 3;
+            } else if (op0 == Opcode.RLT && op1 == Opcode.JZE) {
+                fused = Opcode.BGE;
+                length = 2;
+            } else if (op0 == Opcode.RGE && op1 == Opcode.JZE) {
+                // The peephole optimizer turns RLT; NOT into RGE
+                fused = Opcode.JLT;
+                length = 2;
+            } else if (op0 == Opcode.NOT && op1 == Opcode.JZE) {
+                fused = Opcode.JONE;
+                length = 2;
+            }
+
+            if (fused == DELETED) {
+                i++;
+                continue;
+            }
+            if (fused == Opcode.BLT || fused == Opcode.BGE
+                || fused == Opcode.JONE || fused == Opcode.JLT) {
+                // The jump target is the parameter of the JZE
+                params1[first] = params1[live[i + length - 1]];
+            }
+            opcodes[first] = fused;
+            for (int j = 1; j < length; j++) {
+                opcodes[live[i + j]] = DELETED;
+            }
+            counts[fused - Opcode.COMMAND_COUNT]++;
+            i += length;
+        }
+    }
+
+    /**
+     * Fuse loads, additions and stores of the same local into an
+     * increment of the local. Runs after the other passes, which
+     * create the LDLI, ADDI and STLI instructions.
+     *
+     * @param opcodes the opcodes
+     * @param params1 the first parameters
+     * @param params2 the second parameters
+     * @param counts the fusion counters
+     */
+    private static void fuseIncrements(final int[] opcodes,
+                                       final int[] params1,
+                                       final int[] params2,
+                                       final int[] counts) {
+        final int[] live = Fuser.live(opcodes);
+        for (int i = 0; i + 2 < live.length; i++) {
+            final int load = live[i];
+            final int add = live[i + 1];
+            final int store = live[i + 2];
+            if (opcodes[load] == Opcode.LDLI && opcodes[add] == Opcode.ADDI
+                && opcodes[store] == Opcode.STLI
+                && params1[load] == params1[store]) {
+                opcodes[load] = Opcode.INCL;
+                params2[load] = params1[add];
+                opcodes[add] = DELETED;
+                opcodes[store] = DELETED;
+                counts[Opcode.LDLI - Opcode.COMMAND_COUNT]--;
+                counts[Opcode.ADDI - Opcode.COMMAND_COUNT]--;
+                counts[Opcode.STLI - Opcode.COMMAND_COUNT]--;
+                counts[Opcode.INCL - Opcode.COMMAND_COUNT]++;
+                i += 2;
+            }
+        }
+    }
+
+    /**
+     * Fuse each SFR with the SBR right after it into a call, whose
+     * parameters are the callee, the number of arguments and the frame
+     * size of the caller.
+     *
+     * @param opcodes the opcodes
+     * @param params1 the first parameters
+     * @param params2 the second parameters
+     * @param params3 the third parameters
+     * @param counts the fusion counters
+     */
+    private static void fuseCalls(final int[] opcodes, final int[] params1,
+                                  final int[] params2, final int[] params3,
+                                  final int[] counts) {
+        final int[] live = Fuser.live(opcodes);
+        for (int i = 0; i + 1 < live.length; i++) {
+            final int frame = live[i];
+            final int call = live[i + 1];
+            if (opcodes[frame] == Opcode.SFR && opcodes[call] == Opcode.SBR) {
+                opcodes[frame] = Opcode.CALL;
+                params3[frame] = params1[frame];
+                params1[frame] = params1[call];
+                params2[frame] = params2[call];
+                opcodes[call] = DELETED;
+                counts[Opcode.CALL - Opcode.COMMAND_COUNT]++;
+                i++;
+            }
+        }
+    }
+
+    /**
+     * Get the indexes of the instructions that have not been deleted.
+     *
+     * @param opcodes the opcodes
+     * @return the indexes, in order
+     */
+    private static int[] live(final int[] opcodes) {
+        int count = 0;
+        for (int i = 0; i < opcodes.length; i++) {
+            if (opcodes[i] != DELETED) {
+                count++;
+            }
+        }
+        final int[] live = new int[count];
+        count = 0;
+        for (int i = 0; i < opcodes.length; i++) {
+            if (opcodes[i] != DELETED) {
+                live[count++] = i;
+            }
+        }
+        return live;
+    }
+
+    /**
+     * Get the opcode of a live instruction.
+     *
+     * @param opcodes the opcodes
+     * @param live the indexes of the live instructions
+     * @param i the position in the live instructions
+     * @return the opcode, or {@link #DELETED} past the end of the program
+     */
+    private static int opcodeAt(final int[] opcodes, final int[] live,
+                                final int i) {
+        return i < live.length ? opcodes[live[i]] : DELETED;
+    }
+}
@@ -0,0 +1,314 @@
+package fi.tkk.cs.tkkcc.slx;
+
+import java.util.Arrays;
+import java.util.LinkedHashMap;
+import java.util.Map;
+
+/**
+ * Garbage collected heap of the SLX machine.
+ *
+ * Without a collector ALC moves the heap pointer down and RET moves it
+ * back, so an array lives as long as the call that allocated it and a
+ * program that allocates in a loop runs out of memory. This heap
+ * allocates the arrays from the heap segment of the memory and frees
+ * them with a mark-sweep collector when it runs full.
+ *
+ * An array is a block of its length plus two words: a header with the
+ * size of the block, the length field and the elements. The pointer to
+ * the array is the address of the length field, as with the plain
+ * allocator, so the code reading the arrays does not change. Freed
+ * blocks get a header too, and the blocks tile the used part of the
+ * heap, from the allocation pointer up to the top of the memory.
+ *
+ * The words of the SLX machine carry no types, so the roots can not be
+ * told apart from integers: any word on the operand stack, in the frame
+ * segment or in a live array that is the pointer of an allocated array
+ * keeps that array alive. An integer that happens to equal a pointer
+ * only keeps garbage around; it is never changed. That is why the
+ * collector does not move the arrays. The pause of a collection is
+ * bounded by the size of the memory.
+ */
+final class Heap {
+    /** Header flag of a free block */
+    private static final int FREE = 1;
+    /** Words of a block that are not elements */
+    private static final int OVERHEAD = 2;
+    /** Initial capacity of the free list and the mark stack */
+    private static final int INITIAL_CAPACITY = 64;
+
+    /** The memory holding the heap */
+    private final Memory memory;
+    /** Lowest address of the heap */
+    private final int base;
+    /** First address above the heap */
+    private final int limit;
+    /** Lowest allocated address; the words below it are unused */
+    private int top;
+    /** Bit per heap word: set at the pointer of each allocated array */
+    private final long[] starts;
+    /** Bit per heap word: set at the pointer of each reachable array */
+    private final long[] marks;
+    /** Addresses of the free blocks, in address order */
+    private int[] freeBlocks = new int[INITIAL_CAPACITY];
+    /** Sizes of the free blocks */
+    private int[] freeSizes = new int[INITIAL_CAPACITY];
+    /** Number of free blocks */
+    private int freeCount = 0;
+    /** Arrays marked but not yet scanned */
+    private int[] pending = new int[INITIAL_CAPACITY];
+    /** Number of arrays to scan */
+    private int pendingCount = 0;
+    /** Number of words in allocated blocks */
+    private long usedWords = 0;
+    /** Number of collections */
+    private long collections = 0;
+    /** Number of allocations */
+    private long allocations = 0;
+    /** Number of words allocated, including the headers */
+    private long allocatedWords = 0;
+    /** Number of words freed by the collector */
+    private long reclaimedWords = 0;
+    /** Total time spent collecting */
+    private long pauseNanos = 0;
+    /** Longest collection */
+    private long maxPauseNanos = 0;
+
+    /**
+     * Initialize a new heap in the heap segment of a memory.
+     *
+     * @param memory the memory
+     */
+    Heap(final Memory memory) {
+        super();
+        this.memory = memory;
+        this.base = memory.getHeapBase();
+        this.limit = memory.size();
+        this.top = this.limit;
+        final int words = (this.limit - this.base + 63) / 64;
+        this.starts = new long[words];
+        this.marks = new long[words];
+    }
+
+    /**
+     * Allocate an array, collecting the garbage if the heap is full.
+     *
+     * @param length the number of elements
+     * @param stack the operand stack, part of the roots
+     * @param sp the number of values on the operand stack
+     * @return the pointer to the length field of the array
+     * @throws ExecutionException if the array does not fit in the heap
+     */
+    int allocate(final int length, final int[] stack, final int sp) {
+        if (length < 0) {
+            throw Engine.fail("Negative array size");
+        }
+        if (length > this.limit - this.base - OVERHEAD) {
+            throw Engine.fail("Heap out of memory bounds");
+        }
+        final int size = length + OVERHEAD;
+        int block = this.reserve(size);
+        if (block < 0) {
+            this.collect(stack, sp);
+            block = this.reserve(size);
+            if (block < 0) {
+                throw Engine.fail("Heap out of memory bounds");
+            }
+        }
+        final int pointer = block + 1;
+        this.memory.set(block, size << 1);
+        this.memory.set(pointer, length);
+        for (int i = pointer + 1; i < block + size; i++) {
+            this.memory.set(i, 0);
+        }
+        Heap.set(this.starts, pointer - this.base);
+        this.usedWords += size;
+        this.allocations++;
+        this.allocatedWords += size;
+        return pointer;
+    }
+
+    /**
+     * Take a block from the first free block large enough, or from the
+     * unused words below the allocation pointer.
+     *
+     * @param size the number of words
+     * @return the address of the block, -1 if there is no room
+     */
+    private int reserve(final int size) {
+        for (int i = 0; i < this.freeCount; i++) {
+            final int free = this.freeSizes[i];
+            if (free >= size) {
+                final int block = this.freeBlocks[i];
+                this.freeBlocks[i] = block + size;
+                this.freeSizes[i] = free - size;
+                if (free > size) {
+                    this.memory.set(block + size, ((free - size) << 1) | FREE);
+                }
+                return block;
+            }
+        }
+        if (this.top - this.base < size) {
+            return -1;
+        }
+        this.top -= size;
+        return this.top;
+    }
+
+    /**
+     * Free the arrays that can not be reached from the roots.
+     *
+     * @param stack the operand stack
+     * @param sp the number of values on the operand stack
+     */
+    private void collect(final int[] stack, final int sp) {
+        final long start = System.nanoTime();
+        for (int i = 0; i < sp; i++) {
+            this.mark(stack[i]);
+        }
+        final int frames = this.memory.getFrameExtent();
+        for (int address = 0; address < frames; address++) {
+            this.mark(this.memory.get(address));
+        }
+        while (this.pendingCount > 0) {
+            final int pointer = this.pending[--this.pendingCount];
+            final int end = pointer - 1 + (this.memory.get(pointer - 1) >>> 1);
+            for (int address = pointer + 1; address < end; address++) {
+                this.mark(this.memory.get(address));
+            }
+        }
+        this.sweep();
+        final long pause = System.nanoTime() - start;
+        this.collections++;
+        this.pauseNanos += pause;
+        this.maxPauseNanos = Math.max(this.maxPauseNanos, pause);
+    }
+
+    /**
+     * Mark the array a word points to, if it is the pointer of an
+     * allocated array not marked yet.
+     *
+     * @param word the word
+     */
+    private void mark(final int word) {
+        if (word <= this.base || word >= this.limit) {
+            return;
+        }
+        final int index = word - this.base;
+        if (!Heap.get(this.starts, index) || Heap.get(this.marks, index)) {
+            return;
+        }
+        Heap.set(this.marks, index);
+        if (this.pendingCount == this.pending.length) {
+            this.pending = Arrays.copyOf(this.pending, this.pendingCount * 2);
+        }
+        this.pending[this.pendingCount++] = word;
+    }
+
+    /**
+     * Free the unmarked arrays, join the adjacent free blocks and clear
+     * the marks. The free blocks next to the allocation pointer are
+     * given back to the unused words.
+     */
+    private void sweep() {
+        this.freeCount = 0;
+        int run = -1;
+        int block = this.top;
+        while (block < this.limit) {
+            final int header = this.memory.get(block);
+            final int size = header >>> 1;
+            final int index = block + 1 - this.base;
+            if ((header & FREE) == 0 && Heap.get(this.marks, index)) {
+                Heap.clear(this.marks, index);
+                if (run >= 0) {
+                    this.free(run, block);
+                    run = -1;
+                }
+            } else {
+                if ((header & FREE) == 0) {
+                    Heap.clear(this.starts, index);
+                    this.usedWords -= size;
+                    this.reclaimedWords += size;
+                }
+                if (run < 0) {
+                    run = block;
+                }
+            }
+            block += size;
+        }
+        if (run >= 0) {
+            this.free(run, this.limit);
+        }
+    }
+
+    /**
+     * Make a free block of the words from one address to another.
+     *
+     * @param from the first address
+     * @param to the first address after the block
+     */
+    private void free(final int from, final int to) {
+        if (from == this.top) {
+            this.top = to;
+            return;
+        }
+        if (this.freeCount == this.freeBlocks.length) {
+            this.freeBlocks = Arrays.copyOf(this.freeBlocks,
+                                            this.freeCount * 2);
+            this.freeSizes = Arrays.copyOf(this.freeSizes,
+                                           this.freeCount * 2);
+        }
+        this.memory.set(from, ((to - from) << 1) | FREE);
+        this.freeBlocks[this.freeCount] = from;
+        this.freeSizes[this.freeCount] = to - from;
+        this.freeCount++;
+    }
+
+    /**
+     * Get the collector statistics.
+     *
+     * @return statistic name -&gt; value
+     */
+    Map<String, Long> getStatistics() {
+        final Map<String, Long> statistics = new LinkedHashMap<String, Long>();
+        statistics.put("collections", this.collections);
+        statistics.put("pauseNanos", this.pauseNanos);
+        statistics.put("maxPauseNanos", this.maxPauseNanos);
+        statistics.put("allocations", this.allocations);
+        statistics.put("allocatedWords", this.allocatedWords);
+        statistics.put("reclaimedWords", this.reclaimedWords);
+        statistics.put("usedWords", this.usedWords);
+        statistics.put("heapWords", (long) (this.limit - this.base));
+        return statistics;
+    }
+
+    /**
+     * Test a bit.
+     *
+     * @param bits the bitmap
+     * @param index the index of the bit
+     * @return <code>true</code> if the bit is set
+     */
+    private static boolean get(final long[] bits, final int index) {
+        return (bits[index >>> 6] & (1L << index)) != 0;
+    }
+
+    /**
+     * Set a bit.
+     *
+     * @param bits the bitmap
+     * @param index the index of the bit
+     */
+    private static void set(final long[] bits, final int index) {
+        bits[index >>> 6] |= 1L << index;
+    }
+
+    /**
+     * Clear a bit.
+     *
+     * @param bits the bitmap
+     * @param index the index of the bit
+     */
+    private static void clear(final long[] bits, final int index) {
+        bits[index >>> 6] &= ~(1L << index);
+    }
+}
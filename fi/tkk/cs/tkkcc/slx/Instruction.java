@@ -36,11 +36,23 @@ public class Instruction {
      * @param integers the parameters
      */
     Instruction(final CommandWord command, final Integer[] integers) {
-    	super();
-    	this.commandWord = command;
-    	this.commandParameter = integers;
-    	this.sourceLineNumber = 0;
-	}
+        this(command, integers, 0);
+    }
+
+    /**
+     * Initialize a new instruction.
+     *
+     * @param command the command
+     * @param integers the parameters
+     * @param lineNumber the source code line number
+     */
+    Instruction(final CommandWord command, final Integer[] integers,
+                final int lineNumber) {
+        super();
+        this.commandWord = command;
+        this.commandParameter = integers;
+        this.sourceLineNumber = lineNumber;
+    }
 
     /**
      * Parse a source code line.
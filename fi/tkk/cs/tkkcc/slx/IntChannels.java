@@ -0,0 +1,382 @@
+package fi.tkk.cs.tkkcc.slx;
+
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.io.UncheckedIOException;
+import java.nio.ByteOrder;
+import java.nio.IntBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.file.Path;
+import java.nio.file.StandardOpenOption;
+import java.util.NoSuchElementException;
+
+/**
+ * Factory of integer sources and sinks for SLX programs.
+ *
+ * The text format has one decimal integer per line. Lines that are not
+ * integers are skipped when reading, as the interpreter has always
+ * done. The binary format is a sequence of 32 bit big endian integers.
+ *
+ * The streams are buffered and read or written in large blocks, without
+ * creating objects per integer. Failures of the underlying streams are
+ * thrown as UncheckedIOExceptions.
+ */
+public final class IntChannels {
+    /** Size of the stream buffers, in bytes */
+    private static final int BUFFER_SIZE = 1 << 16;
+    /** Largest part of a file mapped at once, in bytes */
+    private static final long MAX_WINDOW_SIZE = 1L << 30;
+
+    /**
+     * No instances.
+     */
+    private IntChannels() {
+        super();
+    }
+
+    /**
+     * Read integers from an array.
+     *
+     * @param values the integers, not copied
+     * @return the source
+     */
+    public static IntInput fromArray(final int[] values) {
+        if (values == null) {
+            throw new IllegalArgumentException("Values may not be null!");
+        }
+        return new IntInput() {
+            private int next = 0;
+
+            @Override
+            public int read() {
+                if (this.next >= values.length) {
+                    throw new NoSuchElementException();
+                }
+                return values[this.next++];
+            }
+        };
+    }
+
+    /**
+     * Read integers from a text stream.
+     *
+     * @param in the stream, not closed
+     * @return the source
+     */
+    public static IntInput fromText(final InputStream in) {
+        if (in == null) {
+            throw new IllegalArgumentException("Stream may not be null!");
+        }
+        return new TextInput(in);
+    }
+
+    /**
+     * Read integers from a binary stream. Trailing bytes that do not
+     * make a whole integer are ignored.
+     *
+     * @param in the stream, not closed
+     * @return the source
+     */
+    public static IntInput fromBinary(final InputStream in) {
+        if (in == null) {
+            throw new IllegalArgumentException("Stream may not be null!");
+        }
+        return new IntInput() {
+            private final byte[] buffer = new byte[BUFFER_SIZE];
+            private int position = 0;
+            private int limit = 0;
+
+            @Override
+            public int read() {
+                if (this.limit - this.position < 4) {
+                    this.fill();
+                }
+                final byte[] b = this.buffer;
+                final int p = this.position;
+                this.position = p + 4;
+                return (b[p] << 24) | ((b[p + 1] & 0xff) << 16)
+                    | ((b[p + 2] & 0xff) << 8) | (b[p + 3] & 0xff);
+            }
+
+            /**
+             * Read until the buffer holds at least one integer.
+             */
+            private void fill() {
+                final int left = this.limit - this.position;
+                System.arraycopy(this.buffer, this.position,
+                                 this.buffer, 0, left);
+                this.position = 0;
+                this.limit = left;
+                try {
+                    while (this.limit < 4) {
+                        final int n = in.read(this.buffer, this.limit,
+                                              this.buffer.length - this.limit);
+                        if (n < 0) {
+                            throw new NoSuchElementException();
+                        }
+                        this.limit += n;
+                    }
+                } catch (IOException e) {
+                    throw new UncheckedIOException(e);
+                }
+            }
+        };
+    }
+
+    /**
+     * Read integers from a binary file mapped to memory. The file is
+     * mapped when the source is created; it is not read through the
+     * Java heap. Trailing bytes that do not make a whole integer are
+     * ignored.
+     *
+     * @param file the file
+     * @return the source
+     * @throws IOException if the file can not be mapped
+     */
+    public static IntInput fromMappedFile(final Path file)
+        throws IOException {
+        final IntBuffer[] windows;
+        try (FileChannel channel =
+             FileChannel.open(file, StandardOpenOption.READ)) {
+            final long size = channel.size() & ~3L;
+            final int count = (int) ((size + MAX_WINDOW_SIZE - 1)
+                                     / MAX_WINDOW_SIZE);
+            windows = new IntBuffer[count];
+            for (int i = 0; i < count; i++) {
+                final long start = i * MAX_WINDOW_SIZE;
+                windows[i] = channel
+                    .map(FileChannel.MapMode.READ_ONLY, start,
+                         Math.min(MAX_WINDOW_SIZE, size - start))
+                    .order(ByteOrder.BIG_ENDIAN).asIntBuffer();
+            }
+        }
+        return new IntInput() {
+            private int window = 0;
+
+            @Override
+            public int read() {
+                while (this.window < windows.length) {
+                    final IntBuffer current = windows[this.window];
+                    if (current.hasRemaining()) {
+                        return current.get();
+                    }
+                    // Let the exhausted mapping be collected
+                    windows[this.window++] = null;
+                }
+                throw new NoSuchElementException();
+            }
+        };
+    }
+
+    /**
+     * Write integers to a text stream.
+     *
+     * @param out the stream, flushed but not closed
+     * @return the sink
+     */
+    public static IntOutput toText(final OutputStream out) {
+        if (out == null) {
+            throw new IllegalArgumentException("Stream may not be null!");
+        }
+        final byte[] separator = System.lineSeparator().getBytes();
+        return new BufferedOutput(out) {
+            @Override
+            public void write(final int value) {
+                final byte[] b = this.reserve(11 + separator.length);
+                int p = this.position;
+                // Digits are generated from the end of the number, of a
+                // negative value so that the smallest int fits
+                int v = value < 0 ? value : -value;
+                final int start = p;
+                do {
+                    b[p++] = (byte) ('0' - v % 10);
+                    v /= 10;
+                } while (v != 0);
+                if (value < 0) {
+                    b[p++] = '-';
+                }
+                for (int i = start, j = p - 1; i < j; i++, j--) {
+                    final byte t = b[i];
+                    b[i] = b[j];
+                    b[j] = t;
+                }
+                for (int i = 0; i < separator.length; i++) {
+                    b[p++] = separator[i];
+                }
+                this.position = p;
+            }
+        };
+    }
+
+    /**
+     * Write integers to a binary stream.
+     *
+     * @param out the stream, flushed but not closed
+     * @return the sink
+     */
+    public static IntOutput toBinary(final OutputStream out) {
+        if (out == null) {
+            throw new IllegalArgumentException("Stream may not be null!");
+        }
+        return new BufferedOutput(out) {
+            @Override
+            public void write(final int value) {
+                final byte[] b = this.reserve(4);
+                final int p = this.position;
+                b[p] = (byte) (value >>> 24);
+                b[p + 1] = (byte) (value >>> 16);
+                b[p + 2] = (byte) (value >>> 8);
+                b[p + 3] = (byte) value;
+                this.position = p + 4;
+            }
+        };
+    }
+
+    /**
+     * Source reading one decimal integer per line.
+     */
+    private static final class TextInput implements IntInput {
+        /** Largest magnitude of an int, that of the smallest value */
+        private static final long MAX_MAGNITUDE = 1L << 31;
+
+        /** The stream */
+        private final InputStream in;
+        /** Bytes read from the stream */
+        private final byte[] buffer = new byte[BUFFER_SIZE];
+        /** Index of the next unread byte */
+        private int position = 0;
+        /** Number of bytes in the buffer */
+        private int limit = 0;
+
+        /**
+         * Initialize a new source.
+         *
+         * @param in the stream
+         */
+        TextInput(final InputStream in) {
+            super();
+            this.in = in;
+        }
+
+        @Override
+        public int read() {
+            int b = this.next();
+            while (b >= 0) {
+                while (b == ' ' || b == '\t') {
+                    b = this.next();
+                }
+                boolean negative = false;
+                if (b == '-' || b == '+') {
+                    negative = b == '-';
+                    b = this.next();
+                }
+                long magnitude = 0;
+                int digits = 0;
+                while (b >= '0' && b <= '9') {
+                    if (magnitude <= MAX_MAGNITUDE) {
+                        magnitude = magnitude * 10 + (b - '0');
+                    }
+                    digits++;
+                    b = this.next();
+                }
+                while (b == ' ' || b == '\t' || b == '\r') {
+                    b = this.next();
+                }
+                final boolean valid = digits > 0
+                    && (b == '\n' || b < 0)
+                    && magnitude <= (negative ? MAX_MAGNITUDE
+                                     : MAX_MAGNITUDE - 1);
+                // Skip the rest of the line
+                while (b != '\n' && b >= 0) {
+                    b = this.next();
+                }
+                if (valid) {
+                    return (int) (negative ? -magnitude : magnitude);
+                }
+                b = this.next();
+            }
+            throw new NoSuchElementException();
+        }
+
+        /**
+         * Read the next byte.
+         *
+         * @return the byte, -1 at the end of the stream
+         */
+        private int next() {
+            if (this.position == this.limit) {
+                try {
+                    // Read what is available, so that a terminal
+                    // line is returned as soon as it is complete
+                    final int n = this.in.read(this.buffer);
+                    if (n <= 0) {
+                        return -1;
+                    }
+                    this.position = 0;
+                    this.limit = n;
+                } catch (IOException e) {
+                    throw new UncheckedIOException(e);
+                }
+            }
+            return this.buffer[this.position++] & 0xff;
+        }
+    }
+
+    /**
+     * Sink collecting the bytes of the integers in a buffer.
+     */
+    private abstract static class BufferedOutput implements IntOutput {
+        /** The stream */
+        private final OutputStream out;
+        /** Bytes not yet written to the stream */
+        protected final byte[] buffer = new byte[BUFFER_SIZE];
+        /** Number of bytes in the buffer */
+        protected int position = 0;
+
+        /**
+         * Initialize a new sink.
+         *
+         * @param out the stream
+         */
+        BufferedOutput(final OutputStream out) {
+            super();
+            this.out = out;
+        }
+
+        /**
+         * Make room in the buffer.
+         *
+         * @param bytes the number of bytes needed
+         * @return the buffer
+         */
+        protected final byte[] reserve(final int bytes) {
+            if (this.position + bytes > this.buffer.length) {
+                this.drain();
+            }
+            return this.buffer;
+        }
+
+        /**
+         * Write the buffer to the stream.
+         */
+        private void drain() {
+            try {
+                this.out.write(this.buffer, 0, this.position);
+            } catch (IOException e) {
+                throw new UncheckedIOException(e);
+            }
+            this.position = 0;
+        }
+
+        @Override
+        public void flush() {
+            this.drain();
+            try {
+                this.out.flush();
+            } catch (IOException e) {
+                throw new UncheckedIOException(e);
+            }
+        }
+    }
+}
@@ -0,0 +1,16 @@
+package fi.tkk.cs.tkkcc.slx;
+
+/**
+ * Source of the integers an SLX program reads with REA.
+ *
+ * Ready made sources are created by {@link IntChannels}.
+ */
+public interface IntInput {
+    /**
+     * Read the next integer.
+     *
+     * @return the integer
+     * @throws java.util.NoSuchElementException at the end of the input
+     */
+    int read();
+}
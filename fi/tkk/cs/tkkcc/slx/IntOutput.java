@@ -0,0 +1,22 @@
+package fi.tkk.cs.tkkcc.slx;
+
+/**
+ * Sink of the integers an SLX program writes with WRI.
+ *
+ * Ready made sinks are created by {@link IntChannels}.
+ */
+public interface IntOutput {
+    /**
+     * Write an integer. The integer may be buffered until the next
+     * flush.
+     *
+     * @param value the integer
+     */
+    void write(int value);
+
+    /**
+     * Write out the buffered integers. Called by the interpreter when
+     * the program stops.
+     */
+    void flush();
+}
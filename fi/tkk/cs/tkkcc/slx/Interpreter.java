@@ -1,15 +1,15 @@
 package fi.tkk.cs.tkkcc.slx;
 
-import java.io.BufferedReader;
+import java.io.FileInputStream;
 import java.io.FileNotFoundException;
-import java.io.FileReader;
 import java.io.IOException;
-import java.io.InputStreamReader;
-import java.util.ArrayList;
-import java.util.HashMap;
+import java.io.InputStream;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.Paths;
+import java.util.Collections;
 import java.util.List;
 import java.util.Map;
-import java.util.Stack;
 import java.util.logging.Formatter;
 import java.util.logging.Level;
 import java.util.logging.LogRecord;
@@ -26,34 +26,41 @@ public final class Interpreter {
     /** Log generator. */
     private static final Logger log = 
         Logger.getLogger(Interpreter.class.getName());
-    
-    /** Memory size of the SLX machine */
-    private final static int MEM_SIZE = 5000;
-    /** Maximum length of the SLX program */
-    private final static int MAX_PROGRAM_SIZE = 1000000;
-    
-    /** Number of words reserved in a frame for interpreter internal use */
-    private final static int FRAME_SIZE = 2;
-
-    /** The program to interpret */
-    private final List<Instruction> program;
-    /** Label -&gt; pc mapping of the program */
-    private final Map<Integer, Integer> labelMap;
-    /** List of integers that the program has prinetd */
-    private final List<Integer> result;
-
-    /** The memory of the SLX machine */
-    private final Integer[] memory;
-    /** The stack of the SLX machine */
-    private final Stack<Integer> stack;
-    /** The program counter (pc) register */
-    private int programCounter = 0;
-    /** The frame pointer (fp) register */
-    private int framePointer = 0;
-    /** The heap pointer (hp) register */
-    private int heapPointer = MEM_SIZE;
+
+    /** The program as loaded */
+    private final SlxProgram source;
+    /** The program to interpret, labels resolved by the linker */
+    private LinkedProgram program;
+    /** The state of the SLX machine */
+    private Machine machine;
+    /** The engine executing the program */
+    private Engine engine;
+    /** How the program is executed */
+    private ExecutionMode executionMode = ExecutionMode.SWITCH;
+    /** Number of words of memory */
+    private int memorySize = Machine.MEM_SIZE;
+    /** Number of words for the frames, 0 to share memory with the heap */
+    private int stackSize = 0;
+    /** True to keep the heap outside the Java heap */
+    private boolean offHeap = false;
+    /** Maximum number of steps to execute */
+    private int stepLimit = Machine.MAX_PROGRAM_SIZE;
     /** True if the program has already been executed */
     private boolean programExecuted = false;
+    /** True once the execution has started, in one slice or more */
+    private boolean started = false;
+    /** True if the program is never traced, whatever the logging level */
+    private final boolean quiet;
+    /** The integers the program has printed */
+    private final ResultList result = new ResultList();
+    /** True if the printed integers are kept in the result */
+    private boolean collectingResults = true;
+    /** True if the execution is profiled */
+    private boolean profiling = false;
+    /** True if the arrays are allocated from a garbage collected heap */
+    private boolean garbageCollected = false;
+    /** Optimizer of the program before linking, null if none */
+    private PeepholeOptimizer peephole = null;
 	
     /**
      * Initialize a new SLX interpreter.
@@ -65,15 +72,9 @@ public final class Interpreter {
         if (fileName == null) {
             throw new IllegalArgumentException("Filename may not be null!");
         }
-        this.program = new ArrayList<Instruction>();
-        this.labelMap = new HashMap<Integer, Integer>();
-        this.stack = new Stack<Integer>();
-        this.result = new ArrayList<Integer>();
-        this.memory = new Integer[MEM_SIZE];
-        for(int i = 0; i < this.memory.length; i++) {
-            this.memory[i] = new Integer(0);
-        }
-        this.readFile(fileName);
+        this.quiet = false;
+        this.source = Interpreter.readFile(fileName);
+        this.prepare();
     }
 
     /**
@@ -92,67 +93,279 @@ public final class Interpreter {
         Interpreter.log.setLevel(Level.SEVERE);
         Interpreter.parseLoggingLevel(loggingLevel);
 	
-        this.stack = new Stack<Integer>();
-        this.result = new ArrayList<Integer>();
-        this.memory = new Integer[MEM_SIZE];
-        for(int i = 0; i < this.memory.length; i++) {
-            this.memory[i] = new Integer(0);
+        this.quiet = false;
+        this.source = slxProgram;
+        this.prepare();
+    }
+
+    /**
+     * Initialize a new SLX interpreter that leaves the logging
+     * configuration alone and never traces the program, so that any
+     * number of interpreters can run in parallel. Failures are still
+     * logged.
+     *
+     * @param slxProgram instance of slxProgram, not modified
+     */
+    public Interpreter(final SlxProgram slxProgram) {
+        super();
+        if (slxProgram == null) {
+            throw new IllegalArgumentException("Parameter may not be null!");
         }
-        this.program = slxProgram.getProgram();
-        this.labelMap = slxProgram.getLabelMap();
+        this.quiet = true;
+        this.source = slxProgram;
+        this.prepare();
     }
 
     /**
      * Read an SLX program from a file.
      *
      * @param fileName the name of the SLX program file
+     * @return the program, empty if it could not be read
      */
-    private void readFile(final String fileName) {
-        BufferedReader reader = null;
+    private static SlxProgram readFile(final String fileName) {
+        SlxProgram program = new SlxProgram();
         log.info("Start reading file " + fileName);
         try {
-            try {
-                reader = new BufferedReader(new FileReader(fileName));
-                
-                int instructionNumber = 0;
-                int sourceLineNumber = 0;
-                while (reader.ready()) {
-                    String line = reader.readLine().trim();
-                    sourceLineNumber++;
-                    // ignore empty lines and comment lines
-                    if (line.length() > 0 && !line.startsWith(";")) {
-                        try {
-                            Instruction c = 
-                                new Instruction(line, sourceLineNumber);
-                            if (c.getCommandWord().equals(CommandWord.LAB)) {
-                                // Add labels also to label -> pc map
-                                this.labelMap.put
-                                    (c.getCommandParameter(0), 
-                                     new Integer(instructionNumber));
-                            }
-                            this.program.add(c);
-                            instructionNumber++;
-                        } catch (IllegalInstructionException e) {
-                            log.severe(e.getMessage());
-                            this.program.clear();
-                            return;
-                        }
-                    }
-                }
-            } finally {
-                if (reader != null) {
-                    reader.close();
+            final Path path = Paths.get(fileName);
+            if (Files.isRegularFile(path) && SlxObjectFile.isObjectFile(path)) {
+                program = SlxObjectFile.read(path);
+            } else {
+                final InputStream in = new FileInputStream(fileName);
+                try {
+                    program = SlxTextLoader.load(in);
+                } finally {
+                    in.close();
                 }
             }
+        } catch (IllegalInstructionException e) {
+            log.severe(e.getMessage());
+            return new SlxProgram();
         } catch (FileNotFoundException e) {
             log.severe("File '" + fileName + "' not found!");
         } catch (IOException e) {
             log.severe("Unknown IO exception");
             e.printStackTrace();			
         }
-        log.info("Reading done. Success? " + !this.program.isEmpty());
+        log.info("Reading done. Success? " + (program.size() > 0));
+        return program;
     }
     
+    /**
+     * Resolve the labels of the loaded program. A program that refers
+     * to an undefined label is rejected here instead of failing when
+     * the branch is executed.
+     *
+     * @param slxProgram the loaded program
+     * @param fuse <code>true</code> to create superinstructions
+     * @return the linked program, empty if linking failed
+     */
+    private static LinkedProgram link(final SlxProgram slxProgram,
+                                      final boolean fuse) {
+        try {
+            return Linker.link(slxProgram, fuse);
+        } catch (IllegalInstructionException e) {
+            log.severe(e.getMessage());
+            return Linker.link(new SlxProgram());
+        }
+    }
+
+    /**
+     * Choose the execution engine and link the program for it.
+     */
+    private void prepare() {
+        this.engine = this.createEngine(this.executionMode);
+        // A program that could not be linked is not linked again
+        if (this.program == null || !this.program.isEmpty()) {
+            final SlxProgram code = this.peephole == null
+                ? this.source : this.peephole.optimize(this.source);
+            this.program = Interpreter.link(code, this.engine.isFusing());
+        }
+        this.machine = this.createMachine();
+    }
+
+    /**
+     * Create the machine with the configured memory and step limit.
+     *
+     * @return the machine
+     */
+    private Machine createMachine() {
+        final Memory memory;
+        if (this.stackSize != 0) {
+            memory = Memory.segmented(this.memorySize, this.stackSize,
+                                      this.offHeap);
+        } else if (this.garbageCollected) {
+            // The collected heap needs a segment of its own
+            memory = Memory.segmented(this.memorySize, this.memorySize / 2,
+                                      this.offHeap);
+        } else {
+            memory = Memory.shared(this.memorySize);
+        }
+        return new Machine(this.program, memory, this.stepLimit,
+                           this.garbageCollected);
+    }
+
+    /**
+     * Check that the machine may still be configured.
+     */
+    private void checkNotExecuted() {
+        if (this.started) {
+            throw new IllegalStateException
+                ("Program has already been executed!");
+        }
+    }
+
+    /**
+     * Set the size of the memory. The default is 5000 words.
+     *
+     * @param words the number of addressable words
+     */
+    public void setMemorySize(final int words) {
+        if (words <= this.stackSize || words <= 0) {
+            throw new IllegalArgumentException
+                ("Memory size must be positive and larger than the stack!");
+        }
+        this.checkNotExecuted();
+        this.memorySize = words;
+        this.machine = this.createMachine();
+    }
+
+    /**
+     * Set the size of the frame segment of the memory. With the default
+     * 0 the frames and the heap share the memory, growing towards each
+     * other, and all of it is allocated up front. Otherwise the frames
+     * are limited to the given number of words at the bottom of the
+     * memory, the heap gets the rest, and both segments are allocated
+     * as the program uses them.
+     *
+     * @param words the number of words for the frames, or 0
+     */
+    public void setStackSize(final int words) {
+        if (words < 0 || words >= this.memorySize) {
+            throw new IllegalArgumentException
+                ("Stack size must be between 0 and the memory size!");
+        }
+        this.checkNotExecuted();
+        this.stackSize = words;
+        this.machine = this.createMachine();
+    }
+
+    /**
+     * Keep the heap segment in a direct buffer outside the Java heap.
+     * Only used if the stack size has been set or the heap is garbage
+     * collected.
+     *
+     * @param offHeap <code>true</code> for a direct buffer
+     */
+    public void setOffHeapMemory(final boolean offHeap) {
+        this.checkNotExecuted();
+        this.offHeap = offHeap;
+        this.machine = this.createMachine();
+    }
+
+    /**
+     * Set the maximum number of instructions executed. The default is
+     * one million.
+     *
+     * @param steps the step limit
+     */
+    public void setStepLimit(final int steps) {
+        if (steps <= 0 || steps > Machine.MAX_STEP_LIMIT) {
+            throw new IllegalArgumentException
+                ("Step limit must be between 1 and " +
+                 Machine.MAX_STEP_LIMIT + "!");
+        }
+        this.checkNotExecuted();
+        this.stepLimit = steps;
+        this.machine = this.createMachine();
+    }
+
+    /**
+     * Choose the execution engine. The tracing engine is only used if
+     * its output would be logged and the interpreter is not quiet, a
+     * profiled program always runs on the profiling engine, and a
+     * garbage collected program runs on the switch engine.
+     *
+     * @param mode the execution mode
+     * @return the engine
+     */
+    private Engine createEngine(final ExecutionMode mode) {
+        if (this.profiling) {
+            return new ProfilingEngine();
+        }
+        if (!this.quiet && log.isLoggable(Level.INFO)) {
+            return new TraceEngine();
+        }
+        if (this.garbageCollected) {
+            return new VerifiedEngine();
+        }
+        switch (mode) {
+        case CLOSURE:
+            return new ClosureEngine();
+        case BYTECODE:
+            return new BytecodeEngine();
+        case REGISTER:
+            return new RegisterEngine();
+        default:
+            return new VerifiedEngine();
+        }
+    }
+
+    /**
+     * Set how the program is executed. The mode has no effect if the
+     * logging level is INFO or finer: then the program is always
+     * traced, unless the interpreter is quiet.
+     *
+     * @param mode the execution mode
+     */
+    public void setExecutionMode(final ExecutionMode mode) {
+        if (mode == null) {
+            throw new IllegalArgumentException("Mode may not be null!");
+        }
+        this.checkNotExecuted();
+        if (mode != this.executionMode) {
+            this.executionMode = mode;
+            this.prepare();
+        }
+    }
+
+    /**
+     * Choose whether the execution is profiled. A profiled program runs
+     * on an engine of its own, without superinstructions and without
+     * tracing, whatever the execution mode and the logging level.
+     *
+     * @param profile <code>true</code> to record a profile
+     * @see #getProfile
+     */
+    public void setProfiling(final boolean profile) {
+        this.checkNotExecuted();
+        if (profile != this.profiling) {
+            this.profiling = profile;
+            this.prepare();
+        }
+    }
+
+    /**
+     * Get the profile recorded when the program was executed.
+     *
+     * @return the profile, <code>null</code> if the execution was not
+     *         profiled or the program has not been executed
+     */
+    public Profile getProfile() {
+        if (this.engine instanceof ProfilingEngine) {
+            return ((ProfilingEngine) this.engine).getProfile();
+        }
+        return null;
+    }
+
+    /**
+     * Get how the program is executed.
+     *
+     * @return the execution mode
+     */
+    public ExecutionMode getExecutionMode() {
+        return this.executionMode;
+    }
+
     /**
      * Are we at the end of the program?
      *
@@ -170,414 +383,210 @@ public final class Interpreter {
      *              <code>null</code>, input is read from stdin.
      */
     public void execute(final boolean printToStdout, int[] input) {
-        if (this.isReady()) {
-            try {
-                this.executePrivate(printToStdout, input);
-                this.programExecuted = true;
-            } catch(ExecutionException ee) {
-                log.severe("Execution halted due program error.");
-            } catch(RuntimeException re) {
-                log.severe("Execution halted due unexpected error.");
-                re.printStackTrace();
-            }
+        final IntOutput output =
+            printToStdout ? IntChannels.toText(System.out) : null;
+        if (input != null) {
+            this.execute(IntChannels.fromArray(input), output);
+        } else if (output == null) {
+            this.execute(IntChannels.fromText(System.in), null);
+        } else {
+            // Show what has been printed before waiting for the user
+            final IntInput stdin = IntChannels.fromText(System.in);
+            this.execute(new IntInput() {
+                    @Override
+                    public int read() {
+                        output.flush();
+                        return stdin.read();
+                    }
+                }, output);
         }
     }
-	
+
     /**
-     * Program execution helper method.
+     * Execute the program, reading and writing the given channels. The
+     * output is flushed when the program stops.
      *
-     * @param printToStdout <code>true</code>, if wanted results to be printed
-     * @param input The integer inputs of the program. If
-     *              <code>null</code>, input is read from stdin.
+     * @param input the integer inputs of the program; the end of the
+     *              input stops the program
+     * @param output where the printed integers are written, or
+     *               <code>null</code> if they are only collected
      */
-    private void executePrivate(final boolean printToStdout, int[] input) {
-        
-        boolean halt = false;
-        Integer x1 = null;
-        Integer x2 = null;
-        int step = 0;
-        int inputPointer = 0;
-        boolean readDone;
-        
-        BufferedReader inputReader = null;
+    public void execute(final IntInput input, final IntOutput output) {
+        this.executeSlice(input, output, this.stepLimit);
+    }
 
+    /**
+     * Execute the program for a slice of steps, continuing from where
+     * the previous slice stopped, so that a program can be suspended
+     * and rescheduled. The same input should be given to every slice.
+     * The output is flushed at the end of the slice.
+     *
+     * Only the switch mode engine stops in the middle of a program; in
+     * the other modes and when traced or profiled, the first slice runs
+     * the whole program. The step limit applies to all slices together.
+     *
+     * @param input the integer inputs of the program; the end of the
+     *              input stops the program
+     * @param output where the printed integers are written, or
+     *               <code>null</code> if they are only collected
+     * @param steps the number of steps to execute, a few more if the
+     *              slice ends in a superinstruction
+     * @return <code>true</code> if the program has stopped: it halted,
+     *         failed or could not be loaded
+     */
+    public boolean executeSlice(final IntInput input, final IntOutput output,
+                                final int steps) {
         if (input == null) {
-            inputReader = new BufferedReader(new InputStreamReader(System.in));
+            throw new IllegalArgumentException("Input may not be null!");
+        }
+        if (steps <= 0) {
+            throw new IllegalArgumentException
+                ("Number of steps must be positive!");
         }
+        if (!this.isReady() || this.machine.halted) {
+            return true;
+        }
+        this.started = true;
+        final IntOutput sink = this.sinkOf(output);
+        try {
+            if (this.engine.run(this.machine, input, sink, steps)) {
+                this.machine.halted = true;
+                this.programExecuted = true;
+            }
+        } catch(ExecutionException ee) {
+            this.machine.halted = true;
+            log.severe("Execution halted due program error.");
+        } catch(RuntimeException re) {
+            this.machine.halted = true;
+            log.severe("Execution halted due unexpected error.");
+            re.printStackTrace();
+        } finally {
+            sink.flush();
+        }
+        return this.machine.halted;
+    }
 
-        log.info("Start executing...");
-        
-        while (!halt && step < MAX_PROGRAM_SIZE) {
-            Instruction instr = this.program.get(programCounter);
-            programCounter++;
-            switch (instr.getCommandWord()) {
-            case ADD:
-                this.check(instr, stack.size() >= 2, "Stack underflow");
-                x1 = stack.pop();
-                x2 = stack.pop();
-                this.checkForNull(x1, x2, instr);
-                log.info("Stack <- " + x1 + " + " + x2);
-                stack.push(new Integer(x1.intValue() + x2.intValue()));
-                break;
-            case ALC:
-                // Allocate memory: take area size from stack, add one for
-                // length field. Move heap pointer and store
-                // length field.
-                // push the pointer to stack
-                this.check(instr, stack.size() > 0, "Stack underflow");
-                x1 = stack.pop();
-                x2 = x1.intValue() + 1;
-                heapPointer = heapPointer - x2 - 1;
-                memory[heapPointer] = x1;
-                stack.push(new Integer(heapPointer));
-                log.info("Allocate memory: " + x1 + " slots, HP=" + 
-                         heapPointer);
-                break;
-            case DIV:
-                // x = pop(); y = pop(); push(y / x);
-                this.check(instr, stack.size() >= 2, "Stack underflow");
-                x1 = stack.pop();
-                x2 = stack.pop();
-                this.checkForNull(x1, x2, instr);
-                this.check(instr, x1 != 0, "Division by zero");
-                stack.push(new Integer(x2.intValue() / x1.intValue()));
-                break;
-            case ENT:
-                stack.push(instr.getCommandParameter(0));
-                break;
-            case HLT:
-                halt = true;
-                log.info("Halt!");
-                break;
-            case JMP:
-                this.check(instr, this.labelMap.containsKey
-                           (instr.getCommandParameter(0)), 
-                           "Unknown label: " + instr.getCommandParameter(0));
-                programCounter = 
-                    this.labelMap.get(instr.getCommandParameter(0));
-                log.info("Jump to " + programCounter);
-                break;
-            case JZE:
-                this.check(instr, stack.size() > 0, "Stack underflow");
-                x1 = stack.pop();
-                log.info("Compare " + x1 + " to zero...");
-                if (x1.intValue() == 0) {
-                    this.check(instr, this.labelMap.containsKey
-                               (instr.getCommandParameter(0)), 
-                               "Unknown label: " + 
-                               instr.getCommandParameter(0));
-                    programCounter = 
-                        this.labelMap.get(instr.getCommandParameter(0));
-                    log.info("... true => jump to " + programCounter);
-                } else {
-                    log.info("... false => continue");
-                }
-                break;
-            case LAB:
-                // Just skip the label
-                break;
-            case LDL:
-                this.check(instr, stack.size() > 0, "Stack underflow");
-                x1 = stack.pop();
-                log.info("Stack <- mem[" + (x1 + framePointer) + "]=" + 
-                         memory[framePointer + x1.intValue()]);
-                stack.push(memory[framePointer + x1.intValue()]);
-                break;
-            case LDM:
-                this.check(instr, stack.size() > 0, "Stack underflow");
-                x1 = stack.pop();
-                this.check(instr, x1 >= 0 && x1 < memory.length, 
-                           "Memory access out of bounds");
-                log.info("Stack <- mem[" + x1 + "]=" + memory[x1.intValue()]);
-                stack.push(memory[x1.intValue()]);
-                break;
-            case MUL:
-                this.check(instr, stack.size() >= 2, "Stack underflow");
-                x1 = stack.pop();
-                x2 = stack.pop();
-                this.checkForNull(x1, x2, instr);
-                log.info("Stack <- " + x1 + " * " + x2);
-                stack.push(new Integer(x1.intValue() * x2.intValue()));
-                break;
-            case NOT:
-                this.check(instr, stack.size() > 0, "Stack underflow");
-                x1 = stack.pop();
-                log.info("Stack <- !" + x1);
-                stack.push(new Integer(x1.intValue() == 1 ? 0 : 1));
-                break;
-            case REQ:
-                this.check(instr, stack.size() >= 2, "Stack underflow");
-                x1 = stack.pop();
-                x2 = stack.pop();
-                this.checkForNull(x1, x2, instr);
-                log.info("Stack <-" + x2 + " == " + x1);
-                stack.push(new Integer(x1.intValue() == x2.intValue() ? 1 : 0));
-                break;
-            case RET:
-                programCounter = memory[framePointer];
-                heapPointer = memory[framePointer - FRAME_SIZE + 1];
-                framePointer = memory[framePointer - FRAME_SIZE];
-                log.info("Return from subroutine to " + programCounter + 
-                         ", FP=" + framePointer);
-                break;
-            case RGE:
-                this.check(instr, stack.size() >= 2, "Stack underflow");
-                x1 = stack.pop();
-                x2 = stack.pop();
-                this.checkForNull(x1, x2, instr);
-                log.info("Stack <- " + x2 + " >= " + x1);
-                stack.push(new Integer(x2.intValue() >= x1.intValue() ? 1 : 0));
-                break;
-            case RGT:
-                this.check(instr, stack.size() >= 2, "Stack underflow");
-                x1 = stack.pop();
-                x2 = stack.pop();
-                this.checkForNull(x1, x2, instr);
-                log.info("Stack <- " + x2 + " > " + x1);
-                stack.push(new Integer(x2.intValue() > x1.intValue() ? 1 : 0));
-                break;
-            case RLE:
-                this.check(instr, stack.size() >= 2, "Stack underflow");
-                x1 = stack.pop();
-                x2 = stack.pop();
-                this.checkForNull(x1, x2, instr);
-                log.info("Stack <- " + x2 + " <= " + x1);
-                stack.push(new Integer(x2.intValue() <= x1.intValue() ? 1 : 0));
-                break;
-            case RLT:
-                this.check(instr, stack.size() >= 2, "Stack underflow");
-                x1 = stack.pop();
-                x2 = stack.pop();
-                this.checkForNull(x1, x2, instr);
-                log.info("Stack <- " + x2 + " < " + x1);
-                stack.push(new Integer(x2.intValue() < x1.intValue() ? 1 : 0));
-                break;
-            case RNE:
-                this.check(instr, stack.size() >= 2, "Stack underflow");
-                x1 = stack.pop();
-                x2 = stack.pop();
-                this.checkForNull(x1, x2, instr);
-                log.info("Stack <- " + x2 + " != " + x1);
-                stack.push(new Integer(x1.intValue() != x2.intValue() ? 1 : 0));
-                break;
-            case SBR:
-                // Previous command has to be SFR, otherwise framepointer points
-                // to old frame
-                memory[framePointer] = programCounter;
-                this.check(instr, this.labelMap.containsKey
-                           (instr.getCommandParameter(0)), 
-                           "Unknown label: " + instr.getCommandParameter(0));
-                programCounter = 
-                    this.labelMap.get(instr.getCommandParameter(0));
-                log.info("Call subroutine, jump to " + programCounter + 
-                         ", old PC stored to " + framePointer);
-                this.check(instr, stack.size() >= instr.getCommandParameter(1),
-                           "Stack underflow");
-                this.check(instr, instr.getCommandParameter(1) >= 0, 
-                           "Negative amount of parameters");
-                this.check(instr, framePointer + instr.getCommandParameter(1) < 
-                           memory.length, "Memory access out of bounds");
-                // Load parameters into frame in reverse order
-                for (int i = instr.getCommandParameter(1); i > 0; i--) {
-                    x1 = stack.pop();
-                    memory[framePointer + i] = x1;
-                    log.info("Store parameter " + (i - 1) + "(value=" + x1 + 
-                             ") at FP=" + (framePointer + i));
-                }
-                break;
-            case SFR:
-                int frameOffset = instr.getCommandParameter(0);
-                this.check(instr, framePointer + frameOffset + 
-                           FRAME_SIZE + 1 < memory.length, 
-                           "Frame pointer out of memory bounds");
-                log.info("Store FP=" + framePointer + " to memory location " 
-                         + (framePointer + frameOffset + 1)
-                         + "(Offset=" + frameOffset + ")");
-                memory[framePointer + frameOffset + FRAME_SIZE - 1] = 
-                    framePointer;
-                memory[framePointer + frameOffset + FRAME_SIZE] = heapPointer;
-                framePointer = framePointer + frameOffset + FRAME_SIZE + 1;
-                log.info("New FP=" + framePointer);
-                break;
-            case STL:
-                this.check(instr, stack.size() >= 2, "Stack underflow");
-                x1 = stack.pop();
-                x2 = stack.pop();
-                this.checkForNull(x1, x2, instr);
-                this.check(instr, (framePointer + x2.intValue()) >= 0 && 
-                           (framePointer + x2.intValue()) < memory.length,
-                           "Memory access out of bounds");
-                log.info("Stack (value=" + x1 + ") -> mem[" + 
-                         (x2.intValue() + framePointer) + "]");
-                memory[framePointer + x2.intValue()] = x1;
-                break;
-            case STM:
-                this.check(instr, stack.size() >= 2, "Stack underflow");
-                x1 = stack.pop();
-                x2 = stack.pop();
-                this.checkForNull(x1, x2, instr);
-                this.check(instr, x2 >= 0 && x2 < memory.length, 
-                           "Memory access out of bounds");
-                log.info("Stack (value=" + x1 + ") -> mem[" + x2.intValue() + 
-                         "]");
-                memory[x2.intValue()] = x1;
-                break;
-            case SUB:
-                // x = pop(); y = pop(); push(y - x);
-                this.check(instr, stack.size() >= 2, "Stack underflow");
-                x1 = stack.pop();
-                x2 = stack.pop();
-                this.checkForNull(x1, x2, instr);
-                log.info("Stack <- " + x2 + " - " + x1);
-                stack.push(new Integer(x2.intValue() - x1.intValue()));
-                break;
-            case UMN:
-                this.check(instr, stack.size() > 0, "Stack underflow");
-                x1 = stack.pop();
-                log.info("Stack <- -" + x1);
-                stack.push(new Integer(-x1.intValue()));
-                break;
-            case WRI:
-                this.check(instr, stack.size() > 0, "Stack underflow");
-                x1 = stack.pop();
-                if(printToStdout) {
-                    System.out.println(x1);
-                }
-                this.result.add(x1);
-                break;
-            case REA:
-                if (input == null) {
-                    // Read from stdout
-                    readDone = false;
-                    while(!readDone) {
-                        try {
-                            x1 = new Integer(Integer.parseInt
-                                             (inputReader.readLine()));
-                            readDone = true;
-                        } catch (IOException ioe) {
-                        } catch (NumberFormatException nfe) {
-                        }
+    /**
+     * Combine an output with the collected result.
+     *
+     * @param output the output, <code>null</code> if none
+     * @return the sink for the engine
+     */
+    private IntOutput sinkOf(final IntOutput output) {
+        if (!this.collectingResults) {
+            return output != null ? output : new IntOutput() {
+                    @Override
+                    public void write(final int value) {
                     }
-                    stack.push(x1);
-                } else {
-                    // Read from input array
-                    if (inputPointer < input.length) {
-                        stack.push(new Integer(input[inputPointer]));
-                        inputPointer++;
-                    } else {
-                        // No more input
-                        log.severe("Could not read input at line " + 
-                                   instr.getSourceLine());
-                        halt = true;
+
+                    @Override
+                    public void flush() {
                     }
-                }
-                break;
-            default:
-                // Unknown instruction
-                log.severe("Unknown instruction: " + instr + " at line " + 
-                           instr.getSourceLine());
-                halt = true;
-                break;
-            }
-            step++;
+                };
         }
-        
-        if (step >= MAX_PROGRAM_SIZE) {
-            log.severe("Program execution halted due too many steps");
-            throw new ExecutionException();
+        if (output == null) {
+            return this.result;
         }
-        
+        final ResultList collected = this.result;
+        return new IntOutput() {
+            @Override
+            public void write(final int value) {
+                output.write(value);
+                collected.write(value);
+            }
+
+            @Override
+            public void flush() {
+                output.flush();
+            }
+        };
     }
 
     /**
-     * Helper method for checking conditions and printing messages if
-     * the test is not passed.
+     * Choose whether the arrays are allocated from a garbage collected
+     * heap. Then an array lives as long as it can be reached, not until
+     * the function that allocated it returns, and the heap is collected
+     * when it runs full. If the stack size has not been set, the frames
+     * get the lower half of the memory and the heap the upper half. A
+     * collected program runs on the switch engine, whatever the
+     * execution mode.
      *
-     * @param inst the related instruction (for logging)
-     * @param checkExpression the boolean value to check
-     * @param message the message to print if the check is not passed
+     * @param collected <code>true</code> for a garbage collected heap
+     * @see #getHeapStatistics
      */
-    private void check(final Instruction instr, final boolean checkExpression, 
-                       final String message) {
-        if(!checkExpression) {
-            log.severe(message);
-            this.logCurrentState(instr);
-            throw new ExecutionException();
+    public void setGarbageCollection(final boolean collected) {
+        this.checkNotExecuted();
+        if (collected != this.garbageCollected) {
+            this.garbageCollected = collected;
+            this.prepare();
         }
     }
 
     /**
-     * Log the current state of the machine.
+     * Optimize the program with a peephole optimizer before it is
+     * linked. The hit counts of the rules are available from the
+     * optimizer afterwards.
      *
-     * @param instr the current instruction
+     * @param optimizer the optimizer, <code>null</code> to run the
+     *                  program as it is
      */
-    private void logCurrentState(final Instruction instr) {
-        if (log.isLoggable(Level.INFO)) {
-            log.info("Current instruction: " + instr + " (line " + 
-                     instr.getSourceLine() + ")");
-            log.info("PC: " + programCounter + "\tFP: " + framePointer + 
-                     "\tHP:" + heapPointer);
-            log.info("Stack contents:");
-            if(this.stack.size() > 0) {
-                int limit = Math.max(stack.size() - 10, -1);
-                for(int i = stack.size() - 1; i > limit; i--) {
-                    log.info(i + ": " + stack.get(i));
-                }
-            } else {
-                log.info("Stack is empty!");
-            }
-            
-            log.info("Memory dump:");
-            StringBuilder stringBuilder = new StringBuilder();
-            stringBuilder.append("0x00000001\t");
-            int i = 0;
-            while (i < MEM_SIZE) {
-                stringBuilder.append("0x");
-                stringBuilder.append(String.format("%08X", this.memory[i]));
-                stringBuilder.append(" ");
-                i++;
-                if(i < MEM_SIZE && (i % 8) == 0) {
-                    log.info(stringBuilder.toString());
-                    stringBuilder = new StringBuilder();
-                    stringBuilder.append("0x");
-                    stringBuilder.append(String.format("%08X", i));
-                    stringBuilder.append("\t");
-                }
-            }
-            log.info(stringBuilder.toString());			
+    public void setPeepholeOptimizer(final PeepholeOptimizer optimizer) {
+        this.checkNotExecuted();
+        if (optimizer != this.peephole) {
+            this.peephole = optimizer;
+            this.prepare();
         }
     }
 
     /**
-     * Helper method to check for null arguments.
+     * Get the statistics of the garbage collected heap: the number of
+     * collections, their total and longest pause in nanoseconds, the
+     * number of allocations, the words allocated and reclaimed, the
+     * words in use and the size of the heap. The words include the two
+     * words of each array besides its elements.
      *
-     * @param x1 the first argument to check
-     * @param x2 the second argument to check
-     * @param instr the related instruction
+     * @return statistic name -&gt; value, empty if the heap is not
+     *         collected
      */
-    private void checkForNull(final Integer x1, final Integer x2, 
-                              final Instruction instr) {
-        if (x1 == null) {
-            throw new IllegalStateException
-                ("Parameter 1 is null for instruction " + instr + " at line "
-                 + instr.getSourceLine());
-        }
-        if (x2 == null) {
-            throw new IllegalStateException
-                ("Parameter 2 is null for instruction " + instr + " at line "
-                 + instr.getSourceLine());
+    public Map<String, Long> getHeapStatistics() {
+        if (this.machine.heap == null) {
+            return Collections.emptyMap();
         }
+        return this.machine.heap.getStatistics();
     }
 
+    /**
+     * Choose whether the printed integers are kept for
+     * {@link #getResult}. They are by default; a program streaming
+     * its output elsewhere runs in constant memory without them.
+     *
+     * @param collect <code>true</code> to keep the printed integers
+     */
+    public void setCollectingResults(final boolean collect) {
+        this.checkNotExecuted();
+        this.collectingResults = collect;
+    }
+	
     /**
      * Get the list of printed integers after execution of the program.
      *
-     * @return the list of integers
+     * @return the list of integers, empty if they were not collected
      */
     public List<Integer> getResult() {
         return this.result;
     }
 	
+    /**
+     * Get the number of superinstructions the program was linked with.
+     * The map is empty if the program runs on the tracing engine,
+     * which executes the instructions one by one.
+     *
+     * @return superinstruction name -&gt; count
+     */
+    public Map<String, Integer> getFusionStatistics() {
+        return this.program.getFusionStatistics();
+    }
+	
     /**
      * Main program for executing the interpreter.
      * 
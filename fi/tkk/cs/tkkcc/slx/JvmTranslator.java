@@ -0,0 +1,659 @@
+package fi.tkk.cs.tkkcc.slx;
+
+import java.util.ArrayList;
+import java.util.List;
+
+/**
+ * Translates linked SLX code to the source of a Java class.
+ *
+ * Each function found by the {@link ControlFlow} analysis becomes a
+ * static method. The operand stack becomes local variables, one per
+ * stack depth, and the jumps become labelled breaks and continues of
+ * nested blocks and loops. The frames stay in the memory array of the
+ * machine, so the translated program sees the same memory as the
+ * interpreted one, including the heap and the frames overwriting each
+ * other when they meet.
+ *
+ * The generated class only refers to the Java platform. Its static
+ * method <code>run(int[] memory, int[] registers, IntSupplier input,
+ * IntConsumer output)</code> runs the program; the registers are the
+ * ones listed as constants below. Runtime check failures are thrown as
+ * IllegalStateExceptions carrying the message the interpreter would
+ * log, and the end of the input as the NoSuchElementException of the
+ * input supplier.
+ */
+final class JvmTranslator {
+    /** Register index of the frame pointer */
+    static final int FP = 0;
+    /** Register index of the heap pointer */
+    static final int HP = 1;
+    /** Register index of the step counter */
+    static final int STEPS = 2;
+    /** Register index of the pc of the last read, for diagnostics */
+    static final int PC = 3;
+    /** Register index of the step limit */
+    static final int LIMIT = 4;
+    /** Number of registers */
+    static final int REGISTERS = 5;
+
+    /** Class name of the generated class */
+    static final String CLASS_NAME = "CompiledProgram";
+
+    /** Kind of a scope opening a loop */
+    private static final int LOOP = 0;
+    /** Kind of a scope that is left by jumping forward */
+    private static final int BLOCK = 1;
+
+    /** The analysed code */
+    private final ControlFlow flow;
+    /** The code */
+    private final int[] code;
+    /** The generated source */
+    private final StringBuilder out = new StringBuilder();
+
+    /**
+     * Initialize a new translator.
+     *
+     * @param flow the analysed code
+     */
+    private JvmTranslator(final ControlFlow flow) {
+        super();
+        this.flow = flow;
+        this.code = flow.getCode();
+    }
+
+    /**
+     * Translate a program.
+     *
+     * @param flow the analysed code of the program
+     * @return the source of the class
+     * @throws IllegalInstructionException if the control flow of the
+     *         program can not be expressed with nested blocks and loops
+     */
+    static String translate(final ControlFlow flow)
+        throws IllegalInstructionException {
+        final JvmTranslator translator = new JvmTranslator(flow);
+        translator.translateClass();
+        return translator.out.toString();
+    }
+
+    /**
+     * Generate the class.
+     */
+    private void translateClass() {
+        final String packageName = JvmTranslator.class.getPackage().getName();
+        final int main = this.flow.getFunctions().get(0).getEntry();
+        this.out
+            .append("package ").append(packageName).append(";\n\n")
+            .append("import java.util.function.IntConsumer;\n")
+            .append("import java.util.function.IntSupplier;\n\n")
+            .append("final class ").append(CLASS_NAME).append(" {\n")
+            .append("  private static final RuntimeException HALT =\n")
+            .append("    new RuntimeException(\"halt\");\n\n")
+            .append("  static void run(int[] m, int[] r, IntSupplier in,")
+            .append(" IntConsumer out) {\n")
+            .append("    try {\n")
+            .append("      f").append(main)
+            .append("(m, r, r[").append(FP).append("], in, out);\n")
+            .append("    } catch (RuntimeException e) {\n")
+            .append("      if (e != HALT) {\n")
+            .append("        throw e;\n")
+            .append("      }\n")
+            .append("    }\n")
+            .append("  }\n\n")
+            .append("  private static IllegalStateException fail(String s) {\n")
+            .append("    return new IllegalStateException(s);\n")
+            .append("  }\n\n")
+            .append("  private static IllegalStateException steps(int[] r,")
+            .append(" int steps) {\n")
+            .append("    r[").append(STEPS).append("] = steps;\n")
+            .append("    return fail(\"Program execution halted due too")
+            .append(" many steps\");\n")
+            .append("  }\n\n")
+            .append("  private static int load(int[] m, int a) {\n")
+            .append("    if (a < 0 || a >= m.length) {\n")
+            .append("      throw fail(\"Memory access out of bounds\");\n")
+            .append("    }\n")
+            .append("    return m[a];\n")
+            .append("  }\n\n")
+            .append("  private static void store(int[] m, int a, int v) {\n")
+            .append("    if (a < 0 || a >= m.length) {\n")
+            .append("      throw fail(\"Memory access out of bounds\");\n")
+            .append("    }\n")
+            .append("    m[a] = v;\n")
+            .append("  }\n\n")
+            .append("  private static int div(int y, int x) {\n")
+            .append("    if (x == 0) {\n")
+            .append("      throw fail(\"Division by zero\");\n")
+            .append("    }\n")
+            .append("    return y / x;\n")
+            .append("  }\n\n")
+            .append("  private static int alloc(int[] m, int[] r, int x) {\n")
+            .append("    final int hp = r[").append(HP).append("] - (x + 1) - 1;\n")
+            .append("    if (hp < 0) {\n")
+            .append("      throw fail(\"Heap out of memory bounds\");\n")
+            .append("    }\n")
+            .append("    r[").append(HP).append("] = hp;\n")
+            .append("    m[hp] = x;\n")
+            .append("    return hp;\n")
+            .append("  }\n");
+        for (ControlFlow.Function function : this.flow.getFunctions()) {
+            this.translateFunction(function);
+        }
+        this.out.append("}\n");
+    }
+
+    /**
+     * A block, loop or labelled block of the generated method.
+     */
+    private static final class Scope {
+        /** LOOP or BLOCK */
+        final int kind;
+        /** Index of the first basic block inside the scope */
+        int start;
+        /** Index of the first basic block after the scope */
+        int end;
+        /** True if the scope is left with a break */
+        boolean broken;
+
+        /**
+         * Initialize a new scope.
+         *
+         * @param kind LOOP or BLOCK
+         * @param start the first basic block inside
+         * @param end the first basic block after
+         */
+        Scope(final int kind, final int start, final int end) {
+            super();
+            this.kind = kind;
+            this.start = start;
+            this.end = end;
+        }
+
+        /**
+         * Get the label of the scope.
+         *
+         * @return the label
+         */
+        String label() {
+            return (this.kind == LOOP ? "L" : "B")
+                + (this.kind == LOOP ? this.start : this.end);
+        }
+    }
+
+    /**
+     * Generate the method of a function.
+     *
+     * @param function the function
+     */
+    private void translateFunction(final ControlFlow.Function function) {
+        // Basic blocks, as start pcs in address order
+        final List<Integer> starts = new ArrayList<Integer>();
+        final boolean[] leader = new boolean[this.code.length + 1];
+        leader[function.getEntry()] = true;
+        for (int pc = 0; pc < this.code.length; pc = this.flow.next(pc)) {
+            if (function.getDepth(pc) == ControlFlow.UNREACHABLE) {
+                continue;
+            }
+            switch (this.code[pc]) {
+            case Opcode.JZE:
+            case Opcode.JMP:
+                leader[this.code[pc + 1]] = true;
+                leader[this.flow.next(pc)] = true;
+                break;
+            case Opcode.RET:
+            case Opcode.HLT:
+                leader[this.flow.next(pc)] = true;
+                break;
+            default:
+                break;
+            }
+        }
+        final int[] blockOf = new int[this.code.length + 1];
+        boolean inBlock = false;
+        for (int pc = 0; pc < this.code.length; pc = this.flow.next(pc)) {
+            if (function.getDepth(pc) == ControlFlow.UNREACHABLE) {
+                inBlock = false;
+                continue;
+            }
+            if (leader[pc] || !inBlock) {
+                starts.add(pc);
+                inBlock = true;
+            }
+            blockOf[pc] = starts.size() - 1;
+        }
+        final int blocks = starts.size();
+
+        // Scopes: a loop for each target of a backward jump, a block
+        // ending before each target of a forward jump
+        final Scope[] loops = new Scope[blocks];
+        final Scope[] forwards = new Scope[blocks + 1];
+        for (int b = 0; b < blocks; b++) {
+            final int last = this.lastPc(starts, b);
+            final int opcode = this.code[last];
+            if (opcode != Opcode.JZE && opcode != Opcode.JMP) {
+                continue;
+            }
+            final int target = blockOf[this.code[last + 1]];
+            if (target <= b) {
+                if (loops[target] == null) {
+                    loops[target] = new Scope(LOOP, target, b + 1);
+                }
+                loops[target].end = Math.max(loops[target].end, b + 1);
+            } else if (target > b + 1) {
+                if (forwards[target] == null) {
+                    forwards[target] = new Scope(BLOCK, b, target);
+                }
+                forwards[target].start = Math.min(forwards[target].start, b);
+            }
+        }
+        final List<Scope> scopes = new ArrayList<Scope>();
+        for (int b = 0; b <= blocks; b++) {
+            if (b < blocks && loops[b] != null) {
+                scopes.add(loops[b]);
+            }
+            if (forwards[b] != null) {
+                scopes.add(forwards[b]);
+            }
+        }
+        this.nest(scopes);
+
+        this.out.append("\n  private static int f").append(function.getEntry())
+            .append("(int[] m, int[] r, int fp, IntSupplier in,")
+            .append(" IntConsumer out) {\n")
+            .append("    int steps = r[").append(STEPS).append("];\n")
+            .append("    final int limit = r[").append(LIMIT).append("];\n");
+        for (int i = 0; i < function.getMaxDepth(); i++) {
+            this.out.append("    int s").append(i).append(" = 0;\n");
+        }
+
+        final List<Scope> open = new ArrayList<Scope>();
+        boolean reachable = true;
+        for (int b = 0; b <= blocks; b++) {
+            // Close the scopes ending here, innermost first
+            while (!open.isEmpty() && open.get(open.size() - 1).end == b) {
+                final Scope scope = open.remove(open.size() - 1);
+                if (scope.kind == LOOP) {
+                    if (reachable) {
+                        this.out.append("    break ").append(scope.label())
+                            .append(";\n");
+                        scope.broken = true;
+                    }
+                    reachable = scope.broken;
+                } else {
+                    reachable = reachable || scope.broken;
+                }
+                this.out.append("    }\n");
+            }
+            for (Scope scope : open) {
+                if (scope.end == b) {
+                    throw new IllegalInstructionException
+                        ("Scopes do not nest at block " + b);
+                }
+            }
+            if (b == blocks) {
+                break;
+            }
+            // Open the scopes starting here, outermost first
+            for (Scope scope : this.startingAt(scopes, b)) {
+                open.add(scope);
+                this.out.append("    ").append(scope.label()).append(": ")
+                    .append(scope.kind == LOOP ? "while (true) {\n" : "{\n");
+            }
+            reachable = this.translateBlock(function, starts, b, blockOf,
+                                            open);
+        }
+        if (!open.isEmpty()) {
+            throw new IllegalInstructionException("Unbalanced scopes");
+        }
+        if (reachable) {
+            this.out.append("    throw fail(\"Program counter out of")
+                .append(" bounds\");\n");
+        }
+        this.out.append("  }\n");
+    }
+
+    /**
+     * Make the scopes nest, by starting forward blocks earlier and
+     * ending loops later.
+     *
+     * @param scopes the scopes
+     * @throws IllegalInstructionException if a jump enters a loop past
+     *         its first instruction
+     */
+    private void nest(final List<Scope> scopes) {
+        boolean changed = true;
+        while (changed) {
+            changed = false;
+            for (Scope a : scopes) {
+                for (Scope b : scopes) {
+                    if (!(a.start < b.start && b.start < a.end
+                          && a.end < b.end)) {
+                        continue;
+                    }
+                    // a and b overlap, a starts first
+                    if (b.kind == BLOCK) {
+                        b.start = a.start;
+                    } else if (a.kind == LOOP) {
+                        a.end = b.end;
+                    } else {
+                        throw new IllegalInstructionException
+                            ("Jump into a loop at block " + a.end);
+                    }
+                    changed = true;
+                }
+            }
+        }
+    }
+
+    /**
+     * Get the scopes starting at a basic block, outermost first.
+     *
+     * @param scopes all scopes
+     * @param b the index of the basic block
+     * @return the scopes
+     */
+    private List<Scope> startingAt(final List<Scope> scopes, final int b) {
+        final List<Scope> result = new ArrayList<Scope>();
+        for (Scope scope : scopes) {
+            if (scope.start != b) {
+                continue;
+            }
+            int i = 0;
+            while (i < result.size()
+                   && (result.get(i).end > scope.end
+                       || (result.get(i).end == scope.end
+                           && result.get(i).kind == BLOCK))) {
+                i++;
+            }
+            result.add(i, scope);
+        }
+        return result;
+    }
+
+    /**
+     * Get the pc of the last instruction of a basic block.
+     *
+     * @param starts the start pcs of the basic blocks
+     * @param b the index of the basic block
+     * @return the pc
+     */
+    private int lastPc(final List<Integer> starts, final int b) {
+        final int end = b + 1 < starts.size()
+            ? starts.get(b + 1) : this.code.length;
+        int pc = starts.get(b);
+        int last = pc;
+        while (pc < end) {
+            last = pc;
+            pc = this.flow.next(pc);
+            if (this.isEnd(last)) {
+                break;
+            }
+        }
+        return last;
+    }
+
+    /**
+     * Does an instruction end a basic block?
+     *
+     * @param pc the pc of the instruction
+     * @return <code>true</code> for jumps, returns and halts
+     */
+    private boolean isEnd(final int pc) {
+        switch (this.code[pc]) {
+        case Opcode.JZE:
+        case Opcode.JMP:
+        case Opcode.RET:
+        case Opcode.HLT:
+            return true;
+        default:
+            return false;
+        }
+    }
+
+    /**
+     * Does the step counter have to be up to date after an instruction?
+     *
+     * @param pc the pc of the instruction
+     * @return <code>true</code> for instructions with effects outside
+     *         the function
+     */
+    private boolean isSegmentEnd(final int pc) {
+        return this.code[pc] == Opcode.WRI || this.code[pc] == Opcode.SBR
+            || this.isEnd(pc);
+    }
+
+    /**
+     * Generate the statements of a basic block.
+     *
+     * @param function the function
+     * @param starts the start pcs of the basic blocks
+     * @param b the index of the basic block
+     * @param blockOf the basic block index of each leader pc
+     * @param open the open scopes
+     * @return <code>true</code> if the end of the block is reachable
+     */
+    private boolean translateBlock(final ControlFlow.Function function,
+                                   final List<Integer> starts, final int b,
+                                   final int[] blockOf,
+                                   final List<Scope> open) {
+        final int last = this.lastPc(starts, b);
+        boolean segmentStart = true;
+        for (int pc = starts.get(b); pc <= last; pc = this.flow.next(pc)) {
+            if (segmentStart) {
+                // Count the steps up to the next instruction with visible
+                // effects, so the program stops at the same step as in
+                // the interpreter
+                int steps = 1;
+                int end = pc;
+                while (end < last && !this.isSegmentEnd(end)) {
+                    end = this.flow.next(end);
+                    steps++;
+                }
+                this.out.append("    if ((steps += ").append(steps)
+                    .append(") > limit) {\n")
+                    .append("      throw steps(r, steps);\n")
+                    .append("    }\n");
+                segmentStart = false;
+            }
+            final int d = function.getDepth(pc);
+            final String a = "s" + (d - 1);
+            final String y = "s" + (d - 2);
+            final int next = this.flow.next(pc);
+            final StringBuilder o = this.out;
+            switch (this.code[pc]) {
+            case Opcode.ENT:
+                o.append("    s").append(d).append(" = ")
+                    .append(this.code[pc + 1]).append(";\n");
+                break;
+            case Opcode.LDL:
+                o.append("    ").append(a).append(" = load(m, fp + ").append(a)
+                    .append(");\n");
+                break;
+            case Opcode.LDM:
+                o.append("    ").append(a).append(" = load(m, ").append(a)
+                    .append(");\n");
+                break;
+            case Opcode.STL:
+                o.append("    store(m, fp + ").append(y).append(", ")
+                    .append(a).append(");\n");
+                break;
+            case Opcode.STM:
+                o.append("    store(m, ").append(y).append(", ").append(a)
+                    .append(");\n");
+                break;
+            case Opcode.ADD:
+                this.binary(y, y + " + " + a);
+                break;
+            case Opcode.SUB:
+                this.binary(y, y + " - " + a);
+                break;
+            case Opcode.MUL:
+                this.binary(y, y + " * " + a);
+                break;
+            case Opcode.DIV:
+                this.binary(y, "div(" + y + ", " + a + ")");
+                break;
+            case Opcode.REQ:
+                this.binary(y, y + " == " + a + " ? 1 : 0");
+                break;
+            case Opcode.RNE:
+                this.binary(y, y + " != " + a + " ? 1 : 0");
+                break;
+            case Opcode.RLT:
+                this.binary(y, y + " < " + a + " ? 1 : 0");
+                break;
+            case Opcode.RGT:
+                this.binary(y, y + " > " + a + " ? 1 : 0");
+                break;
+            case Opcode.RLE:
+                this.binary(y, y + " <= " + a + " ? 1 : 0");
+                break;
+            case Opcode.RGE:
+                this.binary(y, y + " >= " + a + " ? 1 : 0");
+                break;
+            case Opcode.UMN:
+                this.binary(a, "-" + a);
+                break;
+            case Opcode.NOT:
+                this.binary(a, a + " == 1 ? 0 : 1");
+                break;
+            case Opcode.ALC:
+                this.binary(a, "alloc(m, r, " + a + ")");
+                break;
+            case Opcode.WRI:
+                o.append("    out.accept(").append(a).append(");\n");
+                break;
+            case Opcode.REA:
+                o.append("    r[").append(PC).append("] = ").append(pc)
+                    .append(";\n")
+                    .append("    s").append(d).append(" = in.getAsInt();\n");
+                break;
+            case Opcode.SFR:
+                final int top = this.code[pc + 1] + Machine.FRAME_SIZE;
+                o.append("    if (fp + ").append(top + 1)
+                    .append(" >= m.length) {\n")
+                    .append("      throw fail(\"Frame pointer out of memory")
+                    .append(" bounds\");\n")
+                    .append("    }\n")
+                    .append("    m[fp + ").append(top - 1).append("] = fp;\n")
+                    .append("    m[fp + ").append(top).append("] = r[")
+                    .append(HP).append("];\n")
+                    .append("    fp = fp + ").append(top + 1).append(";\n");
+                break;
+            case Opcode.SBR:
+                this.call(pc, d, next);
+                segmentStart = true;
+                break;
+            case Opcode.RET:
+                o.append("    r[").append(HP).append("] = m[fp - ")
+                    .append(Machine.FRAME_SIZE - 1).append("];\n")
+                    .append("    r[").append(FP).append("] = m[fp - ")
+                    .append(Machine.FRAME_SIZE).append("];\n")
+                    .append("    r[").append(STEPS).append("] = steps;\n")
+                    .append("    return ")
+                    .append(function.getResults() == 1 ? a : "0")
+                    .append(";\n");
+                return false;
+            case Opcode.HLT:
+                // The interpreter reports the step limit even if the
+                // program halts on the last step
+                o.append("    if (steps >= limit) {\n")
+                    .append("      throw steps(r, steps);\n")
+                    .append("    }\n")
+                    .append("    r[").append(STEPS).append("] = steps;\n")
+                    .append("    r[").append(FP).append("] = fp;\n");
+                if (function.isMain()) {
+                    o.append("    return 0;\n");
+                } else {
+                    o.append("    throw HALT;\n");
+                }
+                return false;
+            case Opcode.JZE:
+                return this.jump(blockOf[this.code[pc + 1]], b, open,
+                                 "if (" + a + " == 0) ");
+            case Opcode.JMP:
+                return this.jump(blockOf[this.code[pc + 1]], b, open, "");
+            default:
+                throw new IllegalInstructionException
+                    ("Unknown opcode " + this.code[pc] + " at pc " + pc);
+            }
+            if (this.code[pc] == Opcode.WRI) {
+                segmentStart = true;
+            }
+        }
+        return true;
+    }
+
+    /**
+     * Generate an assignment to a stack slot.
+     *
+     * @param slot the slot
+     * @param expression the value
+     */
+    private void binary(final String slot, final String expression) {
+        this.out.append("    ").append(slot).append(" = ").append(expression)
+            .append(";\n");
+    }
+
+    /**
+     * Generate a call.
+     *
+     * @param pc the pc of the SBR instruction
+     * @param d the stack depth before the instruction
+     * @param next the pc of the following instruction
+     */
+    private void call(final int pc, final int d, final int next) {
+        final int target = this.code[pc + 1];
+        final int argc = this.code[pc + 2];
+        final StringBuilder o = this.out;
+        o.append("    m[fp] = ").append(next).append(";\n")
+            .append("    if (fp + ").append(argc).append(" >= m.length) {\n")
+            .append("      throw fail(\"Memory access out of bounds\");\n")
+            .append("    }\n");
+        for (int i = 1; i <= argc; i++) {
+            o.append("    m[fp + ").append(i).append("] = s")
+                .append(d - argc + i - 1).append(";\n");
+        }
+        o.append("    r[").append(STEPS).append("] = steps;\n    ");
+        if (this.flow.getFunction(target).getResults() == 1) {
+            o.append("s").append(d - argc).append(" = ");
+        }
+        o.append("f").append(target).append("(m, r, fp, in, out);\n")
+            .append("    steps = r[").append(STEPS).append("];\n")
+            .append("    fp = r[").append(FP).append("];\n");
+    }
+
+    /**
+     * Generate a jump.
+     *
+     * @param target the index of the target basic block
+     * @param b the index of the basic block of the jump
+     * @param open the open scopes
+     * @param condition the condition of the jump, empty if none
+     * @return <code>true</code> if the code after the jump is reachable
+     */
+    private boolean jump(final int target, final int b,
+                         final List<Scope> open, final String condition) {
+        if (target == b + 1) {
+            // Falls through to the target anyway
+            return true;
+        }
+        for (int i = open.size() - 1; i >= 0; i--) {
+            final Scope scope = open.get(i);
+            if (target <= b && scope.kind == LOOP && scope.start == target) {
+                this.out.append("    ").append(condition).append("continue ")
+                    .append(scope.label()).append(";\n");
+                return condition.length() > 0;
+            }
+            if (target > b && scope.kind == BLOCK && scope.end == target) {
+                this.out.append("    ").append(condition).append("break ")
+                    .append(scope.label()).append(";\n");
+                scope.broken = true;
+                return condition.length() > 0;
+            }
+        }
+        throw new IllegalInstructionException
+            ("No scope for a jump to block " + target);
+    }
+}
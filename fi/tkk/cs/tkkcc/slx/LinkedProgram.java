@@ -0,0 +1,122 @@
+package fi.tkk.cs.tkkcc.slx;
+
+import java.util.Collections;
+import java.util.LinkedHashMap;
+import java.util.Map;
+
+/**
+ * A linked SLX program, ready for execution.
+ *
+ * The code is a dense array of opcodes, each followed by its inline
+ * parameters. Branch and call targets are offsets into the same array
+ * and the labels have been removed. The program counter of the
+ * interpreter is an offset into the code array.
+ */
+final class LinkedProgram {
+    /** Opcodes and inline parameters */
+    private final int[] code;
+    /** Index of the source instruction of each code word */
+    private final int[] instructionIndex;
+    /** The program the code was linked from */
+    private final SlxProgram program;
+    /** Superinstruction counts, <code>null</code> if not fused */
+    private final int[] fusions;
+
+    /**
+     * Initialize a new linked program.
+     *
+     * @param code the linked code
+     * @param instructionIndex index of the source instruction of each
+     *        code word
+     * @param program the program the code was linked from
+     * @param fusions number of each superinstruction created, indexed
+     *        by <code>opcode - Opcode.COMMAND_COUNT</code>, or
+     *        <code>null</code> if the code was not fused
+     */
+    LinkedProgram(final int[] code, final int[] instructionIndex,
+                  final SlxProgram program, final int[] fusions) {
+        super();
+        this.code = code;
+        this.instructionIndex = instructionIndex;
+        this.program = program;
+        this.fusions = fusions;
+    }
+
+    /**
+     * Get the code array. The array is shared, not copied.
+     *
+     * @return the code
+     */
+    int[] getCode() {
+        return this.code;
+    }
+
+    /**
+     * Is the program empty?
+     *
+     * @return <code>true</code> if there is no code to execute
+     */
+    boolean isEmpty() {
+        return this.code.length == 0;
+    }
+
+    /**
+     * Get the source instruction of the code at a program counter, for
+     * diagnostics. The label operands of the returned instruction are
+     * not resolved.
+     *
+     * @param pc the program counter
+     * @return the instruction
+     */
+    Instruction getInstruction(final int pc) {
+        return this.program.getProgram().get(this.instructionIndex[pc]);
+    }
+
+    /**
+     * Get the source line of the code at a program counter.
+     *
+     * @param pc the program counter
+     * @return the line number, 0 if not known
+     */
+    int getSourceLine(final int pc) {
+        return this.program.getSourceLine(this.instructionIndex[pc]);
+    }
+
+    /**
+     * Get the labels that were defined right before the code at a
+     * program counter.
+     *
+     * @param pc the program counter of an instruction
+     * @return the labels, in the order of definition
+     */
+    int[] getLabels(final int pc) {
+        int first = this.instructionIndex[pc];
+        while (first > 0 && this.program.getOpcode(first - 1) == Opcode.LAB) {
+            first--;
+        }
+        final int[] labels = new int[this.instructionIndex[pc] - first];
+        for (int i = 0; i < labels.length; i++) {
+            labels[i] = this.program.getParameter(first + i, 0);
+        }
+        return labels;
+    }
+
+    /**
+     * Get the number of superinstructions created when linking.
+     *
+     * @return superinstruction name -&gt; count, empty if the code was
+     *         not fused
+     */
+    Map<String, Integer> getFusionStatistics() {
+        if (this.fusions == null) {
+            return Collections.emptyMap();
+        }
+        final Map<String, Integer> statistics =
+            new LinkedHashMap<String, Integer>();
+        for (int i = 0; i < this.fusions.length; i++) {
+            statistics.put(Opcode.getName(Opcode.COMMAND_COUNT + i),
+                           this.fusions[i]);
+        }
+        return Collections.unmodifiableMap(statistics);
+    }
+}
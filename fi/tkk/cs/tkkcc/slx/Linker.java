@@ -0,0 +1,131 @@
+package fi.tkk.cs.tkkcc.slx;
+
+import java.util.HashMap;
+import java.util.Map;
+
+/**
+ * SLX linker.
+ *
+ * Resolves the label operands of the jump and call instructions to
+ * absolute program counters before the program is executed. The LAB
+ * pseudo instructions are dropped from the linked program, so the
+ * interpreter never has to look a label up while running.
+ */
+final class Linker {
+
+    /**
+     * Not instantiable.
+     */
+    private Linker() {
+        super();
+    }
+
+    /**
+     * Link a program into flat code.
+     *
+     * @param program the program, including labels
+     * @return the code without labels, branch targets replaced with
+     *         offsets into the code
+     * @throws IllegalInstructionException if a branch refers to a label
+     *         that is not defined in the program
+     */
+    static LinkedProgram link(final SlxProgram program)
+        throws IllegalInstructionException {
+        return Linker.link(program, false);
+    }
+
+    /**
+     * Link a program into flat code, optionally replacing common
+     * instruction sequences with superinstructions.
+     *
+     * @param program the program, including labels
+     * @param fuse <code>true</code> to create superinstructions
+     * @return the code without labels, branch targets replaced with
+     *         offsets into the code
+     * @throws IllegalInstructionException if a branch refers to a label
+     *         that is not defined in the program
+     */
+    static LinkedProgram link(final SlxProgram program, final boolean fuse)
+        throws IllegalInstructionException {
+        final int size = program.size();
+        final int[] opcodes = new int[size];
+        final int[] params1 = new int[size];
+        final int[] params2 = new int[size];
+        final int[] params3 = new int[size];
+        for (int i = 0; i < size; i++) {
+            final CommandWord command = program.getCommandWord(i);
+            opcodes[i] = command.ordinal();
+            if (command.getNumberOfParameters() > 0) {
+                params1[i] = program.getParameter(i, 0);
+            }
+            if (command.getNumberOfParameters() > 1) {
+                params2[i] = program.getParameter(i, 1);
+            }
+        }
+        int[] fusions = null;
+        if (fuse) {
+            fusions = Fuser.fuse(opcodes, params1, params2, params3);
+        }
+
+        // Label -> pc of the first instruction after the label. If a
+        // label is defined twice the latter definition wins.
+        final Map<Integer, Integer> targets = new HashMap<Integer, Integer>();
+        int pc = 0;
+        for (int i = 0; i < size; i++) {
+            if (opcodes[i] == Opcode.LAB) {
+                targets.put(params1[i], pc);
+            } else if (opcodes[i] != Fuser.DELETED) {
+                pc += Opcode.getNumberOfParameters(opcodes[i]) + 1;
+            }
+        }
+
+        final int[] code = new int[pc];
+        final int[] instructionIndex = new int[pc];
+        pc = 0;
+        for (int i = 0; i < size; i++) {
+            final int opcode = opcodes[i];
+            if (opcode == Opcode.LAB || opcode == Fuser.DELETED) {
+                continue;
+            }
+            final int count = Opcode.getNumberOfParameters(opcode);
+            code[pc] = opcode;
+            if (count > 0) {
+                code[pc + 1] = Opcode.isBranch(opcode)
+                    ? Linker.resolve(program, i, params1[i], targets)
+                    : params1[i];
+            }
+            if (count > 1) {
+                code[pc + 2] = params2[i];
+            }
+            if (count > 2) {
+                code[pc + 3] = params3[i];
+            }
+            for (int j = 0; j <= count; j++) {
+                instructionIndex[pc + j] = i;
+            }
+            pc += count + 1;
+        }
+        return new LinkedProgram(code, instructionIndex, program, fusions);
+    }
+
+    /**
+     * Resolve the label operand of a branch instruction.
+     *
+     * @param program the program
+     * @param index the index of the branch instruction
+     * @param label the label operand
+     * @param targets the label -&gt; pc mapping
+     * @return the pc of the label
+     */
+    private static int resolve(final SlxProgram program, final int index,
+                               final int label,
+                               final Map<Integer, Integer> targets) {
+        final Integer target = targets.get(label);
+        if (target == null) {
+            throw new IllegalInstructionException
+                ("Unknown label: " + label + " at line " +
+                 program.getSourceLine(index));
+        }
+        return target;
+    }
+}
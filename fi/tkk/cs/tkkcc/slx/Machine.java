@@ -0,0 +1,108 @@
+package fi.tkk.cs.tkkcc.slx;
+
+import java.util.Arrays;
+
+/**
+ * State of the SLX machine: registers, operand stack and memory.
+ *
+ * The state is kept apart from the execution engines, so that the
+ * same program state can be run by whichever engine the interpreter
+ * has chosen.
+ */
+final class Machine {
+    /** Default memory size of the SLX machine */
+    static final int MEM_SIZE = 5000;
+    /** Default maximum number of steps of the SLX program */
+    static final int MAX_PROGRAM_SIZE = 1000000;
+    /** Largest allowed step limit, leaving room to count past the limit */
+    static final int MAX_STEP_LIMIT = Integer.MAX_VALUE / 2;
+    /** Number of words reserved in a frame for interpreter internal use */
+    static final int FRAME_SIZE = 2;
+    /** Initial capacity of the operand stack, grown on demand */
+    private static final int INITIAL_STACK_SIZE = 64;
+
+    /** The program to execute */
+    final LinkedProgram program;
+
+    /** The memory of the SLX machine */
+    final Memory memory;
+    /** Maximum number of steps to execute */
+    final int stepLimit;
+    /** The collected heap, <code>null</code> if ALC moves the hp */
+    final Heap heap;
+    /** The operand stack of the SLX machine */
+    int[] stack;
+    /** Number of values on the operand stack (index of the next free slot) */
+    int stackPointer = 0;
+    /** The program counter (pc) register */
+    int programCounter = 0;
+    /** The frame pointer (fp) register */
+    int framePointer = 0;
+    /** The heap pointer (hp) register */
+    int heapPointer;
+    /** Number of steps executed so far */
+    int steps = 0;
+    /** True when the program has stopped and can not be resumed */
+    boolean halted = false;
+
+    /**
+     * Initialize a new machine with the default memory and step limit.
+     *
+     * @param program the program to execute
+     */
+    Machine(final LinkedProgram program) {
+        this(program, Memory.shared(MEM_SIZE), MAX_PROGRAM_SIZE, false);
+    }
+
+    /**
+     * Initialize a new machine.
+     *
+     * @param program the program to execute
+     * @param memory the empty memory
+     * @param stepLimit the maximum number of steps to execute
+     * @param collected <code>true</code> to allocate the arrays from a
+     *                  garbage collected heap
+     */
+    Machine(final LinkedProgram program, final Memory memory,
+            final int stepLimit, final boolean collected) {
+        super();
+        this.program = program;
+        this.memory = memory;
+        this.stepLimit = stepLimit;
+        this.heap = collected ? new Heap(memory) : null;
+        this.heapPointer = memory.size();
+        this.stack = new int[INITIAL_STACK_SIZE];
+    }
+
+    /**
+     * Push a value to the operand stack, growing the stack if it is full.
+     *
+     * @param value the value to push
+     */
+    void push(final int value) {
+        if (this.stackPointer == this.stack.length) {
+            this.growStack();
+        }
+        this.stack[this.stackPointer++] = value;
+    }
+
+    /**
+     * Pop a value from the operand stack. The caller is responsible for
+     * checking that the stack is not empty.
+     *
+     * @return the popped value
+     */
+    int pop() {
+        return this.stack[--this.stackPointer];
+    }
+
+    /**
+     * Double the capacity of the operand stack.
+     *
+     * @return the new stack array
+     */
+    int[] growStack() {
+        this.stack = Arrays.copyOf(this.stack, this.stack.length * 2);
+        return this.stack;
+    }
+}
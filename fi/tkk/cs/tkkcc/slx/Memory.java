@@ -0,0 +1,269 @@
+package fi.tkk.cs.tkkcc.slx;
+
+import java.nio.ByteBuffer;
+import java.nio.ByteOrder;
+import java.nio.IntBuffer;
+import java.util.Arrays;
+
+/**
+ * Memory of the SLX machine.
+ *
+ * The frames grow up from address 0 and the heap grows down from the
+ * top of the memory. In the shared layout, the original layout of the
+ * machine, both live in one array allocated up front, and nothing stops
+ * them from overwriting each other. In the segmented layout the frames
+ * are limited to the addresses below the stack limit and the heap to
+ * the addresses above it, and each segment is allocated as it is used,
+ * so a large memory costs nothing until the program touches it. The
+ * heap segment can be kept outside the Java heap, in a direct buffer.
+ *
+ * Words that have never been written read as zero.
+ */
+final class Memory {
+    /** Largest number of words in a direct buffer */
+    private static final int MAX_DIRECT_WORDS = Integer.MAX_VALUE / 4;
+    /** Initial size of a segment, in words */
+    private static final int INITIAL_SEGMENT_SIZE = 1024;
+
+    /** Number of addressable words */
+    private final int size;
+    /** First address above the frames */
+    private final int stackLimit;
+    /** Lowest address of the heap */
+    private final int heapBase;
+    /** Words from address 0 up: the frames, or all memory if shared */
+    private int[] low;
+    /** Heap words from the top of the memory down, if on the Java heap */
+    private int[] high;
+    /** Heap words from the top of the memory down, if off the Java heap */
+    private IntBuffer direct;
+    /** Number of heap words allocated */
+    private int highLength;
+
+    /**
+     * Initialize a new memory.
+     *
+     * @param size the number of addressable words
+     * @param stackLimit the first address above the frames
+     * @param heapBase the lowest address of the heap
+     */
+    private Memory(final int size, final int stackLimit, final int heapBase) {
+        super();
+        this.size = size;
+        this.stackLimit = stackLimit;
+        this.heapBase = heapBase;
+    }
+
+    /**
+     * Create a memory in the shared layout.
+     *
+     * @param size the number of words
+     * @return the memory
+     */
+    static Memory shared(final int size) {
+        final Memory memory = new Memory(size, size, 0);
+        memory.low = new int[size];
+        return memory;
+    }
+
+    /**
+     * Create a memory in the segmented layout.
+     *
+     * @param size the number of addressable words
+     * @param stackSize the number of words for the frames
+     * @param offHeap <code>true</code> to keep the heap in a direct buffer
+     * @return the memory
+     */
+    static Memory segmented(final int size, final int stackSize,
+                            final boolean offHeap) {
+        if (stackSize <= 0 || stackSize >= size) {
+            throw new IllegalArgumentException
+                ("Stack size must be between 0 and the memory size");
+        }
+        if (offHeap && size - stackSize > MAX_DIRECT_WORDS) {
+            throw new IllegalArgumentException
+                ("Heap too large for a direct buffer");
+        }
+        final Memory memory = new Memory(size, stackSize, stackSize);
+        memory.low = new int[Math.min(stackSize, INITIAL_SEGMENT_SIZE)];
+        final int heap = Math.min(size - stackSize, INITIAL_SEGMENT_SIZE);
+        if (offHeap) {
+            memory.direct = Memory.allocateDirect(heap);
+        } else {
+            memory.high = new int[heap];
+        }
+        memory.highLength = heap;
+        return memory;
+    }
+
+    /**
+     * Read a word.
+     *
+     * @param address the address
+     * @return the word
+     * @throws ExecutionException if the address is outside the memory
+     */
+    int get(final int address) {
+        final int[] words = this.low;
+        if (address >= 0 && address < words.length) {
+            return words[address];
+        }
+        return this.getSlow(address);
+    }
+
+    /**
+     * Write a word.
+     *
+     * @param address the address
+     * @param value the word
+     * @throws ExecutionException if the address is outside the memory
+     */
+    void set(final int address, final int value) {
+        final int[] words = this.low;
+        if (address >= 0 && address < words.length) {
+            words[address] = value;
+        } else {
+            this.setSlow(address, value);
+        }
+    }
+
+    /**
+     * Read a word outside the low array.
+     *
+     * @param address the address
+     * @return the word
+     */
+    private int getSlow(final int address) {
+        this.check(address);
+        if (address < this.stackLimit) {
+            return 0;
+        }
+        final int index = this.size - 1 - address;
+        if (index >= this.highLength) {
+            return 0;
+        }
+        return this.direct != null
+            ? this.direct.get(index) : this.high[index];
+    }
+
+    /**
+     * Write a word outside the low array, growing the segment if needed.
+     *
+     * @param address the address
+     * @param value the word
+     */
+    private void setSlow(final int address, final int value) {
+        this.check(address);
+        if (address < this.stackLimit) {
+            this.low = Arrays.copyOf
+                (this.low, Memory.grownSize(this.low.length, address,
+                                            this.stackLimit));
+            this.low[address] = value;
+            return;
+        }
+        final int index = this.size - 1 - address;
+        if (index >= this.highLength) {
+            final int length = Memory.grownSize(this.highLength, index,
+                                                this.size - this.heapBase);
+            if (this.direct != null) {
+                final IntBuffer grown = Memory.allocateDirect(length);
+                this.direct.rewind();
+                grown.put(this.direct);
+                this.direct = grown;
+            } else {
+                this.high = Arrays.copyOf(this.high, length);
+            }
+            this.highLength = length;
+        }
+        if (this.direct != null) {
+            this.direct.put(index, value);
+        } else {
+            this.high[index] = value;
+        }
+    }
+
+    /**
+     * Check that an address is inside the memory.
+     *
+     * @param address the address
+     */
+    private void check(final int address) {
+        if (address < 0 || address >= this.size) {
+            throw Engine.fail("Memory access out of bounds");
+        }
+    }
+
+    /**
+     * Compute the new size of a growing segment.
+     *
+     * @param length the current size
+     * @param index the index that has to fit
+     * @param limit the largest size of the segment
+     * @return the new size
+     */
+    private static int grownSize(final int length, final int index,
+                                 final int limit) {
+        final long doubled = Math.max(2L * length, index + 1L);
+        return (int) Math.min(doubled, limit);
+    }
+
+    /**
+     * Allocate a direct buffer.
+     *
+     * @param words the number of words
+     * @return the buffer
+     */
+    private static IntBuffer allocateDirect(final int words) {
+        return ByteBuffer.allocateDirect(words * 4)
+            .order(ByteOrder.nativeOrder()).asIntBuffer();
+    }
+
+    /**
+     * Get the number of addressable words.
+     *
+     * @return the size
+     */
+    int size() {
+        return this.size;
+    }
+
+    /**
+     * Get the first address above the frames. A frame may not reach
+     * this address.
+     *
+     * @return the address
+     */
+    int getStackLimit() {
+        return this.stackLimit;
+    }
+
+    /**
+     * Get the number of words from address 0 up that the frames may
+     * have written.
+     *
+     * @return the first address above the words
+     */
+    int getFrameExtent() {
+        return Math.min(this.low.length, this.stackLimit);
+    }
+
+    /**
+     * Get the lowest address of the heap. An allocation may not go
+     * below this address.
+     *
+     * @return the address
+     */
+    int getHeapBase() {
+        return this.heapBase;
+    }
+
+    /**
+     * Get the array of the shared layout.
+     *
+     * @return the array holding all words, <code>null</code> if the
+     *         memory is segmented
+     */
+    int[] getArray() {
+        return this.heapBase == 0 ? this.low : null;
+    }
+}
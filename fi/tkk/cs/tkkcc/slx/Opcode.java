@@ -0,0 +1,198 @@
+package fi.tkk.cs.tkkcc.slx;
+
+/**
+ * Opcodes of the flat SLX code.
+ *
+ * The opcode of an instruction is the ordinal of its command word, so
+ * the order of the constants has to follow the declaration order of
+ * {@link CommandWord}. The constants exist because a switch statement
+ * over the code array needs compile time constants.
+ *
+ * The opcodes after the command words are superinstructions created by
+ * the {@link Fuser}. Each of them replaces a sequence of instructions
+ * and counts as that many steps.
+ */
+final class Opcode {
+    static final int LAB = 0;
+    static final int JZE = 1;
+    static final int JMP = 2;
+    static final int ALC = 3;
+    static final int SFR = 4;
+    static final int SBR = 5;
+    static final int RET = 6;
+    static final int ENT = 7;
+    static final int STL = 8;
+    static final int STM = 9;
+    static final int LDL = 10;
+    static final int LDM = 11;
+    static final int ADD = 12;
+    static final int SUB = 13;
+    static final int MUL = 14;
+    static final int DIV = 15;
+    static final int UMN = 16;
+    static final int WRI = 17;
+    static final int REA = 18;
+    static final int REQ = 19;
+    static final int RNE = 20;
+    static final int RLT = 21;
+    static final int RGT = 22;
+    static final int RLE = 23;
+    static final int RGE = 24;
+    static final int NOT = 25;
+    static final int HLT = 26;
+
+    /** ENT a; LDL: push local a */
+    static final int LDLI = 27;
+    /** ENT a; ...; STL: pop to local a */
+    static final int STLI = 28;
+    /** ENT k; ADD: add k to the top of the stack */
+    static final int ADDI = 29;
+    /** LDLI a; ADDI k; STLI a: add k to local a */
+    static final int INCL = 30;
+    /** ENT 1; ADD; ADD; LDM: load array element */
+    static final int ALDE = 31;
+    /** ENT 1; ADD; ADD: address of array element */
+    static final int AIDX = 32;
+    /** ENT k; REQ: compare the top of the stack to k */
+    static final int REQI = 33;
+    /** RLT; NOT; JZE l: jump if less than */
+    static final int BLT = 34;
+    /** RLT; JZE l: jump if greater or equal */
+    static final int BGE = 35;
+    /** NOT; JZE l: jump if one */
+    static final int JONE = 36;
+    /** SFR n; SBR l a: call l with a arguments from a frame of n words */
+    static final int CALL = 37;
+    /** RGE; JZE l: jump if less than, from a negated RLT */
+    static final int JLT = 38;
+
+    /** Number of command word opcodes */
+    static final int COMMAND_COUNT = 27;
+    /** Number of opcodes, including superinstructions */
+    static final int COUNT = 39;
+
+    /** Names of the superinstructions */
+    private static final String[] FUSED_NAMES = {
+        "LDLI", "STLI", "ADDI", "INCL", "ALDE", "AIDX", "REQI", "BLT",
+        "BGE", "JONE", "CALL", "JLT"
+    };
+    /** Number of parameters of the superinstructions */
+    private static final int[] FUSED_PARAMETERS = {
+        1, 1, 1, 2, 0, 0, 1, 1, 1, 1, 3, 1
+    };
+    /** Number of instructions replaced by each superinstruction */
+    private static final int[] FUSED_WEIGHTS = {
+        2, 2, 2, 6, 4, 3, 2, 3, 2, 2, 2, 2
+    };
+
+    /** The command words, indexed by opcode */
+    private static final CommandWord[] WORDS = CommandWord.values();
+
+    static {
+        // Check that the constants above follow the command word order
+        final CommandWord[] words = {
+            CommandWord.LAB, CommandWord.JZE, CommandWord.JMP,
+            CommandWord.ALC, CommandWord.SFR, CommandWord.SBR,
+            CommandWord.RET, CommandWord.ENT, CommandWord.STL,
+            CommandWord.STM, CommandWord.LDL, CommandWord.LDM,
+            CommandWord.ADD, CommandWord.SUB, CommandWord.MUL,
+            CommandWord.DIV, CommandWord.UMN, CommandWord.WRI,
+            CommandWord.REA, CommandWord.REQ, CommandWord.RNE,
+            CommandWord.RLT, CommandWord.RGT, CommandWord.RLE,
+            CommandWord.RGE, CommandWord.NOT, CommandWord.HLT
+        };
+        final int[] opcodes = {
+            LAB, JZE, JMP, ALC, SFR, SBR, RET, ENT, STL, STM, LDL, LDM,
+            ADD, SUB, MUL, DIV, UMN, WRI, REA, REQ, RNE, RLT, RGT, RLE,
+            RGE, NOT, HLT
+        };
+        if (WORDS.length != COMMAND_COUNT) {
+            throw new IllegalStateException("Opcode table out of date");
+        }
+        for (int i = 0; i < opcodes.length; i++) {
+            if (opcodes[i] != words[i].ordinal()) {
+                throw new IllegalStateException
+                    ("Opcode table out of date at " + words[i]);
+            }
+        }
+    }
+
+    /**
+     * Not instantiable.
+     */
+    private Opcode() {
+        super();
+    }
+
+    /**
+     * Get the number of inline parameters of an opcode.
+     *
+     * @param opcode the opcode
+     * @return the number of parameters following the opcode in the code
+     */
+    static int getNumberOfParameters(final int opcode) {
+        if (opcode >= COMMAND_COUNT) {
+            return FUSED_PARAMETERS[opcode - COMMAND_COUNT];
+        }
+        return WORDS[opcode].getNumberOfParameters();
+    }
+
+    /**
+     * Get the number of steps an opcode counts as.
+     *
+     * @param opcode the opcode
+     * @return 1 for command words, the length of the replaced sequence
+     *         for superinstructions
+     */
+    static int getWeight(final int opcode) {
+        if (opcode >= COMMAND_COUNT) {
+            return FUSED_WEIGHTS[opcode - COMMAND_COUNT];
+        }
+        return 1;
+    }
+
+    /**
+     * Check if the first parameter of an opcode is a label.
+     *
+     * @param opcode the opcode
+     * @return <code>true</code> for jumps, branches and calls
+     */
+    static boolean isBranch(final int opcode) {
+        switch (opcode) {
+        case JZE:
+        case JMP:
+        case SBR:
+        case BLT:
+        case BGE:
+        case JONE:
+        case CALL:
+        case JLT:
+            return true;
+        default:
+            return false;
+        }
+    }
+
+    /**
+     * Get the mnemonic of an opcode.
+     *
+     * @param opcode the opcode
+     * @return the name
+     */
+    static String getName(final int opcode) {
+        if (opcode >= COMMAND_COUNT) {
+            return FUSED_NAMES[opcode - COMMAND_COUNT];
+        }
+        return WORDS[opcode].name();
+    }
+
+    /**
+     * Get the command word of an opcode.
+     *
+     * @param opcode the opcode
+     * @return the command word
+     */
+    static CommandWord toCommandWord(final int opcode) {
+        return WORDS[opcode];
+    }
+}
@@ -0,0 +1,721 @@
+package fi.tkk.cs.tkkcc.slx;
+
+import java.io.FileInputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.PrintWriter;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.Paths;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+
+/**
+ * Peephole optimizer of SLX programs.
+ *
+ * Rewrites locally redundant instruction sequences, whether a compiler
+ * emitted them or the program was loaded from a file. The instructions
+ * are copied one by one into an output window, and after each one the
+ * rules are tried on the end of the window until none matches, so that
+ * the result of a rewrite is rewritten further. The passes over the
+ * program are repeated until one changes nothing; every rule makes the
+ * program shorter, so this ends.
+ *
+ * A rule only looks at instructions that follow each other without a
+ * label in between, so no jump can enter the sequence it rewrites.
+ * Each rule can be turned off by its name:
+ * <ul>
+ * <li>unreachable: an instruction after JMP, RET or HLT and before the
+ * next label is removed.</li>
+ * <li>jump-to-next: a JMP to a label right after it is removed.</li>
+ * <li>unused-label: a LAB no instruction refers to is removed.</li>
+ * <li>constant-jump: ENT c; JZE l becomes JMP l if c is 0 and is
+ * removed otherwise.</li>
+ * <li>constant-fold: an operator applied to constants is replaced by
+ * its result, with the int semantics of the machine. A division by
+ * zero is kept for the runtime to report.</li>
+ * <li>identity: ENT 0; ADD, ENT 0; SUB, ENT 1; MUL, ENT 1; DIV and
+ * UMN; UMN are removed, ENT -1; MUL and ENT -1; DIV become UMN.</li>
+ * <li>add-chain: ENT a; ADD; ENT b; ADD becomes ENT a + b; ADD, and
+ * the same with SUB.</li>
+ * <li>not-not: NOT; NOT is removed after a value that is 0 or 1.</li>
+ * <li>boolean-compare: ENT 1; REQ and ENT 0; RNE are removed after a
+ * value that is 0 or 1, ENT 0; REQ and ENT 1; RNE become NOT.</li>
+ * <li>inverted-compare: a comparison followed by NOT becomes the
+ * opposite comparison, for example RLT; NOT becomes RGE.</li>
+ * </ul>
+ * The values known to be 0 or 1 are the results of the comparisons
+ * and NOT, and the constants 0 and 1. NOT maps every value other than
+ * 1 to 1, so NOT; NOT is not an identity in general, and neither is
+ * ENT 1; REQ.
+ */
+public final class PeepholeOptimizer {
+    /** The rules, in the order they are tried */
+    private static final Rule[] RULES = {
+        new Rule("unreachable") {
+            @Override
+            boolean apply(final Window w) {
+                if (w.size() < 2 || w.op(0) == Opcode.LAB) {
+                    return false;
+                }
+                final int op = w.op(1);
+                if (op != Opcode.JMP && op != Opcode.RET
+                    && op != Opcode.HLT) {
+                    return false;
+                }
+                w.drop(1);
+                return true;
+            }
+        },
+        new Rule("jump-to-next") {
+            @Override
+            boolean apply(final Window w) {
+                // JMP l followed by a run of labels that defines l
+                for (int back = 0; back < w.size()
+                         && w.op(back) == Opcode.LAB; back++) {
+                    if (back + 1 < w.size() && w.op(back + 1) == Opcode.JMP
+                        && w.isLabelAmong(w.p1(back + 1), back)) {
+                        w.remove(back + 1);
+                        return true;
+                    }
+                }
+                return false;
+            }
+        },
+        new Rule("unused-label") {
+            @Override
+            boolean apply(final Window w) {
+                if (w.size() < 1 || w.op(0) != Opcode.LAB
+                    || w.isReferenced(w.p1(0))) {
+                    return false;
+                }
+                w.drop(1);
+                return true;
+            }
+        },
+        new Rule("constant-jump") {
+            @Override
+            boolean apply(final Window w) {
+                if (w.size() < 2 || w.op(0) != Opcode.JZE
+                    || w.op(1) != Opcode.ENT) {
+                    return false;
+                }
+                final int constant = w.p1(1);
+                final int target = w.p1(0);
+                final int line = w.line(1);
+                w.drop(2);
+                if (constant == 0) {
+                    w.push(Opcode.JMP, target, 0, line);
+                }
+                return true;
+            }
+        },
+        new Rule("constant-fold") {
+            @Override
+            boolean apply(final Window w) {
+                if (w.size() >= 2 && w.op(1) == Opcode.ENT
+                    && (w.op(0) == Opcode.UMN || w.op(0) == Opcode.NOT)) {
+                    final int x = w.p1(1);
+                    final int line = w.line(1);
+                    final int result = w.op(0) == Opcode.UMN
+                        ? -x : (x == 1 ? 0 : 1);
+                    w.drop(2);
+                    w.push(Opcode.ENT, result, 0, line);
+                    return true;
+                }
+                if (w.size() < 3 || w.op(1) != Opcode.ENT
+                    || w.op(2) != Opcode.ENT) {
+                    return false;
+                }
+                final int y = w.p1(2);
+                final int x = w.p1(1);
+                final int result;
+                switch (w.op(0)) {
+                case Opcode.ADD:
+                    result = y + x;
+                    break;
+                case Opcode.SUB:
+                    result = y - x;
+                    break;
+                case Opcode.MUL:
+                    result = y * x;
+                    break;
+                case Opcode.DIV:
+                    if (x == 0) {
+                        return false;
+                    }
+                    result = y / x;
+                    break;
+                case Opcode.REQ:
+                    result = y == x ? 1 : 0;
+                    break;
+                case Opcode.RNE:
+                    result = y != x ? 1 : 0;
+                    break;
+                case Opcode.RLT:
+                    result = y < x ? 1 : 0;
+                    break;
+                case Opcode.RGT:
+                    result = y > x ? 1 : 0;
+                    break;
+                case Opcode.RLE:
+                    result = y <= x ? 1 : 0;
+                    break;
+                case Opcode.RGE:
+                    result = y >= x ? 1 : 0;
+                    break;
+                default:
+                    return false;
+                }
+                final int line = w.line(2);
+                w.drop(3);
+                w.push(Opcode.ENT, result, 0, line);
+                return true;
+            }
+        },
+        new Rule("identity") {
+            @Override
+            boolean apply(final Window w) {
+                if (w.size() < 2) {
+                    return false;
+                }
+                final int op = w.op(0);
+                if (op == Opcode.UMN && w.op(1) == Opcode.UMN) {
+                    w.drop(2);
+                    return true;
+                }
+                if (w.op(1) != Opcode.ENT) {
+                    return false;
+                }
+                final int x = w.p1(1);
+                if ((x == 0 && (op == Opcode.ADD || op == Opcode.SUB))
+                    || (x == 1 && (op == Opcode.MUL || op == Opcode.DIV))) {
+                    w.drop(2);
+                    return true;
+                }
+                if (x == -1 && (op == Opcode.MUL || op == Opcode.DIV)) {
+                    final int line = w.line(1);
+                    w.drop(2);
+                    w.push(Opcode.UMN, 0, 0, line);
+                    return true;
+                }
+                return false;
+            }
+        },
+        new Rule("add-chain") {
+            @Override
+            boolean apply(final Window w) {
+                if (w.size() < 4 || w.op(1) != Opcode.ENT
+                    || w.op(3) != Opcode.ENT || !isAdditive(w.op(0))
+                    || !isAdditive(w.op(2))) {
+                    return false;
+                }
+                // x - c is x + (-c) for every int c
+                final int sum = (w.op(2) == Opcode.ADD ? w.p1(3) : -w.p1(3))
+                    + (w.op(0) == Opcode.ADD ? w.p1(1) : -w.p1(1));
+                final int line = w.line(3);
+                w.drop(4);
+                w.push(Opcode.ENT, sum, 0, line);
+                w.push(Opcode.ADD, 0, 0, line);
+                return true;
+            }
+        },
+        new Rule("not-not") {
+            @Override
+            boolean apply(final Window w) {
+                if (w.size() < 3 || w.op(0) != Opcode.NOT
+                    || w.op(1) != Opcode.NOT || !w.isBoolean(2)) {
+                    return false;
+                }
+                w.drop(2);
+                return true;
+            }
+        },
+        new Rule("boolean-compare") {
+            @Override
+            boolean apply(final Window w) {
+                if (w.size() < 3 || w.op(1) != Opcode.ENT
+                    || (w.op(0) != Opcode.REQ && w.op(0) != Opcode.RNE)
+                    || !w.isBoolean(2)) {
+                    return false;
+                }
+                final int x = w.p1(1);
+                if (x != 0 && x != 1) {
+                    return false;
+                }
+                // v == 1 and v != 0 are v, v == 0 and v != 1 are !v
+                final boolean same = (x == 1) == (w.op(0) == Opcode.REQ);
+                final int line = w.line(1);
+                w.drop(2);
+                if (!same) {
+                    w.push(Opcode.NOT, 0, 0, line);
+                }
+                return true;
+            }
+        },
+        new Rule("inverted-compare") {
+            @Override
+            boolean apply(final Window w) {
+                if (w.size() < 2 || w.op(0) != Opcode.NOT) {
+                    return false;
+                }
+                final int inverse;
+                switch (w.op(1)) {
+                case Opcode.REQ:
+                    inverse = Opcode.RNE;
+                    break;
+                case Opcode.RNE:
+                    inverse = Opcode.REQ;
+                    break;
+                case Opcode.RLT:
+                    inverse = Opcode.RGE;
+                    break;
+                case Opcode.RGE:
+                    inverse = Opcode.RLT;
+                    break;
+                case Opcode.RGT:
+                    inverse = Opcode.RLE;
+                    break;
+                case Opcode.RLE:
+                    inverse = Opcode.RGT;
+                    break;
+                default:
+                    return false;
+                }
+                final int line = w.line(1);
+                w.drop(2);
+                w.push(inverse, 0, 0, line);
+                return true;
+            }
+        }
+    };
+
+    /** Names of the rules turned off */
+    private final Set<String> disabled = new HashSet<String>();
+    /** Number of rewrites by each rule in the last optimization */
+    private final int[] hits = new int[RULES.length];
+    /** Number of passes of the last optimization */
+    private int passes = 0;
+
+    /**
+     * Initialize a new optimizer with all the rules.
+     */
+    public PeepholeOptimizer() {
+        super();
+    }
+
+    /**
+     * Get the names of the rules.
+     *
+     * @return the names, in the order the rules are tried
+     */
+    public static List<String> getRuleNames() {
+        final List<String> names = new ArrayList<String>();
+        for (Rule rule : RULES) {
+            names.add(rule.name);
+        }
+        return Collections.unmodifiableList(names);
+    }
+
+    /**
+     * Turn a rule on or off. All the rules are on by default.
+     *
+     * @param name the name of the rule
+     * @param enabled <code>true</code> to use the rule
+     */
+    public void setRuleEnabled(final String name, final boolean enabled) {
+        if (!PeepholeOptimizer.getRuleNames().contains(name)) {
+            throw new IllegalArgumentException
+                ("Unknown peephole rule: " + name + "!");
+        }
+        if (enabled) {
+            this.disabled.remove(name);
+        } else {
+            this.disabled.add(name);
+        }
+    }
+
+    /**
+     * Is a rule used?
+     *
+     * @param name the name of the rule
+     * @return <code>true</code> if the rule is on
+     */
+    public boolean isRuleEnabled(final String name) {
+        return PeepholeOptimizer.getRuleNames().contains(name)
+            && !this.disabled.contains(name);
+    }
+
+    /**
+     * Optimize a program.
+     *
+     * @param program the program, not modified
+     * @return the optimized program, with the source lines of the
+     *         original instructions
+     */
+    public SlxProgram optimize(final SlxProgram program) {
+        final boolean[] enabled = new boolean[RULES.length];
+        for (int i = 0; i < RULES.length; i++) {
+            enabled[i] = !this.disabled.contains(RULES[i].name);
+        }
+        Arrays.fill(this.hits, 0);
+        this.passes = 0;
+
+        final int size = program.size();
+        Window input = new Window(size);
+        for (int i = 0; i < size; i++) {
+            final CommandWord command = program.getCommandWord(i);
+            input.push(command.ordinal(),
+                       command.getNumberOfParameters() > 0
+                       ? program.getParameter(i, 0) : 0,
+                       command.getNumberOfParameters() > 1
+                       ? program.getParameter(i, 1) : 0,
+                       program.getSourceLine(i));
+        }
+        boolean changed = true;
+        while (changed) {
+            changed = false;
+            this.passes++;
+            final Window output = new Window(input.size());
+            output.countReferences(input);
+            for (int i = 0; i < input.size(); i++) {
+                output.push(input.opcodes[i], input.params1[i],
+                            input.params2[i], input.lines[i]);
+                for (int rule = 0; rule < RULES.length; rule++) {
+                    if (enabled[rule] && RULES[rule].apply(output)) {
+                        this.hits[rule]++;
+                        changed = true;
+                        // Try all the rules again on the new end
+                        rule = -1;
+                    }
+                }
+            }
+            input = output;
+        }
+
+        final SlxProgram optimized = new SlxProgram();
+        for (int i = 0; i < input.size(); i++) {
+            optimized.add(input.opcodes[i], input.params1[i],
+                          input.params2[i], input.lines[i]);
+        }
+        return optimized;
+    }
+
+    /**
+     * Get the number of rewrites each rule made in the last
+     * optimization.
+     *
+     * @return rule name -&gt; number of rewrites, for all the rules
+     */
+    public Map<String, Integer> getHitCounts() {
+        final Map<String, Integer> counts =
+            new LinkedHashMap<String, Integer>();
+        for (int i = 0; i < RULES.length; i++) {
+            counts.put(RULES[i].name, this.hits[i]);
+        }
+        return Collections.unmodifiableMap(counts);
+    }
+
+    /**
+     * Get the number of passes over the program the last optimization
+     * took, including the last one that changed nothing.
+     *
+     * @return the number of passes
+     */
+    public int getPasses() {
+        return this.passes;
+    }
+
+    /**
+     * Is an opcode ADD or SUB?
+     *
+     * @param opcode the opcode
+     * @return <code>true</code> for ADD and SUB
+     */
+    private static boolean isAdditive(final int opcode) {
+        return opcode == Opcode.ADD || opcode == Opcode.SUB;
+    }
+
+    /**
+     * Optimize an SLX file.
+     *
+     * @param args [-b] input file and output file; with -b the output is
+     *             written in the binary object format
+     */
+    public static void main(final String[] args) {
+        final boolean binary = args.length == 3 && "-b".equals(args[0]);
+        if (args.length != (binary ? 3 : 2)) {
+            System.out.println
+                ("Usage: java fi.tkk.cs.tkkcc.slx.PeepholeOptimizer"
+                 + " [-b] <input> <output>");
+            return;
+        }
+        try {
+            final Path path = Paths.get(args[args.length - 2]);
+            final SlxProgram program;
+            if (SlxObjectFile.isObjectFile(path)) {
+                program = SlxObjectFile.read(path);
+            } else {
+                final InputStream in = new FileInputStream(path.toFile());
+                try {
+                    program = SlxTextLoader.load(in);
+                } finally {
+                    in.close();
+                }
+            }
+            final PeepholeOptimizer optimizer = new PeepholeOptimizer();
+            final SlxProgram optimized = optimizer.optimize(program);
+            final Path output = Paths.get(args[args.length - 1]);
+            if (binary) {
+                SlxObjectFile.write(optimized, output);
+            } else {
+                final PrintWriter writer = new PrintWriter
+                    (Files.newBufferedWriter(output));
+                try {
+                    writer.println(optimized);
+                } finally {
+                    writer.close();
+                }
+            }
+            System.out.println(program.size() + " -> " + optimized.size()
+                               + " instructions in " + optimizer.getPasses()
+                               + " passes");
+            for (Map.Entry<String, Integer> entry
+                     : optimizer.getHitCounts().entrySet()) {
+                System.out.println(entry.getKey() + ": " + entry.getValue());
+            }
+        } catch (IllegalInstructionException e) {
+            System.out.println(e.getMessage());
+        } catch (IOException e) {
+            System.out.println("IO error: " + e.getMessage());
+        }
+    }
+
+    /**
+     * A rewrite rule, applied to the end of the output window.
+     */
+    private abstract static class Rule {
+        /** The name of the rule */
+        final String name;
+
+        /**
+         * Initialize a new rule.
+         *
+         * @param name the name of the rule
+         */
+        Rule(final String name) {
+            super();
+            this.name = name;
+        }
+
+        /**
+         * Rewrite the end of the window if the rule matches it.
+         *
+         * @param w the window
+         * @return <code>true</code> if the window was changed
+         */
+        abstract boolean apply(Window w);
+    }
+
+    /**
+     * A growing sequence of instructions, addressed from its end.
+     */
+    private static final class Window {
+        /** The opcodes */
+        int[] opcodes;
+        /** The first parameters */
+        int[] params1;
+        /** The second parameters */
+        int[] params2;
+        /** The source lines */
+        int[] lines;
+        /** Number of instructions */
+        private int size = 0;
+        /** Number of jumps and calls to each label in the pass */
+        private final Map<Integer, Integer> references =
+            new HashMap<Integer, Integer>();
+
+        /**
+         * Initialize a new empty window.
+         *
+         * @param capacity the initial capacity
+         */
+        Window(final int capacity) {
+            super();
+            final int length = Math.max(capacity, 16);
+            this.opcodes = new int[length];
+            this.params1 = new int[length];
+            this.params2 = new int[length];
+            this.lines = new int[length];
+        }
+
+        /**
+         * Count the references to the labels in the input of a pass.
+         * Instructions removed during the pass keep their references
+         * until the next one, which only keeps labels longer.
+         *
+         * @param input the instructions
+         */
+        void countReferences(final Window input) {
+            for (int i = 0; i < input.size; i++) {
+                final int op = input.opcodes[i];
+                if (op == Opcode.JMP || op == Opcode.JZE
+                    || op == Opcode.SBR) {
+                    final Integer count =
+                        this.references.get(input.params1[i]);
+                    this.references.put(input.params1[i],
+                                        count == null ? 1 : count + 1);
+                }
+            }
+        }
+
+        /**
+         * Is a label the target of some instruction?
+         *
+         * @param label the label
+         * @return <code>true</code> if some jump or call refers to it
+         */
+        boolean isReferenced(final int label) {
+            return this.references.containsKey(label);
+        }
+
+        /**
+         * Is a label defined by the last instructions?
+         *
+         * @param label the label
+         * @param last the position of the earliest instruction to look
+         *        at, counted back from the end
+         * @return <code>true</code> if one of them is LAB label
+         */
+        boolean isLabelAmong(final int label, final int last) {
+            for (int back = 0; back <= last; back++) {
+                if (this.op(back) == Opcode.LAB && this.p1(back) == label) {
+                    return true;
+                }
+            }
+            return false;
+        }
+
+        /**
+         * Is the value an instruction pushes known to be 0 or 1?
+         *
+         * @param back the position of the instruction from the end
+         * @return <code>true</code> for the comparisons, NOT, ENT 0 and
+         *         ENT 1
+         */
+        boolean isBoolean(final int back) {
+            switch (this.op(back)) {
+            case Opcode.REQ:
+            case Opcode.RNE:
+            case Opcode.RLT:
+            case Opcode.RGT:
+            case Opcode.RLE:
+            case Opcode.RGE:
+            case Opcode.NOT:
+                return true;
+            case Opcode.ENT:
+                return this.p1(back) == 0 || this.p1(back) == 1;
+            default:
+                return false;
+            }
+        }
+
+        /**
+         * Get the number of instructions.
+         *
+         * @return the size
+         */
+        int size() {
+            return this.size;
+        }
+
+        /**
+         * Get an opcode.
+         *
+         * @param back the position from the end, 0 for the last
+         * @return the opcode
+         */
+        int op(final int back) {
+            return this.opcodes[this.size - 1 - back];
+        }
+
+        /**
+         * Get a first parameter.
+         *
+         * @param back the position from the end, 0 for the last
+         * @return the parameter
+         */
+        int p1(final int back) {
+            return this.params1[this.size - 1 - back];
+        }
+
+        /**
+         * Get a source line.
+         *
+         * @param back the position from the end, 0 for the last
+         * @return the line
+         */
+        int line(final int back) {
+            return this.lines[this.size - 1 - back];
+        }
+
+        /**
+         * Remove the last instructions.
+         *
+         * @param count the number of instructions
+         */
+        void drop(final int count) {
+            this.size -= count;
+        }
+
+        /**
+         * Remove one instruction, moving the ones after it back.
+         *
+         * @param back the position from the end, 0 for the last
+         */
+        void remove(final int back) {
+            final int index = this.size - 1 - back;
+            final int moved = back;
+            System.arraycopy(this.opcodes, index + 1, this.opcodes, index,
+                             moved);
+            System.arraycopy(this.params1, index + 1, this.params1, index,
+                             moved);
+            System.arraycopy(this.params2, index + 1, this.params2, index,
+                             moved);
+            System.arraycopy(this.lines, index + 1, this.lines, index,
+                             moved);
+            this.size--;
+        }
+
+        /**
+         * Add an instruction to the end.
+         *
+         * @param opcode the opcode
+         * @param param1 the first parameter
+         * @param param2 the second parameter
+         * @param line the source line
+         */
+        void push(final int opcode, final int param1, final int param2,
+                  final int line) {
+            if (this.size == this.opcodes.length) {
+                final int length = this.size * 2;
+                this.opcodes = Arrays.copyOf(this.opcodes, length);
+                this.params1 = Arrays.copyOf(this.params1, length);
+                this.params2 = Arrays.copyOf(this.params2, length);
+                this.lines = Arrays.copyOf(this.lines, length);
+            }
+            this.opcodes[this.size] = opcode;
+            this.params1[this.size] = param1;
+            this.params2[this.size] = param2;
+            this.lines[this.size] = line;
+            this.size++;
+        }
+    }
+}
@@ -0,0 +1,493 @@
+package fi.tkk.cs.tkkcc.slx;
+
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.TreeMap;
+
+/**
+ * Execution profile of an SLX program, recorded by the profiling
+ * engine.
+ *
+ * The engine counts the executions of each instruction and reports
+ * calls, returns and allocations. Everything else is derived from
+ * these when the profile is read: the counts per opcode, per basic
+ * block and per source line, and the call tree with the steps, the
+ * wall time and the heap words of each function.
+ *
+ * A function is named after the first label of its entry, "L" followed
+ * by the label, and the main program is "main".
+ */
+public final class Profile {
+    /** The profiled program */
+    private final LinkedProgram program;
+    /** Number of executions of the instruction at each pc */
+    final long[] counts;
+    /** Root of the call tree, the main program */
+    private final Node root;
+    /** Call tree node of the running function */
+    private Node current;
+    /** Current call depth */
+    private int depth = 0;
+    /** Deepest call depth reached */
+    private int maxDepth = 0;
+    /** Number of allocations */
+    private long allocations = 0;
+    /** Number of words allocated, including the length fields */
+    private long allocatedWords = 0;
+    /** Number of steps executed */
+    private long steps = 0;
+    /** Steps at the last call or return */
+    private long lastSteps = 0;
+    /** Time of the last call or return */
+    private long lastNanos;
+
+    /**
+     * Initialize a new profile.
+     *
+     * @param program the program
+     * @param entry the pc the execution starts from
+     */
+    Profile(final LinkedProgram program, final int entry) {
+        super();
+        this.program = program;
+        this.counts = new long[program.getCode().length];
+        this.root = new Node(entry, null);
+        this.current = this.root;
+        this.lastNanos = System.nanoTime();
+    }
+
+    /**
+     * Record a call.
+     *
+     * @param target the entry pc of the called function
+     * @param step the steps executed before the call
+     */
+    void call(final int target, final int step) {
+        this.charge(step);
+        this.current = this.current.child(target);
+        this.current.calls++;
+        if (++this.depth > this.maxDepth) {
+            this.maxDepth = this.depth;
+        }
+    }
+
+    /**
+     * Record a return.
+     *
+     * @param step the steps executed before the return
+     */
+    void ret(final int step) {
+        this.charge(step);
+        if (this.current.parent != null) {
+            this.current = this.current.parent;
+            this.depth--;
+        }
+    }
+
+    /**
+     * Record an allocation.
+     *
+     * @param words the words allocated, including the length field
+     */
+    void alloc(final int words) {
+        this.allocations++;
+        this.allocatedWords += words;
+        this.current.allocatedWords += words;
+    }
+
+    /**
+     * Record the end of the execution.
+     *
+     * @param step the steps executed
+     */
+    void finish(final int step) {
+        this.charge(step);
+        this.steps = step;
+    }
+
+    /**
+     * Charge the steps and the time since the last event to the
+     * running function.
+     *
+     * @param step the steps executed
+     */
+    private void charge(final long step) {
+        final long now = System.nanoTime();
+        this.current.selfSteps += step - this.lastSteps;
+        this.current.selfNanos += now - this.lastNanos;
+        this.lastSteps = step;
+        this.lastNanos = now;
+    }
+
+    /**
+     * Get the number of steps executed.
+     *
+     * @return the steps
+     */
+    public long getSteps() {
+        return this.steps;
+    }
+
+    /**
+     * Get the deepest call depth reached. The main program is at
+     * depth 0.
+     *
+     * @return the depth
+     */
+    public int getMaxCallDepth() {
+        return this.maxDepth;
+    }
+
+    /**
+     * Get the number of words allocated with ALC, including the length
+     * fields.
+     *
+     * @return the words
+     */
+    public long getAllocatedWords() {
+        return this.allocatedWords;
+    }
+
+    /**
+     * Get the number of executions of each opcode.
+     *
+     * @return opcode name -&gt; count, for the executed opcodes
+     */
+    public Map<String, Long> getOpcodeCounts() {
+        final long[] byOpcode = new long[Opcode.COUNT];
+        final int[] code = this.program.getCode();
+        for (int pc = 0; pc < code.length; pc = this.next(pc)) {
+            byOpcode[code[pc]] += this.counts[pc];
+        }
+        final Map<String, Long> result = new LinkedHashMap<String, Long>();
+        for (int opcode = 0; opcode < byOpcode.length; opcode++) {
+            if (byOpcode[opcode] > 0) {
+                result.put(Opcode.getName(opcode), byOpcode[opcode]);
+            }
+        }
+        return Collections.unmodifiableMap(result);
+    }
+
+    /**
+     * Get the number of instructions executed per source line.
+     *
+     * @return line -&gt; steps, for the lines with executed code; line
+     *         0 collects the code without a known line
+     */
+    public Map<Integer, Long> getLineCounts() {
+        final Map<Integer, Long> result = new TreeMap<Integer, Long>();
+        final int[] code = this.program.getCode();
+        for (int pc = 0; pc < code.length; pc = this.next(pc)) {
+            if (this.counts[pc] > 0) {
+                final int line = this.program.getSourceLine(pc);
+                final Long sum = result.get(line);
+                result.put(line, (sum != null ? sum : 0L) + this.counts[pc]);
+            }
+        }
+        return Collections.unmodifiableMap(result);
+    }
+
+    /**
+     * Write the profile as a JSON document.
+     *
+     * @param out where to write
+     * @throws IOException if writing fails
+     */
+    public void writeReport(final Appendable out) throws IOException {
+        final int[] code = this.program.getCode();
+        out.append("{\n  \"steps\": ").append(Long.toString(this.steps))
+            .append(",\n  \"maxCallDepth\": ")
+            .append(Integer.toString(this.maxDepth))
+            .append(",\n  \"heap\": {\"allocations\": ")
+            .append(Long.toString(this.allocations))
+            .append(", \"words\": ").append(Long.toString(this.allocatedWords))
+            .append("},\n  \"opcodes\": {");
+        String separator = "\n    ";
+        for (Map.Entry<String, Long> e : this.getOpcodeCounts().entrySet()) {
+            out.append(separator).append('"').append(e.getKey())
+                .append("\": ").append(Long.toString(e.getValue()));
+            separator = ",\n    ";
+        }
+
+        out.append("\n  },\n  \"functions\": [");
+        separator = "\n    ";
+        for (Function f : this.functions().values()) {
+            out.append(separator).append("{\"name\": \"").append(f.name)
+                .append("\", \"pc\": ").append(Integer.toString(f.entry))
+                .append(", \"line\": ")
+                .append(Integer.toString(this.program.getSourceLine(f.entry)))
+                .append(", \"calls\": ").append(Long.toString(f.calls))
+                .append(", \"selfSteps\": ").append(Long.toString(f.selfSteps))
+                .append(", \"totalSteps\": ")
+                .append(Long.toString(f.totalSteps))
+                .append(", \"selfNanos\": ").append(Long.toString(f.selfNanos))
+                .append(", \"totalNanos\": ")
+                .append(Long.toString(f.totalNanos))
+                .append(", \"heapWords\": ")
+                .append(Long.toString(f.allocatedWords)).append('}');
+            separator = ",\n    ";
+        }
+
+        out.append("\n  ],\n  \"blocks\": [");
+        separator = "\n    ";
+        final boolean[] leaders = this.leaders();
+        for (int pc = 0; pc < code.length; pc = this.next(pc)) {
+            if (!leaders[pc] || this.counts[pc] == 0) {
+                continue;
+            }
+            long blockSteps = 0;
+            int end = pc;
+            do {
+                blockSteps += this.counts[end];
+                end = this.next(end);
+            } while (end < code.length && !leaders[end]);
+            out.append(separator).append("{\"pc\": ")
+                .append(Integer.toString(pc)).append(", \"end\": ")
+                .append(Integer.toString(end)).append(", \"labels\": ")
+                .append(Arrays.toString(this.program.getLabels(pc)))
+                .append(", \"line\": ")
+                .append(Integer.toString(this.program.getSourceLine(pc)))
+                .append(", \"executions\": ")
+                .append(Long.toString(this.counts[pc]))
+                .append(", \"steps\": ").append(Long.toString(blockSteps))
+                .append('}');
+            separator = ",\n    ";
+        }
+
+        out.append("\n  ],\n  \"lines\": {");
+        separator = "\n    ";
+        for (Map.Entry<Integer, Long> e : this.getLineCounts().entrySet()) {
+            out.append(separator).append('"')
+                .append(Integer.toString(e.getKey())).append("\": ")
+                .append(Long.toString(e.getValue()));
+            separator = ",\n    ";
+        }
+        out.append("\n  }\n}\n");
+    }
+
+    /**
+     * Write the call tree in the collapsed stack format of flame graph
+     * tools: one line per call path, the functions separated by
+     * semicolons and followed by the steps executed in the last one.
+     *
+     * @param out where to write
+     * @throws IOException if writing fails
+     */
+    public void writeCollapsedStacks(final Appendable out)
+        throws IOException {
+        this.writeStacks(out, this.root, this.name(this.root.entry));
+    }
+
+    /**
+     * Write the collapsed stacks of a call tree node and its callees.
+     *
+     * @param out where to write
+     * @param node the node
+     * @param path the call path of the node
+     * @throws IOException if writing fails
+     */
+    private void writeStacks(final Appendable out, final Node node,
+                             final String path) throws IOException {
+        if (node.selfSteps > 0) {
+            out.append(path).append(' ')
+                .append(Long.toString(node.selfSteps)).append('\n');
+        }
+        for (int i = 0; i < node.childCount; i++) {
+            final Node child = node.children[i];
+            this.writeStacks(out, child,
+                             path + ";" + this.name(child.entry));
+        }
+    }
+
+    /**
+     * Sum up the call tree per function.
+     *
+     * @return the functions by entry pc, the main program first
+     */
+    private Map<Integer, Function> functions() {
+        final Map<Integer, Function> functions =
+            new LinkedHashMap<Integer, Function>();
+        this.sum(this.root, functions, new ArrayList<Integer>());
+        return functions;
+    }
+
+    /**
+     * Add a call tree node and its callees to the function sums. The
+     * totals of a function only count its outermost activations, so
+     * recursion is not counted twice.
+     *
+     * @param node the node
+     * @param functions the sums
+     * @param active the functions on the call path of the node
+     * @return the steps and the time of the node and its callees
+     */
+    private long[] sum(final Node node, final Map<Integer, Function> functions,
+                       final List<Integer> active) {
+        Function f = functions.get(node.entry);
+        if (f == null) {
+            f = new Function(node.entry, this.name(node.entry));
+            functions.put(node.entry, f);
+        }
+        f.calls += node.calls;
+        f.selfSteps += node.selfSteps;
+        f.selfNanos += node.selfNanos;
+        f.allocatedWords += node.allocatedWords;
+
+        final long[] total = {node.selfSteps, node.selfNanos};
+        active.add(node.entry);
+        for (int i = 0; i < node.childCount; i++) {
+            final long[] child = this.sum(node.children[i], functions, active);
+            total[0] += child[0];
+            total[1] += child[1];
+        }
+        active.remove(active.size() - 1);
+        if (!active.contains(node.entry)) {
+            f.totalSteps += total[0];
+            f.totalNanos += total[1];
+        }
+        return total;
+    }
+
+    /**
+     * Find the first instructions of the basic blocks: the entry, the
+     * targets of branches and calls and the instructions following
+     * them.
+     *
+     * @return for each pc, <code>true</code> if a block starts there
+     */
+    private boolean[] leaders() {
+        final int[] code = this.program.getCode();
+        final boolean[] leaders = new boolean[code.length + 1];
+        leaders[this.root.entry] = true;
+        for (int pc = 0; pc < code.length; pc = this.next(pc)) {
+            final int opcode = code[pc];
+            if (Opcode.isBranch(opcode)) {
+                leaders[code[pc + 1]] = true;
+            }
+            if (Opcode.isBranch(opcode) || opcode == Opcode.RET
+                || opcode == Opcode.HLT) {
+                leaders[this.next(pc)] = true;
+            }
+        }
+        return leaders;
+    }
+
+    /**
+     * Get the name of a function.
+     *
+     * @param entry the entry pc of the function
+     * @return the name
+     */
+    private String name(final int entry) {
+        if (entry == this.root.entry) {
+            return "main";
+        }
+        final int[] labels = this.program.getLabels(entry);
+        return labels.length > 0 ? "L" + labels[0] : "pc" + entry;
+    }
+
+    /**
+     * Get the pc of the instruction following an instruction.
+     *
+     * @param pc the pc of the instruction
+     * @return the pc of the next instruction
+     */
+    private int next(final int pc) {
+        return pc + Opcode.getNumberOfParameters(this.program.getCode()[pc])
+            + 1;
+    }
+
+    /**
+     * A node of the call tree: a function called along one call path.
+     */
+    private static final class Node {
+        /** Entry pc of the function */
+        private final int entry;
+        /** The caller, <code>null</code> for the main program */
+        private final Node parent;
+        /** The callees */
+        private Node[] children = new Node[0];
+        /** Number of callees */
+        private int childCount = 0;
+        /** Number of calls along this path */
+        private long calls = 0;
+        /** Steps executed in the function itself */
+        private long selfSteps = 0;
+        /** Time spent in the function itself */
+        private long selfNanos = 0;
+        /** Words allocated in the function itself */
+        private long allocatedWords = 0;
+
+        /**
+         * Initialize a new node.
+         *
+         * @param entry the entry pc of the function
+         * @param parent the caller
+         */
+        Node(final int entry, final Node parent) {
+            super();
+            this.entry = entry;
+            this.parent = parent;
+        }
+
+        /**
+         * Get the node of a callee, creating it on the first call.
+         *
+         * @param target the entry pc of the callee
+         * @return the node
+         */
+        Node child(final int target) {
+            for (int i = 0; i < this.childCount; i++) {
+                if (this.children[i].entry == target) {
+                    return this.children[i];
+                }
+            }
+            if (this.childCount == this.children.length) {
+                this.children = Arrays.copyOf(this.children,
+                                              this.childCount * 2 + 1);
+            }
+            final Node node = new Node(target, this);
+            this.children[this.childCount++] = node;
+            return node;
+        }
+    }
+
+    /**
+     * Totals of a function over all call paths.
+     */
+    private static final class Function {
+        /** Entry pc */
+        private final int entry;
+        /** Name */
+        private final String name;
+        /** Number of calls */
+        private long calls = 0;
+        /** Steps executed in the function itself */
+        private long selfSteps = 0;
+        /** Steps executed in the function and its callees */
+        private long totalSteps = 0;
+        /** Time spent in the function itself */
+        private long selfNanos = 0;
+        /** Time spent in the function and its callees */
+        private long totalNanos = 0;
+        /** Words allocated in the function itself */
+        private long allocatedWords = 0;
+
+        /**
+         * Initialize new totals.
+         *
+         * @param entry the entry pc
+         * @param name the name
+         */
+        Function(final int entry, final String name) {
+            super();
+            this.entry = entry;
+            this.name = name;
+        }
+    }
+}
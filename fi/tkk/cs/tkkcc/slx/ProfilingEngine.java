@@ -0,0 +1,291 @@
+package fi.tkk.cs.tkkcc.slx;
+
+import java.util.NoSuchElementException;
+
+/**
+ * Profiling execution engine.
+ *
+ * Runs the program like the fast engine, without superinstructions, and
+ * records a {@link Profile} of each execution: the executions of each
+ * instruction are counted in an array indexed by the program counter,
+ * and calls, returns and allocations are reported to the profile as
+ * they happen.
+ */
+final class ProfilingEngine extends Engine {
+    /** The profile of the last execution */
+    private Profile profile;
+
+    /**
+     * Get the profile of the last execution.
+     *
+     * @return the profile, <code>null</code> if nothing was executed
+     */
+    Profile getProfile() {
+        return this.profile;
+    }
+
+    @Override
+    void execute(final Machine m, final IntInput input,
+                 final IntOutput output) {
+        final int[] code = m.program.getCode();
+        final Profile profile = new Profile(m.program, m.programCounter);
+        this.profile = profile;
+        final long[] counts = profile.counts;
+        final Memory memory = m.memory;
+        int[] stack = m.stack;
+        int sp = m.stackPointer;
+        int pc = m.programCounter;
+        int fp = m.framePointer;
+        int hp = m.heapPointer;
+        int step = 0;
+        boolean halt = false;
+        // Start of the current instruction, for diagnostics
+        int start = pc;
+        int x1;
+        int x2;
+
+        try {
+            while (!halt && step < m.stepLimit) {
+                start = pc;
+                counts[pc]++;
+                switch (code[pc++]) {
+                case Opcode.ADD:
+                    if (sp < 2) {
+                        throw Engine.fail("Stack underflow");
+                    }
+                    x1 = stack[--sp];
+                    stack[sp - 1] = x1 + stack[sp - 1];
+                    break;
+                case Opcode.ALC:
+                    // Allocate memory: take area size from stack, add one
+                    // for length field. Move heap pointer and store
+                    // length field. Push the pointer to stack.
+                    if (sp < 1) {
+                        throw Engine.fail("Stack underflow");
+                    }
+                    x1 = stack[sp - 1];
+                    profile.alloc(x1 + 2);
+                    if (m.heap != null) {
+                        stack[sp - 1] = m.heap.allocate(x1, stack, sp - 1);
+                        break;
+                    }
+                    hp = hp - (x1 + 1) - 1;
+                    if (hp < memory.getHeapBase()) {
+                        throw Engine.fail("Heap out of memory bounds");
+                    }
+                    memory.set(hp, x1);
+                    stack[sp - 1] = hp;
+                    break;
+                case Opcode.DIV:
+                    // x = pop(); y = pop(); push(y / x);
+                    if (sp < 2) {
+                        throw Engine.fail("Stack underflow");
+                    }
+                    x1 = stack[--sp];
+                    if (x1 == 0) {
+                        throw Engine.fail("Division by zero");
+                    }
+                    stack[sp - 1] = stack[sp - 1] / x1;
+                    break;
+                case Opcode.ENT:
+                    if (sp == stack.length) {
+                        m.stackPointer = sp;
+                        stack = m.growStack();
+                    }
+                    stack[sp++] = code[pc++];
+                    break;
+                case Opcode.HLT:
+                    halt = true;
+                    break;
+                case Opcode.JMP:
+                    pc = code[pc];
+                    break;
+                case Opcode.JZE:
+                    if (sp < 1) {
+                        throw Engine.fail("Stack underflow");
+                    }
+                    pc = stack[--sp] == 0 ? code[pc] : pc + 1;
+                    break;
+                case Opcode.LDL:
+                    if (sp < 1) {
+                        throw Engine.fail("Stack underflow");
+                    }
+                    stack[sp - 1] = memory.get(fp + stack[sp - 1]);
+                    break;
+                case Opcode.LDM:
+                    if (sp < 1) {
+                        throw Engine.fail("Stack underflow");
+                    }
+                    x1 = stack[sp - 1];
+                    stack[sp - 1] = memory.get(x1);
+                    break;
+                case Opcode.MUL:
+                    if (sp < 2) {
+                        throw Engine.fail("Stack underflow");
+                    }
+                    x1 = stack[--sp];
+                    stack[sp - 1] = x1 * stack[sp - 1];
+                    break;
+                case Opcode.NOT:
+                    if (sp < 1) {
+                        throw Engine.fail("Stack underflow");
+                    }
+                    stack[sp - 1] = stack[sp - 1] == 1 ? 0 : 1;
+                    break;
+                case Opcode.REQ:
+                    if (sp < 2) {
+                        throw Engine.fail("Stack underflow");
+                    }
+                    x1 = stack[--sp];
+                    stack[sp - 1] = stack[sp - 1] == x1 ? 1 : 0;
+                    break;
+                case Opcode.RET:
+                    profile.ret(step + 1);
+                    pc = memory.get(fp);
+                    hp = memory.get(fp - Machine.FRAME_SIZE + 1);
+                    fp = memory.get(fp - Machine.FRAME_SIZE);
+                    break;
+                case Opcode.RGE:
+                    if (sp < 2) {
+                        throw Engine.fail("Stack underflow");
+                    }
+                    x1 = stack[--sp];
+                    stack[sp - 1] = stack[sp - 1] >= x1 ? 1 : 0;
+                    break;
+                case Opcode.RGT:
+                    if (sp < 2) {
+                        throw Engine.fail("Stack underflow");
+                    }
+                    x1 = stack[--sp];
+                    stack[sp - 1] = stack[sp - 1] > x1 ? 1 : 0;
+                    break;
+                case Opcode.RLE:
+                    if (sp < 2) {
+                        throw Engine.fail("Stack underflow");
+                    }
+                    x1 = stack[--sp];
+                    stack[sp - 1] = stack[sp - 1] <= x1 ? 1 : 0;
+                    break;
+                case Opcode.RLT:
+                    if (sp < 2) {
+                        throw Engine.fail("Stack underflow");
+                    }
+                    x1 = stack[--sp];
+                    stack[sp - 1] = stack[sp - 1] < x1 ? 1 : 0;
+                    break;
+                case Opcode.RNE:
+                    if (sp < 2) {
+                        throw Engine.fail("Stack underflow");
+                    }
+                    x1 = stack[--sp];
+                    stack[sp - 1] = stack[sp - 1] != x1 ? 1 : 0;
+                    break;
+                case Opcode.SBR:
+                    // Previous command has to be SFR, otherwise framepointer
+                    // points to old frame
+                    x2 = code[pc + 1];
+                    memory.set(fp, pc + 2);
+                    pc = code[pc];
+                    if (sp < x2) {
+                        throw Engine.fail("Stack underflow");
+                    }
+                    if (x2 < 0) {
+                        throw Engine.fail("Negative amount of parameters");
+                    }
+                    if (fp + x2 >= memory.getStackLimit()) {
+                        throw Engine.fail("Memory access out of bounds");
+                    }
+                    // Load parameters into frame in reverse order
+                    for (int i = x2; i > 0; i--) {
+                        memory.set(fp + i, stack[--sp]);
+                    }
+                    // The call itself is a step of the caller
+                    profile.call(pc, step + 1);
+                    break;
+                case Opcode.SFR:
+                    x1 = code[pc++];
+                    if (fp + x1 + Machine.FRAME_SIZE + 1
+                        >= memory.getStackLimit()) {
+                        throw Engine.fail("Frame pointer out of memory bounds");
+                    }
+                    memory.set(fp + x1 + Machine.FRAME_SIZE - 1, fp);
+                    memory.set(fp + x1 + Machine.FRAME_SIZE, hp);
+                    fp = fp + x1 + Machine.FRAME_SIZE + 1;
+                    break;
+                case Opcode.STL:
+                    if (sp < 2) {
+                        throw Engine.fail("Stack underflow");
+                    }
+                    x1 = stack[--sp];
+                    x2 = fp + stack[--sp];
+                    memory.set(x2, x1);
+                    break;
+                case Opcode.STM:
+                    if (sp < 2) {
+                        throw Engine.fail("Stack underflow");
+                    }
+                    x1 = stack[--sp];
+                    x2 = stack[--sp];
+                    memory.set(x2, x1);
+                    break;
+                case Opcode.SUB:
+                    // x = pop(); y = pop(); push(y - x);
+                    if (sp < 2) {
+                        throw Engine.fail("Stack underflow");
+                    }
+                    x1 = stack[--sp];
+                    stack[sp - 1] = stack[sp - 1] - x1;
+                    break;
+                case Opcode.UMN:
+                    if (sp < 1) {
+                        throw Engine.fail("Stack underflow");
+                    }
+                    stack[sp - 1] = -stack[sp - 1];
+                    break;
+                case Opcode.WRI:
+                    if (sp < 1) {
+                        throw Engine.fail("Stack underflow");
+                    }
+                    output.write(stack[--sp]);
+                    break;
+                case Opcode.REA:
+                    try {
+                        x1 = input.read();
+                    } catch (NoSuchElementException e) {
+                        // No more input
+                        log.severe("Could not read input at line " +
+                                   m.program.getSourceLine(start));
+                        halt = true;
+                        break;
+                    }
+                    if (sp == stack.length) {
+                        m.stackPointer = sp;
+                        stack = m.growStack();
+                    }
+                    stack[sp++] = x1;
+                    break;
+                default:
+                    // Unknown instruction
+                    log.severe("Unknown instruction: " +
+                               m.program.getInstruction(start) + " at line " +
+                               m.program.getSourceLine(start));
+                    halt = true;
+                    break;
+                }
+                step++;
+            }
+        } finally {
+            profile.finish(step);
+            m.stack = stack;
+            m.stackPointer = sp;
+            m.programCounter = pc;
+            m.framePointer = fp;
+            m.heapPointer = hp;
+        }
+
+        if (step >= m.stepLimit) {
+            log.severe("Program execution halted due too many steps");
+            throw new ExecutionException();
+        }
+    }
+}
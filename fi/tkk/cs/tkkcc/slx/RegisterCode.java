@@ -0,0 +1,190 @@
+package fi.tkk.cs.tkkcc.slx;
+
+/**
+ * A program translated for the register engine.
+ *
+ * Each instruction is an opcode, its weight and its operands. The
+ * weight is the number of SLX instructions the instruction stands for,
+ * so the step limit counts the same steps as on the stack machine.
+ *
+ * An operand names a value by a mode in its two low bits and an index
+ * in the rest:
+ * <ul>
+ * <li>REGISTER: a temporary of the running function. The temporaries
+ * are the operand stack slots of the SLX code, numbered by their
+ * depth, in a window of a register file that moves with each call.</li>
+ * <li>LOCAL: the frame slot at fp + index.</li>
+ * <li>CONSTANT: the index itself.</li>
+ * <li>POOLED: the constant at the index of the constant pool, for the
+ * values that do not fit in an operand.</li>
+ * </ul>
+ * Destinations are registers or locals.
+ */
+final class RegisterCode {
+    /** d = a */
+    static final int MOV = 0;
+    /** d = a + b */
+    static final int ADD = 1;
+    /** d = a - b */
+    static final int SUB = 2;
+    /** d = a * b */
+    static final int MUL = 3;
+    /** d = a / b */
+    static final int DIV = 4;
+    /** d = a == b */
+    static final int REQ = 5;
+    /** d = a != b */
+    static final int RNE = 6;
+    /** d = a &lt; b */
+    static final int RLT = 7;
+    /** d = a &gt; b */
+    static final int RGT = 8;
+    /** d = a &lt;= b */
+    static final int RLE = 9;
+    /** d = a &gt;= b */
+    static final int RGE = 10;
+    /** d = -a */
+    static final int NEG = 11;
+    /** d = a == 1 ? 0 : 1 */
+    static final int NOT = 12;
+    /** d = memory[fp + a], for computed frame offsets */
+    static final int LDL = 13;
+    /** memory[fp + a] = b, for computed frame offsets */
+    static final int STL = 14;
+    /** d = memory[a] */
+    static final int LDM = 15;
+    /** memory[a] = b */
+    static final int STM = 16;
+    /** d = pointer to a new area of a words */
+    static final int ALC = 17;
+    /** print a */
+    static final int WRI = 18;
+    /** d = the next input */
+    static final int REA = 19;
+    /** pc = target */
+    static final int JMP = 20;
+    /** if a == 0, pc = target */
+    static final int JZE = 21;
+    /** if a == 1, pc = target */
+    static final int JONE = 22;
+    /** Reserve a frame of n words, as SFR n */
+    static final int SFR = 23;
+    /** Call target with arguments, as SBR */
+    static final int CALL = 24;
+    /** Return from a function */
+    static final int RET = 25;
+    /** Stop the program */
+    static final int HLT = 26;
+    /** Count steps only */
+    static final int NOP = 27;
+
+    /** Number of operands of each opcode, the inline CALL ones aside */
+    private static final int[] OPERANDS = {
+        2, 3, 3, 3, 3, 3, 3, 3, 3, 3, 3, 2, 2, 2, 2, 2, 2, 2, 1, 1, 1, 2,
+        2, 1, 4, 0, 0, 0
+    };
+
+    /** Operand mode: a register */
+    static final int REGISTER = 0;
+    /** Operand mode: a frame slot */
+    static final int LOCAL = 1;
+    /** Operand mode: an inline constant */
+    static final int CONSTANT = 2;
+    /** Operand mode: a constant in the pool */
+    static final int POOLED = 3;
+    /** Bits of the operand mode */
+    static final int MODE_MASK = 3;
+    /** Number of bits of the operand mode */
+    static final int MODE_BITS = 2;
+
+    /** The instructions */
+    private final int[] code;
+    /** Constants that do not fit in an operand */
+    private final int[] pool;
+    /** pc of the SLX instruction each instruction starts at */
+    private final int[] origins;
+    /** pc of the first instruction of the main program */
+    private final int entry;
+    /** Number of registers the main program uses */
+    private final int mainRegisters;
+
+    /**
+     * Initialize a new translated program.
+     *
+     * @param code the instructions
+     * @param pool the constant pool
+     * @param origins the SLX pc of each instruction, by pc
+     * @param entry the pc of the main program
+     * @param mainRegisters the number of registers of the main program
+     */
+    RegisterCode(final int[] code, final int[] pool, final int[] origins,
+                 final int entry, final int mainRegisters) {
+        super();
+        this.code = code;
+        this.pool = pool;
+        this.origins = origins;
+        this.entry = entry;
+        this.mainRegisters = mainRegisters;
+    }
+
+    /**
+     * Get the length of an instruction.
+     *
+     * @param code the code
+     * @param pc the pc of the instruction
+     * @return the number of words of the instruction
+     */
+    static int length(final int[] code, final int pc) {
+        if (code[pc] == CALL) {
+            // Opcode, weight, target, registers, count, arguments, depth
+            return 6 + code[pc + 4];
+        }
+        return 2 + OPERANDS[code[pc]];
+    }
+
+    /**
+     * Get the instructions.
+     *
+     * @return the code, shared
+     */
+    int[] getCode() {
+        return this.code;
+    }
+
+    /**
+     * Get the constant pool.
+     *
+     * @return the constants, shared
+     */
+    int[] getPool() {
+        return this.pool;
+    }
+
+    /**
+     * Get the SLX instruction an instruction was translated from.
+     *
+     * @param pc the pc of the instruction
+     * @return the pc of the SLX instruction
+     */
+    int getOrigin(final int pc) {
+        return this.origins[pc];
+    }
+
+    /**
+     * Get the pc the program starts from.
+     *
+     * @return the pc
+     */
+    int getEntry() {
+        return this.entry;
+    }
+
+    /**
+     * Get the number of registers of the main program.
+     *
+     * @return the number of registers
+     */
+    int getMainRegisters() {
+        return this.mainRegisters;
+    }
+}
@@ -0,0 +1,331 @@
+package fi.tkk.cs.tkkcc.slx;
+
+import java.util.Arrays;
+import java.util.NoSuchElementException;
+
+/**
+ * Register machine execution engine.
+ *
+ * Runs the program translated by the {@link RegisterTranslator}: the
+ * operand stack is replaced by registers and the instructions take
+ * their operands from registers, frame slots and constants directly,
+ * so most of the stack traffic and about half of the dispatches of the
+ * stack code disappear. The registers of a function live in a window
+ * of one register file; a call moves the window above the registers
+ * the caller still needs.
+ *
+ * The frames in the memory are the same as on the stack machine,
+ * except that the return addresses are pcs of the register code. An
+ * instruction counts the steps of the SLX instructions it was
+ * translated from. It is only executed if all of them fit in the step
+ * limit, which stops the program before the same output as the other
+ * engines.
+ *
+ * Programs that can not be translated (see {@link ControlFlow}) are run
+ * by the {@link FastEngine}.
+ */
+final class RegisterEngine extends Engine {
+    /** Initial size of the register file */
+    private static final int INITIAL_REGISTERS = 64;
+
+    @Override
+    void execute(final Machine m, final IntInput input,
+                 final IntOutput output) {
+        final RegisterCode translated;
+        try {
+            translated = RegisterTranslator.translate
+                (new ControlFlow(m.program.getCode(), m.programCounter));
+        } catch (IllegalInstructionException e) {
+            log.fine("Program not translated: " + e.getMessage());
+            new FastEngine().execute(m, input, output);
+            return;
+        }
+
+        final int[] code = translated.getCode();
+        final int[] pool = translated.getPool();
+        final Memory memory = m.memory;
+        int[] regs = new int[Math.max(INITIAL_REGISTERS,
+                                      translated.getMainRegisters())];
+        // Start of the register window of the running function
+        int rb = 0;
+        int pc = translated.getEntry();
+        int fp = m.framePointer;
+        int hp = m.heapPointer;
+        int step = 0;
+        boolean halt = false;
+        // Start of the current instruction, for diagnostics
+        int start = pc;
+        int x1;
+        int x2;
+
+        try {
+            while (!halt && step < m.stepLimit) {
+                start = pc;
+                if (code[pc + 1] > m.stepLimit - step) {
+                    // The limit is reached within the instruction
+                    step = m.stepLimit;
+                    break;
+                }
+                step += code[pc + 1];
+                switch (code[pc]) {
+                case RegisterCode.MOV:
+                    x1 = load(code[pc + 3], regs, rb, memory, fp, pool);
+                    store(code[pc + 2], x1, regs, rb, memory, fp);
+                    pc += 4;
+                    break;
+                case RegisterCode.ADD:
+                    x1 = load(code[pc + 3], regs, rb, memory, fp, pool);
+                    x2 = load(code[pc + 4], regs, rb, memory, fp, pool);
+                    store(code[pc + 2], x1 + x2, regs, rb, memory, fp);
+                    pc += 5;
+                    break;
+                case RegisterCode.SUB:
+                    x1 = load(code[pc + 3], regs, rb, memory, fp, pool);
+                    x2 = load(code[pc + 4], regs, rb, memory, fp, pool);
+                    store(code[pc + 2], x1 - x2, regs, rb, memory, fp);
+                    pc += 5;
+                    break;
+                case RegisterCode.MUL:
+                    x1 = load(code[pc + 3], regs, rb, memory, fp, pool);
+                    x2 = load(code[pc + 4], regs, rb, memory, fp, pool);
+                    store(code[pc + 2], x1 * x2, regs, rb, memory, fp);
+                    pc += 5;
+                    break;
+                case RegisterCode.DIV:
+                    x1 = load(code[pc + 3], regs, rb, memory, fp, pool);
+                    x2 = load(code[pc + 4], regs, rb, memory, fp, pool);
+                    if (x2 == 0) {
+                        throw Engine.fail("Division by zero");
+                    }
+                    store(code[pc + 2], x1 / x2, regs, rb, memory, fp);
+                    pc += 5;
+                    break;
+                case RegisterCode.REQ:
+                    x1 = load(code[pc + 3], regs, rb, memory, fp, pool);
+                    x2 = load(code[pc + 4], regs, rb, memory, fp, pool);
+                    store(code[pc + 2], x1 == x2 ? 1 : 0, regs, rb, memory,
+                          fp);
+                    pc += 5;
+                    break;
+                case RegisterCode.RNE:
+                    x1 = load(code[pc + 3], regs, rb, memory, fp, pool);
+                    x2 = load(code[pc + 4], regs, rb, memory, fp, pool);
+                    store(code[pc + 2], x1 != x2 ? 1 : 0, regs, rb, memory,
+                          fp);
+                    pc += 5;
+                    break;
+                case RegisterCode.RLT:
+                    x1 = load(code[pc + 3], regs, rb, memory, fp, pool);
+                    x2 = load(code[pc + 4], regs, rb, memory, fp, pool);
+                    store(code[pc + 2], x1 < x2 ? 1 : 0, regs, rb, memory,
+                          fp);
+                    pc += 5;
+                    break;
+                case RegisterCode.RGT:
+                    x1 = load(code[pc + 3], regs, rb, memory, fp, pool);
+                    x2 = load(code[pc + 4], regs, rb, memory, fp, pool);
+                    store(code[pc + 2], x1 > x2 ? 1 : 0, regs, rb, memory,
+                          fp);
+                    pc += 5;
+                    break;
+                case RegisterCode.RLE:
+                    x1 = load(code[pc + 3], regs, rb, memory, fp, pool);
+                    x2 = load(code[pc + 4], regs, rb, memory, fp, pool);
+                    store(code[pc + 2], x1 <= x2 ? 1 : 0, regs, rb, memory,
+                          fp);
+                    pc += 5;
+                    break;
+                case RegisterCode.RGE:
+                    x1 = load(code[pc + 3], regs, rb, memory, fp, pool);
+                    x2 = load(code[pc + 4], regs, rb, memory, fp, pool);
+                    store(code[pc + 2], x1 >= x2 ? 1 : 0, regs, rb, memory,
+                          fp);
+                    pc += 5;
+                    break;
+                case RegisterCode.NEG:
+                    x1 = load(code[pc + 3], regs, rb, memory, fp, pool);
+                    store(code[pc + 2], -x1, regs, rb, memory, fp);
+                    pc += 4;
+                    break;
+                case RegisterCode.NOT:
+                    x1 = load(code[pc + 3], regs, rb, memory, fp, pool);
+                    store(code[pc + 2], x1 == 1 ? 0 : 1, regs, rb, memory,
+                          fp);
+                    pc += 4;
+                    break;
+                case RegisterCode.LDL:
+                    x1 = load(code[pc + 3], regs, rb, memory, fp, pool);
+                    store(code[pc + 2], memory.get(fp + x1), regs, rb,
+                          memory, fp);
+                    pc += 4;
+                    break;
+                case RegisterCode.STL:
+                    x1 = load(code[pc + 2], regs, rb, memory, fp, pool);
+                    x2 = load(code[pc + 3], regs, rb, memory, fp, pool);
+                    memory.set(fp + x1, x2);
+                    pc += 4;
+                    break;
+                case RegisterCode.LDM:
+                    x1 = load(code[pc + 3], regs, rb, memory, fp, pool);
+                    store(code[pc + 2], memory.get(x1), regs, rb, memory,
+                          fp);
+                    pc += 4;
+                    break;
+                case RegisterCode.STM:
+                    x1 = load(code[pc + 2], regs, rb, memory, fp, pool);
+                    x2 = load(code[pc + 3], regs, rb, memory, fp, pool);
+                    memory.set(x1, x2);
+                    pc += 4;
+                    break;
+                case RegisterCode.ALC:
+                    // Area size plus one for the length field
+                    x1 = load(code[pc + 3], regs, rb, memory, fp, pool);
+                    hp = hp - (x1 + 1) - 1;
+                    if (hp < memory.getHeapBase()) {
+                        throw Engine.fail("Heap out of memory bounds");
+                    }
+                    memory.set(hp, x1);
+                    store(code[pc + 2], hp, regs, rb, memory, fp);
+                    pc += 4;
+                    break;
+                case RegisterCode.WRI:
+                    output.write(load(code[pc + 2], regs, rb, memory, fp,
+                                      pool));
+                    pc += 3;
+                    break;
+                case RegisterCode.REA:
+                    try {
+                        x1 = input.read();
+                    } catch (NoSuchElementException e) {
+                        // No more input
+                        log.severe("Could not read input at line " +
+                                   m.program.getSourceLine
+                                   (translated.getOrigin(start)));
+                        halt = true;
+                        break;
+                    }
+                    store(code[pc + 2], x1, regs, rb, memory, fp);
+                    pc += 3;
+                    break;
+                case RegisterCode.JMP:
+                    pc = code[pc + 2];
+                    break;
+                case RegisterCode.JZE:
+                    x1 = load(code[pc + 2], regs, rb, memory, fp, pool);
+                    pc = x1 == 0 ? code[pc + 3] : pc + 4;
+                    break;
+                case RegisterCode.JONE:
+                    x1 = load(code[pc + 2], regs, rb, memory, fp, pool);
+                    pc = x1 == 1 ? code[pc + 3] : pc + 4;
+                    break;
+                case RegisterCode.SFR:
+                    x1 = code[pc + 2];
+                    if (fp + x1 + Machine.FRAME_SIZE + 1
+                        >= memory.getStackLimit()) {
+                        throw Engine.fail("Frame pointer out of memory bounds");
+                    }
+                    memory.set(fp + x1 + Machine.FRAME_SIZE - 1, fp);
+                    memory.set(fp + x1 + Machine.FRAME_SIZE, hp);
+                    fp = fp + x1 + Machine.FRAME_SIZE + 1;
+                    pc += 3;
+                    break;
+                case RegisterCode.CALL:
+                    // Target, registers needed, arguments, caller depth
+                    x2 = code[pc + 4];
+                    x1 = pc + 6 + x2;
+                    memory.set(fp, x1);
+                    if (fp + x2 >= memory.getStackLimit()) {
+                        throw Engine.fail("Memory access out of bounds");
+                    }
+                    for (int i = 1; i <= x2; i++) {
+                        memory.set(fp + i, load(code[pc + 4 + i], regs, rb,
+                                                memory, fp, pool));
+                    }
+                    if (rb + code[pc + 3] > regs.length) {
+                        regs = Arrays.copyOf
+                            (regs, Math.max(regs.length * 2,
+                                            rb + code[pc + 3]));
+                    }
+                    rb += code[x1 - 1];
+                    pc = code[pc + 2];
+                    break;
+                case RegisterCode.RET:
+                    pc = memory.get(fp);
+                    if (pc <= 0 || pc >= code.length
+                        || code[pc - 1] > rb) {
+                        throw Engine.fail("Return address out of code");
+                    }
+                    rb -= code[pc - 1];
+                    hp = memory.get(fp - Machine.FRAME_SIZE + 1);
+                    fp = memory.get(fp - Machine.FRAME_SIZE);
+                    break;
+                case RegisterCode.HLT:
+                    halt = true;
+                    break;
+                case RegisterCode.NOP:
+                    pc += 2;
+                    break;
+                default:
+                    log.severe("Unknown register instruction: " + code[pc]);
+                    halt = true;
+                    break;
+                }
+            }
+        } finally {
+            m.framePointer = fp;
+            m.heapPointer = hp;
+        }
+
+        // Even halting on the last step counts as too many
+        if (step >= m.stepLimit) {
+            log.severe("Program execution halted due too many steps");
+            throw new ExecutionException();
+        }
+    }
+
+    /**
+     * Read an operand.
+     *
+     * @param operand the operand
+     * @param regs the register file
+     * @param rb the start of the register window
+     * @param memory the memory
+     * @param fp the frame pointer
+     * @param pool the constant pool
+     * @return the value
+     */
+    private static int load(final int operand, final int[] regs, final int rb,
+                            final Memory memory, final int fp,
+                            final int[] pool) {
+        switch (operand & RegisterCode.MODE_MASK) {
+        case RegisterCode.REGISTER:
+            return regs[rb + (operand >> RegisterCode.MODE_BITS)];
+        case RegisterCode.LOCAL:
+            return memory.get(fp + (operand >> RegisterCode.MODE_BITS));
+        case RegisterCode.CONSTANT:
+            return operand >> RegisterCode.MODE_BITS;
+        default:
+            return pool[operand >> RegisterCode.MODE_BITS];
+        }
+    }
+
+    /**
+     * Write a destination operand.
+     *
+     * @param operand the operand, a register or a frame slot
+     * @param value the value
+     * @param regs the register file
+     * @param rb the start of the register window
+     * @param memory the memory
+     * @param fp the frame pointer
+     */
+    private static void store(final int operand, final int value,
+                              final int[] regs, final int rb,
+                              final Memory memory, final int fp) {
+        if ((operand & RegisterCode.MODE_MASK) == RegisterCode.REGISTER) {
+            regs[rb + (operand >> RegisterCode.MODE_BITS)] = value;
+        } else {
+            memory.set(fp + (operand >> RegisterCode.MODE_BITS), value);
+        }
+    }
+}
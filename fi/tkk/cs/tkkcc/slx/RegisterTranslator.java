@@ -0,0 +1,564 @@
+package fi.tkk.cs.tkkcc.slx;
+
+import java.util.Arrays;
+import java.util.HashMap;
+import java.util.Map;
+
+/**
+ * Translator of linked SLX code to the register code of the
+ * {@link RegisterEngine}.
+ *
+ * The {@link ControlFlow} analysis gives the depth of the operand stack
+ * before each instruction, so every stack slot of a function can be a
+ * register of its own. Within a basic block the translator keeps a
+ * symbolic stack: constants and frame slots are pushed without code,
+ * and an operator reads them directly as operands and writes its result
+ * to the register of its stack slot. A result stored to a local right
+ * away is written to the frame slot instead. <code>a = b + c</code>,
+ * seven stack instructions, becomes one <code>ADD a, b, c</code>.
+ *
+ * A frame slot on the symbolic stack is read when it is used, so it is
+ * first copied to its register if the slot may be written before that:
+ * when the slot is stored to, memory is written through a computed
+ * address, or a call changes the frame pointer. At the end of a block
+ * every value is moved to its register, so that all paths into a
+ * block leave the stack in the same registers.
+ */
+final class RegisterTranslator {
+    /** Smallest value that fits in an operand */
+    private static final int MIN_INLINE =
+        Integer.MIN_VALUE >> RegisterCode.MODE_BITS;
+    /** Largest value that fits in an operand */
+    private static final int MAX_INLINE =
+        Integer.MAX_VALUE >> RegisterCode.MODE_BITS;
+
+    /** The analysed code */
+    private final ControlFlow flow;
+    /** The code being translated */
+    private final int[] slx;
+    /** The register code */
+    private int[] out = new int[256];
+    /** The SLX pc of each instruction of the register code */
+    private int[] origins = new int[256];
+    /** Length of the register code */
+    private int size = 0;
+    /** The constant pool */
+    private int[] pool = new int[0];
+    /** Index of each pooled constant */
+    private final Map<Integer, Integer> pooled =
+        new HashMap<Integer, Integer>();
+    /** Register pc of each function entry, by SLX pc */
+    private final Map<Integer, Integer> entries =
+        new HashMap<Integer, Integer>();
+    /** Positions of the call targets to resolve, and their SLX pcs */
+    private int[] calls = new int[16];
+    /** Number of entries in calls */
+    private int callCount = 0;
+
+    /** The symbolic operand stack */
+    private int[] stack;
+    /** Number of values on the symbolic stack */
+    private int sp;
+    /** Steps not yet counted in an instruction */
+    private int pending;
+    /** Start of the last instruction of the block, -1 if none */
+    private int last;
+    /** SLX pc of the instruction being translated */
+    private int origin;
+
+    /**
+     * Initialize a new translator.
+     *
+     * @param flow the analysed code
+     */
+    private RegisterTranslator(final ControlFlow flow) {
+        super();
+        this.flow = flow;
+        this.slx = flow.getCode();
+    }
+
+    /**
+     * Translate an analysed program.
+     *
+     * @param flow the analysed code
+     * @return the register code
+     * @throws IllegalInstructionException if the code can not be
+     *         translated
+     */
+    static RegisterCode translate(final ControlFlow flow)
+        throws IllegalInstructionException {
+        final RegisterTranslator translator = new RegisterTranslator(flow);
+        int mainRegisters = 0;
+        int maxDepth = 0;
+        for (ControlFlow.Function function : flow.getFunctions()) {
+            maxDepth = Math.max(maxDepth, function.getMaxDepth());
+        }
+        translator.stack = new int[maxDepth + 1];
+        for (ControlFlow.Function function : flow.getFunctions()) {
+            translator.translateFunction(function);
+            if (function.isMain()) {
+                mainRegisters = function.getMaxDepth() + 1;
+            }
+        }
+        for (int i = 0; i < translator.callCount; i += 2) {
+            translator.out[translator.calls[i]] =
+                translator.entries.get(translator.calls[i + 1]);
+        }
+        final int entry =
+            translator.entries.get(flow.getFunctions().get(0).getEntry());
+        return new RegisterCode(Arrays.copyOf(translator.out, translator.size),
+                                translator.pool,
+                                Arrays.copyOf(translator.origins,
+                                              translator.size),
+                                entry, mainRegisters);
+    }
+
+    /**
+     * Translate the instructions of a function.
+     *
+     * @param function the function
+     */
+    private void translateFunction(final ControlFlow.Function function) {
+        final int[] code = this.slx;
+        // Blocks start at the entry, at branch targets and after
+        // conditional branches
+        final boolean[] leaders = new boolean[code.length];
+        leaders[function.getEntry()] = true;
+        for (int pc = 0; pc < code.length; pc = this.flow.next(pc)) {
+            if (function.getDepth(pc) == ControlFlow.UNREACHABLE) {
+                continue;
+            }
+            if (code[pc] == Opcode.JMP || code[pc] == Opcode.JZE) {
+                leaders[code[pc + 1]] = true;
+            }
+            if (code[pc] == Opcode.JZE) {
+                leaders[this.flow.next(pc)] = true;
+            }
+        }
+
+        final int[] map = new int[code.length];
+        int[] jumps = new int[16];
+        int jumpCount = 0;
+        this.origin = function.getEntry();
+        this.pending = 0;
+        this.startBlock(0);
+        boolean fallsThrough = false;
+        for (int pc = 0; pc < code.length; pc = this.flow.next(pc)) {
+            final int depth = function.getDepth(pc);
+            if (depth == ControlFlow.UNREACHABLE) {
+                continue;
+            }
+            this.origin = pc;
+            if (leaders[pc]) {
+                if (fallsThrough) {
+                    this.endBlock();
+                    if (this.pending > 0) {
+                        this.emit(RegisterCode.NOP);
+                    }
+                }
+                this.startBlock(depth);
+            }
+            map[pc] = this.size;
+            this.pending++;
+            fallsThrough = true;
+            switch (code[pc]) {
+            case Opcode.ENT:
+                this.push(this.constant(code[pc + 1]));
+                break;
+            case Opcode.LDL:
+                this.translateLoad();
+                break;
+            case Opcode.STL:
+                this.translateStore();
+                break;
+            case Opcode.LDM:
+                this.unary(RegisterCode.LDM);
+                break;
+            case Opcode.STM: {
+                final int value = this.pop();
+                final int address = this.pop();
+                this.spillLocals(false, 0);
+                this.emit(RegisterCode.STM, address, value);
+                break;
+            }
+            case Opcode.ALC:
+                this.spillLocals(false, 0);
+                this.unary(RegisterCode.ALC);
+                break;
+            case Opcode.ADD:
+                this.binary(RegisterCode.ADD);
+                break;
+            case Opcode.SUB:
+                this.binary(RegisterCode.SUB);
+                break;
+            case Opcode.MUL:
+                this.binary(RegisterCode.MUL);
+                break;
+            case Opcode.DIV:
+                this.binary(RegisterCode.DIV);
+                break;
+            case Opcode.REQ:
+                this.binary(RegisterCode.REQ);
+                break;
+            case Opcode.RNE:
+                this.binary(RegisterCode.RNE);
+                break;
+            case Opcode.RLT:
+                this.binary(RegisterCode.RLT);
+                break;
+            case Opcode.RGT:
+                this.binary(RegisterCode.RGT);
+                break;
+            case Opcode.RLE:
+                this.binary(RegisterCode.RLE);
+                break;
+            case Opcode.RGE:
+                this.binary(RegisterCode.RGE);
+                break;
+            case Opcode.UMN:
+                this.unary(RegisterCode.NEG);
+                break;
+            case Opcode.NOT:
+                this.unary(RegisterCode.NOT);
+                break;
+            case Opcode.WRI:
+                this.emit(RegisterCode.WRI, this.pop());
+                break;
+            case Opcode.REA:
+                this.emit(RegisterCode.REA,
+                          RegisterTranslator.register(this.sp));
+                this.push(RegisterTranslator.register(this.sp));
+                break;
+            case Opcode.JMP:
+                this.endBlock();
+                this.emit(RegisterCode.JMP, 0);
+                if (jumpCount + 2 > jumps.length) {
+                    jumps = Arrays.copyOf(jumps, jumps.length * 2);
+                }
+                jumps[jumpCount++] = this.size - 1;
+                jumps[jumpCount++] = code[pc + 1];
+                fallsThrough = false;
+                break;
+            case Opcode.JZE:
+                this.translateBranch();
+                if (jumpCount + 2 > jumps.length) {
+                    jumps = Arrays.copyOf(jumps, jumps.length * 2);
+                }
+                jumps[jumpCount++] = this.size - 1;
+                jumps[jumpCount++] = code[pc + 1];
+                fallsThrough = false;
+                break;
+            case Opcode.SFR:
+                // The frame pointer changes, so the locals are read first
+                this.spillLocals(false, 0);
+                this.emit(RegisterCode.SFR, code[pc + 1]);
+                break;
+            case Opcode.SBR:
+                this.translateCall(code[pc + 1], code[pc + 2]);
+                break;
+            case Opcode.RET:
+                this.endBlock();
+                this.emit(RegisterCode.RET);
+                fallsThrough = false;
+                break;
+            case Opcode.HLT:
+                this.emit(RegisterCode.HLT);
+                fallsThrough = false;
+                break;
+            default:
+                throw new IllegalInstructionException
+                    ("Opcode " + code[pc] + " can not be translated at pc "
+                     + pc);
+            }
+        }
+        for (int i = 0; i < jumpCount; i += 2) {
+            this.out[jumps[i]] = map[jumps[i + 1]];
+        }
+        this.entries.put(function.getEntry(), map[function.getEntry()]);
+    }
+
+    /**
+     * Translate LDL: a constant offset makes the frame slot an operand.
+     */
+    private void translateLoad() {
+        final int offset = this.pop();
+        if (RegisterTranslator.isInlineConstant(offset)) {
+            this.push(RegisterTranslator.local
+                      (offset >> RegisterCode.MODE_BITS));
+        } else {
+            this.emit(RegisterCode.LDL, RegisterTranslator.register(this.sp),
+                      offset);
+            this.push(RegisterTranslator.register(this.sp));
+        }
+    }
+
+    /**
+     * Translate STL: a store to a constant offset is a move to the frame
+     * slot, or the destination of the instruction computing the value.
+     */
+    private void translateStore() {
+        final int value = this.pop();
+        final int offset = this.pop();
+        if (!RegisterTranslator.isInlineConstant(offset)) {
+            this.spillLocals(false, 0);
+            this.emit(RegisterCode.STL, offset, value);
+            return;
+        }
+        final int slot = offset >> RegisterCode.MODE_BITS;
+        this.spillLocals(true, slot);
+        if (value == RegisterTranslator.register(this.sp + 1)
+            && this.last >= 0
+            && RegisterTranslator.hasDestination(this.out[this.last])
+            && this.out[this.last + 2] == value) {
+            // The value was computed for this store alone
+            this.out[this.last + 2] = RegisterTranslator.local(slot);
+            this.out[this.last + 1] += this.pending;
+            this.pending = 0;
+        } else {
+            this.emit(RegisterCode.MOV, RegisterTranslator.local(slot), value);
+        }
+    }
+
+    /**
+     * Translate JZE: a negated condition becomes JONE.
+     */
+    private void translateBranch() {
+        int condition = this.pop();
+        int opcode = RegisterCode.JZE;
+        if (condition == RegisterTranslator.register(this.sp) && this.last >= 0
+            && this.out[this.last] == RegisterCode.NOT
+            && this.out[this.last + 2] == condition) {
+            condition = this.out[this.last + 3];
+            opcode = RegisterCode.JONE;
+            this.pending += this.out[this.last + 1];
+            this.size = this.last;
+            this.last = -1;
+        }
+        this.endBlock();
+        this.emit(opcode, condition, 0);
+    }
+
+    /**
+     * Translate SBR. The callee gets the registers above the values
+     * left on the stack, and its result is in the first of them.
+     *
+     * @param target the SLX pc of the function
+     * @param count the number of arguments
+     */
+    private void translateCall(final int target, final int count) {
+        this.spillLocals(false, 0);
+        final ControlFlow.Function callee = this.flow.getFunction(target);
+        this.sp -= count;
+        final int depth = this.sp;
+        final int start = this.emitStart(RegisterCode.CALL);
+        this.append(0);
+        this.append(depth + callee.getMaxDepth() + 1);
+        this.append(count);
+        for (int i = 0; i < count; i++) {
+            this.append(this.stack[depth + i]);
+        }
+        this.append(depth);
+        if (this.callCount + 2 > this.calls.length) {
+            this.calls = Arrays.copyOf(this.calls, this.calls.length * 2);
+        }
+        this.calls[this.callCount++] = start + 2;
+        this.calls[this.callCount++] = target;
+        // The callee may have written any register above the depth
+        this.last = -1;
+        if (callee.getResults() > 0) {
+            this.push(RegisterTranslator.register(depth));
+        }
+    }
+
+    /**
+     * Translate an operator with one operand.
+     *
+     * @param opcode the register opcode
+     */
+    private void unary(final int opcode) {
+        final int a = this.pop();
+        final int d = RegisterTranslator.register(this.sp);
+        this.emit(opcode, d, a);
+        this.push(d);
+    }
+
+    /**
+     * Translate an operator with two operands.
+     *
+     * @param opcode the register opcode
+     */
+    private void binary(final int opcode) {
+        final int b = this.pop();
+        final int a = this.pop();
+        final int d = RegisterTranslator.register(this.sp);
+        this.emit(opcode, d, a, b);
+        this.push(d);
+    }
+
+    /**
+     * Start a basic block: the stack is in its registers.
+     *
+     * @param depth the stack depth at the start
+     */
+    private void startBlock(final int depth) {
+        for (int i = 0; i < depth; i++) {
+            this.stack[i] = RegisterTranslator.register(i);
+        }
+        this.sp = depth;
+        this.last = -1;
+    }
+
+    /**
+     * End a basic block: move every value on the stack to its register.
+     */
+    private void endBlock() {
+        for (int i = 0; i < this.sp; i++) {
+            if (this.stack[i] != RegisterTranslator.register(i)) {
+                this.emit(RegisterCode.MOV, RegisterTranslator.register(i),
+                          this.stack[i]);
+                this.stack[i] = RegisterTranslator.register(i);
+            }
+        }
+    }
+
+    /**
+     * Copy frame slots on the stack to their registers before the
+     * slots may change.
+     *
+     * @param one <code>true</code> to copy one slot only
+     * @param slot the slot, if only one is copied
+     */
+    private void spillLocals(final boolean one, final int slot) {
+        for (int i = 0; i < this.sp; i++) {
+            final int value = this.stack[i];
+            if ((value & RegisterCode.MODE_MASK) == RegisterCode.LOCAL
+                && (!one || value >> RegisterCode.MODE_BITS == slot)) {
+                this.emit(RegisterCode.MOV, RegisterTranslator.register(i),
+                          value);
+                this.stack[i] = RegisterTranslator.register(i);
+            }
+        }
+    }
+
+    /**
+     * Push a value to the symbolic stack.
+     *
+     * @param operand the value
+     */
+    private void push(final int operand) {
+        this.stack[this.sp++] = operand;
+    }
+
+    /**
+     * Pop a value from the symbolic stack.
+     *
+     * @return the value
+     */
+    private int pop() {
+        return this.stack[--this.sp];
+    }
+
+    /**
+     * Emit an instruction. It counts the steps translated since the
+     * last one.
+     *
+     * @param opcode the opcode
+     * @param operands the operands
+     */
+    private void emit(final int opcode, final int... operands) {
+        this.emitStart(opcode);
+        for (int operand : operands) {
+            this.append(operand);
+        }
+    }
+
+    /**
+     * Emit the opcode and weight of an instruction.
+     *
+     * @param opcode the opcode
+     * @return the pc of the instruction
+     */
+    private int emitStart(final int opcode) {
+        final int start = this.size;
+        this.append(opcode);
+        this.append(this.pending);
+        this.origins[start] = this.origin;
+        this.pending = 0;
+        this.last = start;
+        return start;
+    }
+
+    /**
+     * Append a word to the register code.
+     *
+     * @param word the word
+     */
+    private void append(final int word) {
+        if (this.size == this.out.length) {
+            this.out = Arrays.copyOf(this.out, this.size * 2);
+            this.origins = Arrays.copyOf(this.origins, this.size * 2);
+        }
+        this.out[this.size++] = word;
+    }
+
+    /**
+     * Does an instruction write a destination operand?
+     *
+     * @param opcode the opcode
+     * @return <code>true</code> if the first operand is a destination
+     */
+    private static boolean hasDestination(final int opcode) {
+        return opcode <= RegisterCode.LDL || opcode == RegisterCode.LDM
+            || opcode == RegisterCode.ALC || opcode == RegisterCode.REA;
+    }
+
+    /**
+     * Is an operand an inline constant?
+     *
+     * @param operand the operand
+     * @return <code>true</code> for an inline constant
+     */
+    private static boolean isInlineConstant(final int operand) {
+        return (operand & RegisterCode.MODE_MASK) == RegisterCode.CONSTANT;
+    }
+
+    /**
+     * Get the operand of a register.
+     *
+     * @param index the register
+     * @return the operand
+     */
+    private static int register(final int index) {
+        return index << RegisterCode.MODE_BITS | RegisterCode.REGISTER;
+    }
+
+    /**
+     * Get the operand of a frame slot.
+     *
+     * @param offset the offset of the slot from the frame pointer
+     * @return the operand
+     */
+    private static int local(final int offset) {
+        return offset << RegisterCode.MODE_BITS | RegisterCode.LOCAL;
+    }
+
+    /**
+     * Get the operand of a constant, pooling it if it does not fit.
+     *
+     * @param value the constant
+     * @return the operand
+     */
+    private int constant(final int value) {
+        if (value >= MIN_INLINE && value <= MAX_INLINE) {
+            return value << RegisterCode.MODE_BITS | RegisterCode.CONSTANT;
+        }
+        Integer index = this.pooled.get(value);
+        if (index == null) {
+            index = this.pool.length;
+            this.pool = Arrays.copyOf(this.pool, index + 1);
+            this.pool[index] = value;
+            this.pooled.put(value, index);
+        }
+        return index << RegisterCode.MODE_BITS | RegisterCode.POOLED;
+    }
+}
@@ -0,0 +1,49 @@
+package fi.tkk.cs.tkkcc.slx;
+
+import java.util.AbstractList;
+import java.util.Arrays;
+import java.util.RandomAccess;
+
+/**
+ * The integers a program has printed, kept as a growing int array.
+ *
+ * The list is read only for its users; the interpreter appends to it
+ * through the output interface.
+ */
+final class ResultList extends AbstractList<Integer>
+    implements RandomAccess, IntOutput {
+    /** Initial capacity of the list */
+    private static final int INITIAL_CAPACITY = 16;
+
+    /** The integers */
+    private int[] values = new int[INITIAL_CAPACITY];
+    /** Number of integers in the list */
+    private int size = 0;
+
+    @Override
+    public void write(final int value) {
+        if (this.size == this.values.length) {
+            this.values = Arrays.copyOf(this.values, this.size * 2);
+        }
+        this.values[this.size++] = value;
+    }
+
+    @Override
+    public void flush() {
+        // Nothing is buffered
+    }
+
+    @Override
+    public Integer get(final int index) {
+        if (index < 0 || index >= this.size) {
+            throw new IndexOutOfBoundsException
+                ("Index: " + index + ", Size: " + this.size);
+        }
+        return this.values[index];
+    }
+
+    @Override
+    public int size() {
+        return this.size;
+    }
+}
@@ -0,0 +1,289 @@
+package fi.tkk.cs.tkkcc.slx;
+
+import java.util.concurrent.BlockingQueue;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.Future;
+import java.util.concurrent.LinkedBlockingQueue;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.logging.Logger;
+
+/**
+ * Runs many SLX programs in time slices over a few carrier threads.
+ *
+ * The programs wait in one queue. A carrier takes the first program,
+ * runs it for a quantum of steps and puts it back at the end of the
+ * queue unless it has stopped, so a long running program only delays
+ * the others by one quantum per turn. Each program has a step budget,
+ * its step limit over all slices, and may have a deadline after which
+ * it is stopped between two slices, which caps the latency of a
+ * request.
+ *
+ * Like in the {@link ExecutionService}, the interpreters are quiet and
+ * collect the printed integers. The programs run on the switch mode
+ * engine, which can suspend a program after any instruction.
+ */
+public final class Scheduler {
+    /** Default number of steps a program runs before it yields */
+    public static final int DEFAULT_QUANTUM = 10000;
+    /** Log generator */
+    private static final Logger log =
+        Logger.getLogger(Scheduler.class.getName());
+    /** Number of schedulers created, for naming the carrier threads */
+    private static final AtomicInteger schedulers = new AtomicInteger();
+
+    /** Marker telling a carrier to stop */
+    private final Task stop = new Task(null, null, 0);
+    /** Programs waiting for their next slice */
+    private final BlockingQueue<Task> ready = new LinkedBlockingQueue<Task>();
+    /** The carrier threads */
+    private final Thread[] carriers;
+    /** Number of steps in a slice */
+    private final int quantum;
+    /** Number of submitted programs that have not stopped */
+    private final AtomicInteger pending = new AtomicInteger();
+    /** True once no more programs are accepted */
+    private volatile boolean shutdown = false;
+
+    /**
+     * Initialize a new scheduler with one carrier per processor and the
+     * default quantum.
+     */
+    public Scheduler() {
+        this(Runtime.getRuntime().availableProcessors(), DEFAULT_QUANTUM);
+    }
+
+    /**
+     * Initialize a new scheduler.
+     *
+     * @param carriers the number of carrier threads
+     * @param quantum the number of steps a program runs before it yields
+     */
+    public Scheduler(final int carriers, final int quantum) {
+        super();
+        if (carriers <= 0) {
+            throw new IllegalArgumentException
+                ("Number of carriers must be positive!");
+        }
+        if (quantum <= 0) {
+            throw new IllegalArgumentException("Quantum must be positive!");
+        }
+        this.quantum = quantum;
+        this.carriers = new Thread[carriers];
+        final int scheduler = schedulers.incrementAndGet();
+        for (int i = 0; i < carriers; i++) {
+            this.carriers[i] = new Thread(new Runnable() {
+                    @Override
+                    public void run() {
+                        Scheduler.this.carry();
+                    }
+                }, "slx-scheduler-" + scheduler + "-" + (i + 1));
+            this.carriers[i].setDaemon(true);
+            this.carriers[i].start();
+        }
+    }
+
+    /**
+     * Run a program without a deadline.
+     *
+     * @param program the program, not modified by the run
+     * @param input the integer inputs of the program, copied
+     * @param budget the most steps the program may execute
+     * @return the result of the run
+     */
+    public Future<ExecutionResult> submit(final SlxProgram program,
+                                          final int[] input,
+                                          final int budget) {
+        return this.submit(program, input, budget, 0, TimeUnit.NANOSECONDS);
+    }
+
+    /**
+     * Run a program. A program that has not stopped by the deadline is
+     * not resumed; its result is completed with the integers printed so
+     * far and is not marked completed, so the caller gets a failed
+     * result rather than a future that never completes. Cancelling the
+     * result drops the program from the queue.
+     *
+     * @param program the program, not modified by the run
+     * @param input the integer inputs of the program, copied
+     * @param budget the most steps the program may execute
+     * @param timeout the time from now to the deadline, 0 for none
+     * @param unit the unit of the timeout
+     * @return the result of the run
+     */
+    public Future<ExecutionResult> submit(final SlxProgram program,
+                                          final int[] input,
+                                          final int budget,
+                                          final long timeout,
+                                          final TimeUnit unit) {
+        if (program == null || input == null || unit == null) {
+            throw new IllegalArgumentException("Parameter may not be null!");
+        }
+        if (timeout < 0) {
+            throw new IllegalArgumentException
+                ("Timeout may not be negative!");
+        }
+        final Interpreter interpreter = new Interpreter(program);
+        // Checks the budget before the program is queued
+        interpreter.setStepLimit(budget);
+        final Task task = new Task(interpreter,
+                                   IntChannels.fromArray(input.clone()),
+                                   timeout > 0 ? System.nanoTime()
+                                   + unit.toNanos(timeout) : 0);
+        this.pending.incrementAndGet();
+        if (this.shutdown) {
+            this.finished();
+            throw new RejectedExecutionException
+                ("Scheduler has been shut down!");
+        }
+        this.ready.add(task);
+        return task.result;
+    }
+
+    /**
+     * Stop accepting programs. The programs already submitted are run,
+     * then the carriers stop.
+     */
+    public void shutdown() {
+        this.shutdown = true;
+        if (this.pending.get() == 0) {
+            this.stopCarriers();
+        }
+    }
+
+    /**
+     * Wait until the carriers have stopped after {@link #shutdown}.
+     *
+     * @param timeout the longest time to wait
+     * @param unit the unit of the timeout
+     * @return <code>true</code> if all programs were run
+     * @throws InterruptedException if interrupted while waiting
+     */
+    public boolean awaitTermination(final long timeout, final TimeUnit unit)
+        throws InterruptedException {
+        final long deadline = System.nanoTime() + unit.toNanos(timeout);
+        for (Thread carrier : this.carriers) {
+            final long left = deadline - System.nanoTime();
+            if (left > 0) {
+                TimeUnit.NANOSECONDS.timedJoin(carrier, left);
+            }
+            if (carrier.isAlive()) {
+                return false;
+            }
+        }
+        return true;
+    }
+
+    /**
+     * Get the number of submitted programs that have not stopped.
+     *
+     * @return the number of programs
+     */
+    public int getPendingCount() {
+        return this.pending.get();
+    }
+
+    /**
+     * Run slices of the queued programs until told to stop.
+     */
+    private void carry() {
+        try {
+            while (true) {
+                final Task task = this.ready.take();
+                if (task == this.stop) {
+                    return;
+                }
+                if (this.runSlice(task)) {
+                    this.finished();
+                } else {
+                    this.ready.add(task);
+                }
+            }
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+        }
+    }
+
+    /**
+     * Run one slice of a program and complete its result if it stopped.
+     *
+     * @param task the program
+     * @return <code>true</code> if the program is not resumed
+     */
+    private boolean runSlice(final Task task) {
+        if (task.result.isCancelled()) {
+            return true;
+        }
+        final Interpreter interpreter = task.interpreter;
+        boolean stopped;
+        try {
+            stopped = interpreter.executeSlice(task.input, null,
+                                               this.quantum);
+        } catch (RuntimeException e) {
+            task.result.completeExceptionally(e);
+            return true;
+        }
+        if (!stopped && task.deadline != 0
+            && System.nanoTime() - task.deadline >= 0) {
+            log.warning("Program stopped at its deadline");
+            stopped = true;
+        }
+        if (stopped) {
+            task.result.complete(new ExecutionResult
+                                 (interpreter.getResult(),
+                                  interpreter.isProgramExecuted()));
+        }
+        return stopped;
+    }
+
+    /**
+     * Count a program as stopped, and stop the carriers after the last
+     * one once the scheduler has been shut down.
+     */
+    private void finished() {
+        if (this.pending.decrementAndGet() == 0 && this.shutdown) {
+            this.stopCarriers();
+        }
+    }
+
+    /**
+     * Tell every carrier to stop. Telling them more than once does no
+     * harm.
+     */
+    private void stopCarriers() {
+        for (int i = 0; i < this.carriers.length; i++) {
+            this.ready.add(this.stop);
+        }
+    }
+
+    /**
+     * A submitted program and its state between slices.
+     */
+    private static final class Task {
+        /** The interpreter holding the suspended machine */
+        private final Interpreter interpreter;
+        /** The input, read on from slice to slice */
+        private final IntInput input;
+        /** The deadline as a System.nanoTime value, 0 for none */
+        private final long deadline;
+        /** The result, completed when the program stops */
+        private final CompletableFuture<ExecutionResult> result =
+            new CompletableFuture<ExecutionResult>();
+
+        /**
+         * Initialize a new task.
+         *
+         * @param interpreter the interpreter
+         * @param input the input
+         * @param deadline the deadline, 0 for none
+         */
+        Task(final Interpreter interpreter, final IntInput input,
+             final long deadline) {
+            super();
+            this.interpreter = interpreter;
+            this.input = input;
+            this.deadline = deadline;
+        }
+    }
+}
@@ -0,0 +1,224 @@
+package fi.tkk.cs.tkkcc.slx;
+
+import java.io.BufferedOutputStream;
+import java.io.DataOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.nio.ByteBuffer;
+import java.nio.ByteOrder;
+import java.nio.IntBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.StandardOpenOption;
+import java.util.HashMap;
+import java.util.Map;
+
+/**
+ * Binary container of compiled SLX programs.
+ *
+ * All numbers are 32 bit big endian integers, except the version and
+ * the flags, which are 16 bits each. The file consists of
+ * <ol>
+ * <li>a header: the magic number "SLXO", the version, the flags, the
+ * number of instructions and the number of labels,</li>
+ * <li>the instructions, three integers each: the opcode (the ordinal
+ * of the command word) and two parameters, unused ones zero,</li>
+ * <li>the labels, two integers each: the label and the index of the
+ * LAB instruction defining it,</li>
+ * <li>if the DEBUG flag is set, the source line of each instruction,
+ * zero if not known.</li>
+ * </ol>
+ *
+ * A file is loaded by mapping it to memory and copying the sections to
+ * the arrays of the program in bulk, without an object per instruction.
+ * The text format stays the one for people to read.
+ */
+public final class SlxObjectFile {
+    /** The magic number, "SLXO" */
+    static final int MAGIC = 0x534C584F;
+    /** The current version of the format */
+    static final int VERSION = 1;
+    /** Flag: the file has the source lines of the instructions */
+    static final int DEBUG = 1;
+    /** Size of the header in bytes */
+    private static final int HEADER_SIZE = 16;
+    /** Size of an instruction in integers */
+    private static final int INSTRUCTION_SIZE = 3;
+
+    /**
+     * No instances.
+     */
+    private SlxObjectFile() {
+        super();
+    }
+
+    /**
+     * Write a program to a file.
+     *
+     * @param program the program
+     * @param file the file, replaced if it exists
+     * @throws IOException if the file can not be written
+     */
+    public static void write(final SlxProgram program, final Path file)
+        throws IOException {
+        try (OutputStream out = Files.newOutputStream(file)) {
+            SlxObjectFile.write(program, out);
+        }
+    }
+
+    /**
+     * Write a program to a stream.
+     *
+     * @param program the program
+     * @param out the stream, flushed but not closed
+     * @throws IOException if the stream can not be written
+     */
+    public static void write(final SlxProgram program, final OutputStream out)
+        throws IOException {
+        final DataOutputStream data =
+            new DataOutputStream(new BufferedOutputStream(out, 1 << 16));
+        final int size = program.size();
+        final boolean debug = program.hasSourceLines();
+        final Map<Integer, Integer> labels = program.getLabelMap();
+        data.writeInt(MAGIC);
+        data.writeShort(VERSION);
+        data.writeShort(debug ? DEBUG : 0);
+        data.writeInt(size);
+        data.writeInt(labels.size());
+        for (int i = 0; i < size; i++) {
+            final int count = program.getCommandWord(i).getNumberOfParameters();
+            data.writeInt(program.getOpcode(i));
+            data.writeInt(count > 0 ? program.getParameter(i, 0) : 0);
+            data.writeInt(count > 1 ? program.getParameter(i, 1) : 0);
+        }
+        for (Map.Entry<Integer, Integer> label : labels.entrySet()) {
+            data.writeInt(label.getKey());
+            data.writeInt(label.getValue());
+        }
+        if (debug) {
+            for (int i = 0; i < size; i++) {
+                data.writeInt(program.getSourceLine(i));
+            }
+        }
+        data.flush();
+    }
+
+    /**
+     * Is a file an SLX object file? Only the magic number is checked.
+     *
+     * @param file the file
+     * @return <code>true</code> if the file starts with the magic number
+     * @throws IOException if the file can not be read
+     */
+    public static boolean isObjectFile(final Path file) throws IOException {
+        try (InputStream in = Files.newInputStream(file)) {
+            final byte[] magic = new byte[4];
+            int length = 0;
+            while (length < magic.length) {
+                final int n = in.read(magic, length, magic.length - length);
+                if (n < 0) {
+                    return false;
+                }
+                length += n;
+            }
+            return ByteBuffer.wrap(magic).getInt() == MAGIC;
+        }
+    }
+
+    /**
+     * Load a program from a file.
+     *
+     * @param file the file
+     * @return the program
+     * @throws IOException if the file can not be read
+     * @throws IllegalInstructionException if the file is not a valid
+     *         object file
+     */
+    public static SlxProgram read(final Path file) throws IOException {
+        try (FileChannel channel =
+             FileChannel.open(file, StandardOpenOption.READ)) {
+            if (channel.size() > Integer.MAX_VALUE) {
+                throw new IllegalInstructionException
+                    ("Object file too large: " + file);
+            }
+            return SlxObjectFile.decode
+                (channel.map(FileChannel.MapMode.READ_ONLY, 0,
+                             channel.size()));
+        }
+    }
+
+    /**
+     * Decode a program from the bytes of an object file.
+     *
+     * @param bytes the bytes, from the current position on
+     * @return the program
+     * @throws IllegalInstructionException if the bytes are not a valid
+     *         object file
+     */
+    static SlxProgram decode(final ByteBuffer bytes) {
+        bytes.order(ByteOrder.BIG_ENDIAN);
+        if (bytes.remaining() < HEADER_SIZE || bytes.getInt() != MAGIC) {
+            throw new IllegalInstructionException("Not an SLX object file");
+        }
+        final int version = bytes.getShort() & 0xffff;
+        if (version > VERSION) {
+            throw new IllegalInstructionException
+                ("Unsupported object file version " + version);
+        }
+        final int flags = bytes.getShort() & 0xffff;
+        final int size = bytes.getInt();
+        final int labelCount = bytes.getInt();
+        final long expected = (long) size * INSTRUCTION_SIZE
+            + 2L * labelCount + ((flags & DEBUG) != 0 ? size : 0);
+        if (size < 0 || labelCount < 0
+            || expected * 4 > bytes.remaining()) {
+            throw new IllegalInstructionException("Truncated object file");
+        }
+        final IntBuffer ints = bytes.asIntBuffer();
+
+        final int[] instructions = new int[size * INSTRUCTION_SIZE];
+        ints.get(instructions);
+        final int[] offsets = new int[size];
+        int length = 0;
+        for (int i = 0; i < size; i++) {
+            final int opcode = instructions[i * INSTRUCTION_SIZE];
+            if (opcode < 0 || opcode >= Opcode.COMMAND_COUNT) {
+                throw new IllegalInstructionException
+                    ("Unknown opcode " + opcode + " in instruction " + i);
+            }
+            offsets[i] = length;
+            length += Opcode.getNumberOfParameters(opcode) + 1;
+        }
+        // Drop the unused parameters
+        final int[] code = new int[length];
+        for (int i = 0; i < size; i++) {
+            final int from = i * INSTRUCTION_SIZE;
+            final int count =
+                Opcode.getNumberOfParameters(instructions[from]) + 1;
+            System.arraycopy(instructions, from, code, offsets[i], count);
+        }
+
+        final Map<Integer, Integer> labels =
+            new HashMap<Integer, Integer>(labelCount * 2);
+        for (int i = 0; i < labelCount; i++) {
+            final int label = ints.get();
+            final int index = ints.get();
+            if (index < 0 || index >= size
+                || code[offsets[index]] != Opcode.LAB
+                || code[offsets[index] + 1] != label) {
+                throw new IllegalInstructionException
+                    ("Label " + label + " does not match its instruction");
+            }
+            labels.put(label, index);
+        }
+
+        int[] lines = null;
+        if ((flags & DEBUG) != 0) {
+            lines = new int[size];
+            ints.get(lines);
+        }
+        return new SlxProgram(code, offsets, lines, labels);
+    }
+}
@@ -1,50 +1,107 @@
 package fi.tkk.cs.tkkcc.slx;
 
-import java.util.ArrayList;
+import java.util.AbstractList;
+import java.util.Arrays;
 import java.util.HashMap;
 import java.util.List;
 import java.util.Map;
+import java.util.RandomAccess;
 
 /**
  * SLX program.
- * 
+ *
  * This class may be used in a compiler that generates SLX programs.
- * 
+ *
+ * The instructions are stored in a flat code array: the opcode of each
+ * instruction (the ordinal of its command word) followed by its
+ * parameters. The list of instructions is available as a view for
+ * tooling.
+ *
  * @author Timo Montonen
  */
 public final class SlxProgram {
+    /** Initial capacity of the program, in instructions */
+    private static final int INITIAL_CAPACITY = 64;
+
+    /** Opcodes and inline parameters of the instructions */
+    private int[] code;
+    /** Number of used words in the code array */
+    private int codeLength;
+    /** Offset of each instruction in the code array */
+    private int[] offsets;
+    /** Source line of each instruction, <code>null</code> if none known */
+    private int[] lines;
+    /** Number of instructions in the program */
+    private int size;
     /** The instructions of the program */
     private final List<Instruction> program;
     /** Function labels of the program */
     private final Map<Integer, Integer> labelMap;
-    
+    /** Source line given to the emitted instructions */
+    private int emitLine = 0;
+
     /**
      * Initialize a new SLX program.
      */
     public SlxProgram() {
         super();
-        this.program = new ArrayList<Instruction>();
+        this.code = new int[INITIAL_CAPACITY * 2];
+        this.offsets = new int[INITIAL_CAPACITY];
+        this.program = new InstructionList();
         this.labelMap = new HashMap<Integer, Integer>();
     }
-    
+
+    /**
+     * Initialize an SLX program from decoded code. The arrays are not
+     * copied.
+     *
+     * @param code the opcodes and inline parameters of the instructions
+     * @param offsets the offset of each instruction in the code
+     * @param lines the source line of each instruction, or
+     *              <code>null</code>
+     * @param labelMap the label -&gt; instruction index mapping
+     */
+    SlxProgram(final int[] code, final int[] offsets, final int[] lines,
+               final Map<Integer, Integer> labelMap) {
+        super();
+        this.code = code;
+        this.codeLength = code.length;
+        this.offsets = offsets;
+        this.lines = lines;
+        this.size = offsets.length;
+        this.program = new InstructionList();
+        this.labelMap = labelMap;
+    }
+
+    /**
+     * Set the source line of the instructions emitted from now on. A
+     * compiler calling this builds the line table of the program, which
+     * maps the instructions back to the compiled source.
+     *
+     * @param line the line number, 0 if not known
+     */
+    public void setSourceLine(final int line) {
+        this.emitLine = line;
+    }
+
     /**
      * Emit command word without parameters.
-     * 
+     *
      * @param command Emitted command.
      */
     public void emit(final CommandWord command) {
         if (command.getNumberOfParameters() != 0) {
             throw new IllegalArgumentException
                 ("Wrong number of parameters for " + command
-                 + ", number of required parameters: " + 
+                 + ", number of required parameters: " +
                  command.getNumberOfParameters());
         }
-        this.program.add(new Instruction(command, new Integer[] {}));
+        this.append(command, 0, 0, this.emitLine);
     }
-    
+
     /**
      * Emit command word with one parameter.
-     * 
+     *
      * @param command Emitted command.
      * @param param1 Command's only parameter.
      */
@@ -52,37 +109,102 @@ public final class SlxProgram {
         if (command.getNumberOfParameters() != 1) {
             throw new IllegalArgumentException
                 ("Wrong number of parameters for " + command
-                 + ", number of required parameters: " + 
+                 + ", number of required parameters: " +
                  command.getNumberOfParameters());
         }
-        this.program.add(new Instruction(command, new Integer[] { param1 }));
-
-        // Labels have to be stored for later use
-        if (command.equals(CommandWord.LAB)) {
-            // Add labels also to label -> pc map
-            this.labelMap.put(param1, new Integer(this.program.size() - 1));
-        }
-        
+        this.append(command, param1, 0, this.emitLine);
     }
 
     /**
      * Emit command word with two parameters.
-     * 
+     *
      * @param command Emitted command
      * @param param1 First parameter
      * @param param2 Second parameter
      */
-    public void emit(final CommandWord command, final int param1, 
+    public void emit(final CommandWord command, final int param1,
                      final int param2) {
         if (command.getNumberOfParameters() != 2) {
             throw new IllegalArgumentException
                 ("Wrong number of parameters for " + command
-                 + ", number of required parameters: " + 
+                 + ", number of required parameters: " +
                  command.getNumberOfParameters());
         }
-        
-        this.program.add(new Instruction(command, 
-                                         new Integer[] { param1, param2 }));
+        this.append(command, param1, param2, this.emitLine);
+    }
+
+    /**
+     * Add a parsed instruction to the end of the program, keeping its
+     * source line number.
+     *
+     * @param instr the instruction
+     */
+    void add(final Instruction instr) {
+        final CommandWord command = instr.getCommandWord();
+        final int count = command.getNumberOfParameters();
+        this.append(command,
+                    count > 0 ? instr.getCommandParameter(0) : 0,
+                    count > 1 ? instr.getCommandParameter(1) : 0,
+                    instr.getSourceLine());
+    }
+
+    /**
+     * Add an instruction to the end of the program.
+     *
+     * @param opcode the opcode, the ordinal of the command word
+     * @param param1 the first parameter, ignored if not needed
+     * @param param2 the second parameter, ignored if not needed
+     * @param line the source line number, 0 if not known
+     */
+    void add(final int opcode, final int param1, final int param2,
+             final int line) {
+        this.append(Opcode.toCommandWord(opcode), param1, param2, line);
+    }
+
+    /**
+     * Append an instruction to the code array.
+     *
+     * @param command the command word
+     * @param param1 the first parameter, ignored if not needed
+     * @param param2 the second parameter, ignored if not needed
+     * @param line the source line number, 0 if not known
+     */
+    private void append(final CommandWord command, final int param1,
+                        final int param2, final int line) {
+        final int count = command.getNumberOfParameters();
+        if (this.codeLength + count + 1 > this.code.length) {
+            this.code = Arrays.copyOf
+                (this.code, Math.max(this.code.length * 2,
+                                     INITIAL_CAPACITY * 2));
+        }
+        if (this.size == this.offsets.length) {
+            this.offsets = Arrays.copyOf
+                (this.offsets, Math.max(this.size * 2, INITIAL_CAPACITY));
+        }
+        if (line != 0 && this.lines == null) {
+            this.lines = new int[this.offsets.length];
+        }
+        if (this.lines != null) {
+            if (this.lines.length < this.offsets.length) {
+                this.lines = Arrays.copyOf(this.lines, this.offsets.length);
+            }
+            this.lines[this.size] = line;
+        }
+        this.offsets[this.size] = this.codeLength;
+        this.code[this.codeLength++] = command.ordinal();
+        if (count > 0) {
+            this.code[this.codeLength++] = param1;
+        }
+        if (count > 1) {
+            this.code[this.codeLength++] = param2;
+        }
+        this.size++;
+
+        // Labels have to be stored for later use
+        if (command.equals(CommandWord.LAB)) {
+            // Add labels also to label -> pc map
+            this.labelMap.put(param1, this.size - 1);
+        }
     }
 
     /**
@@ -96,9 +218,10 @@ public final class SlxProgram {
         str = str.replaceAll(", ", "\n");
         return str;
     }
-	
+
     /**
-     * Get the instructions of this program.
+     * Get the instructions of this program. The list is a read-only
+     * view of the flat code of the program.
      *
      * @return the instructions
      */
@@ -106,6 +229,17 @@ public final class SlxProgram {
         return this.program;
     }
 
+    /**
+     * Get the flat code of this program: for each instruction its
+     * opcode (the ordinal of the command word) followed by its
+     * parameters. Labels are not resolved.
+     *
+     * @return a copy of the code array
+     */
+    public int[] getCode() {
+        return Arrays.copyOf(this.code, this.codeLength);
+    }
+
     /**
      * Get the label -&gt; pc mapping of this program.
      *
@@ -114,4 +248,90 @@ public final class SlxProgram {
     public Map<Integer, Integer> getLabelMap() {
         return labelMap;
     }
+
+    /**
+     * Get the number of instructions in this program.
+     *
+     * @return the number of instructions
+     */
+    int size() {
+        return this.size;
+    }
+
+    /**
+     * Get the opcode of an instruction.
+     *
+     * @param index the index of the instruction
+     * @return the opcode, the ordinal of the command word
+     */
+    int getOpcode(final int index) {
+        return this.code[this.offsets[index]];
+    }
+
+    /**
+     * Are the source lines of the instructions known?
+     *
+     * @return <code>true</code> if some instruction has a source line
+     */
+    boolean hasSourceLines() {
+        return this.lines != null;
+    }
+
+    /**
+     * Get the command word of an instruction.
+     *
+     * @param index the index of the instruction
+     * @return the command word
+     */
+    CommandWord getCommandWord(final int index) {
+        return Opcode.toCommandWord(this.code[this.offsets[index]]);
+    }
+
+    /**
+     * Get a parameter of an instruction.
+     *
+     * @param index the index of the instruction
+     * @param parameter the index of the parameter
+     * @return the parameter
+     */
+    int getParameter(final int index, final int parameter) {
+        return this.code[this.offsets[index] + 1 + parameter];
+    }
+
+    /**
+     * Get the source line of an instruction.
+     *
+     * @param index the index of the instruction
+     * @return the line number, 0 if not known
+     */
+    int getSourceLine(final int index) {
+        return this.lines != null ? this.lines[index] : 0;
+    }
+
+    /**
+     * Read-only list view of the instructions.
+     */
+    private final class InstructionList extends AbstractList<Instruction>
+        implements RandomAccess {
+
+        @Override
+        public Instruction get(final int index) {
+            if (index < 0 || index >= SlxProgram.this.size) {
+                throw new IndexOutOfBoundsException
+                    ("Index: " + index + ", size: " + SlxProgram.this.size);
+            }
+            final CommandWord command = getCommandWord(index);
+            final Integer[] parameters =
+                new Integer[command.getNumberOfParameters()];
+            for (int i = 0; i < parameters.length; i++) {
+                parameters[i] = getParameter(index, i);
+            }
+            return new Instruction(command, parameters, getSourceLine(index));
+        }
+
+        @Override
+        public int size() {
+            return SlxProgram.this.size;
+        }
+    }
 }
@@ -0,0 +1,276 @@
+package fi.tkk.cs.tkkcc.slx;
+
+import java.io.IOException;
+import java.io.InputStream;
+import java.nio.charset.StandardCharsets;
+import java.util.Arrays;
+
+/**
+ * Loader of SLX programs in the text format.
+ *
+ * Reads the bytes of the program in large blocks and parses them in
+ * place: the mnemonics are looked up in a table indexed by their three
+ * letters and the operands are accumulated digit by digit, so no
+ * strings or boxed integers are created per line. The accepted syntax
+ * is the one of {@link Instruction}: one instruction per line, the
+ * mnemonic in any case followed by its operands, the rest of the line
+ * ignored. Empty lines and lines starting with ';' are skipped.
+ */
+final class SlxTextLoader {
+    /** Size of the read buffer, in bytes */
+    private static final int BUFFER_SIZE = 1 << 16;
+    /** Number of letters in a mnemonic */
+    private static final int MNEMONIC_LENGTH = 3;
+    /** Marker of a letter combination that is not a mnemonic */
+    private static final int UNKNOWN = -1;
+    /** Opcode of each three letter combination, by {@link #key} */
+    private static final int[] MNEMONICS = new int[26 * 26 * 26];
+
+    static {
+        Arrays.fill(MNEMONICS, UNKNOWN);
+        for (CommandWord command : CommandWord.values()) {
+            final String name = command.name();
+            if (name.length() == MNEMONIC_LENGTH) {
+                MNEMONICS[SlxTextLoader.key(name.charAt(0), name.charAt(1),
+                                            name.charAt(2))] =
+                    command.ordinal();
+            }
+        }
+    }
+
+    /** The stream */
+    private final InputStream in;
+    /** Bytes read from the stream, from the start of the current line */
+    private byte[] buffer = new byte[BUFFER_SIZE];
+    /** Index of the next unread byte */
+    private int position = 0;
+    /** Number of bytes in the buffer */
+    private int limit = 0;
+    /** Index of the first byte of the current line */
+    private int lineStart = 0;
+    /** Number of the line being parsed */
+    private int line = 1;
+
+    /**
+     * Initialize a new loader.
+     *
+     * @param in the stream
+     */
+    private SlxTextLoader(final InputStream in) {
+        super();
+        this.in = in;
+    }
+
+    /**
+     * Load a program.
+     *
+     * @param in the text of the program, not closed
+     * @return the program
+     * @throws IOException if the stream can not be read
+     * @throws IllegalInstructionException if a line is not a valid
+     *         instruction
+     */
+    static SlxProgram load(final InputStream in) throws IOException {
+        return new SlxTextLoader(in).parse();
+    }
+
+    /**
+     * Index a letter combination in the mnemonic table.
+     *
+     * @param c1 the first letter, in any case
+     * @param c2 the second letter
+     * @param c3 the third letter
+     * @return the index, -1 if not all are letters
+     */
+    private static int key(final int c1, final int c2, final int c3) {
+        final int l1 = (c1 | 0x20) - 'a';
+        final int l2 = (c2 | 0x20) - 'a';
+        final int l3 = (c3 | 0x20) - 'a';
+        if ((l1 | l2 | l3) < 0 || l1 >= 26 || l2 >= 26 || l3 >= 26) {
+            return -1;
+        }
+        return (l1 * 26 + l2) * 26 + l3;
+    }
+
+    /**
+     * Parse the whole stream.
+     *
+     * @return the program
+     * @throws IOException if the stream can not be read
+     */
+    private SlxProgram parse() throws IOException {
+        final SlxProgram program = new SlxProgram();
+        int b = this.next();
+        while (b >= 0) {
+            b = this.skipSpace(b);
+            if (b == ';' || b == '\n' || b < 0) {
+                // Comment or empty line
+                b = this.skipLine(b);
+                continue;
+            }
+
+            final int c1 = b;
+            final int c2 = this.next();
+            final int c3 = c2 < 0 ? -1 : this.next();
+            b = c3 < 0 ? -1 : this.next();
+            final int key = SlxTextLoader.key(c1, c2, c3);
+            final int opcode = key >= 0 && SlxTextLoader.isSpace(b)
+                ? MNEMONICS[key] : UNKNOWN;
+            if (opcode == UNKNOWN) {
+                throw new IllegalInstructionException
+                    ("Unrecognized command: " + this.lineText(b)
+                     + " at line " + this.line);
+            }
+
+            final int count = Opcode.getNumberOfParameters(opcode);
+            int param1 = 0;
+            int param2 = 0;
+            for (int i = 0; i < count; i++) {
+                b = this.skipSpace(b);
+                if (b == '\n' || b < 0) {
+                    throw this.error("Mandatory parameter not given", b);
+                }
+                boolean negative = false;
+                if (b == '-' || b == '+') {
+                    negative = b == '-';
+                    b = this.next();
+                }
+                long value = 0;
+                int digits = 0;
+                while (b >= '0' && b <= '9') {
+                    if (value <= Integer.MAX_VALUE + 1L) {
+                        value = value * 10 + (b - '0');
+                    }
+                    digits++;
+                    b = this.next();
+                }
+                if (negative) {
+                    value = -value;
+                }
+                if (digits == 0 || !SlxTextLoader.isSpace(b)
+                    || value < Integer.MIN_VALUE
+                    || value > Integer.MAX_VALUE) {
+                    throw this.error("Parameter not a number", b);
+                }
+                if (i == 0) {
+                    param1 = (int) value;
+                } else {
+                    param2 = (int) value;
+                }
+            }
+            program.add(opcode, param1, param2, this.line);
+            // Anything after the operands is ignored
+            b = this.skipLine(b);
+        }
+        return program;
+    }
+
+    /**
+     * Is a byte a separator of the tokens of a line? The end of the
+     * line and of the stream count as separators.
+     *
+     * @param b the byte, -1 at the end of the stream
+     * @return <code>true</code> for a separator
+     */
+    private static boolean isSpace(final int b) {
+        return b <= ' ';
+    }
+
+    /**
+     * Skip blanks within a line.
+     *
+     * @param first the current byte
+     * @return the first byte that is not blank
+     * @throws IOException if the stream can not be read
+     */
+    private int skipSpace(final int first) throws IOException {
+        int b = first;
+        while (b >= 0 && b != '\n' && b <= ' ') {
+            b = this.next();
+        }
+        return b;
+    }
+
+    /**
+     * Skip to the start of the next line.
+     *
+     * @param first the current byte
+     * @return the first byte of the next line
+     * @throws IOException if the stream can not be read
+     */
+    private int skipLine(final int first) throws IOException {
+        int b = first;
+        while (b >= 0 && b != '\n') {
+            b = this.next();
+        }
+        if (b < 0) {
+            return b;
+        }
+        this.line++;
+        this.lineStart = this.position;
+        return this.next();
+    }
+
+    /**
+     * Create the exception of an invalid operand.
+     *
+     * @param message the reason
+     * @param b the current byte
+     * @return the exception
+     * @throws IOException if the stream can not be read
+     */
+    private IllegalInstructionException error(final String message,
+                                              final int b)
+        throws IOException {
+        return new IllegalInstructionException
+            (message + ". Command line: " + this.lineText(b)
+             + " at line " + this.line);
+    }
+
+    /**
+     * Read the rest of the current line and get its text.
+     *
+     * @param first the current byte
+     * @return the line, trimmed
+     * @throws IOException if the stream can not be read
+     */
+    private String lineText(final int first) throws IOException {
+        int b = first;
+        while (b >= 0 && b != '\n') {
+            b = this.next();
+        }
+        final int end = b < 0 ? this.position : this.position - 1;
+        return new String(this.buffer, this.lineStart, end - this.lineStart,
+                          StandardCharsets.ISO_8859_1).trim();
+    }
+
+    /**
+     * Read the next byte. The bytes of the current line are kept in
+     * the buffer, so that it can be shown in an error message.
+     *
+     * @return the byte, -1 at the end of the stream
+     * @throws IOException if the stream can not be read
+     */
+    private int next() throws IOException {
+        if (this.position == this.limit) {
+            final int kept = this.limit - this.lineStart;
+            if (kept == this.buffer.length) {
+                // A line longer than the buffer
+                this.buffer = Arrays.copyOf(this.buffer, kept * 2);
+            } else {
+                System.arraycopy(this.buffer, this.lineStart,
+                                 this.buffer, 0, kept);
+            }
+            this.lineStart = 0;
+            this.position = kept;
+            this.limit = kept;
+            final int n = this.in.read(this.buffer, kept,
+                                       this.buffer.length - kept);
+            if (n <= 0) {
+                return -1;
+            }
+            this.limit += n;
+        }
+        return this.buffer[this.position++] & 0xff;
+    }
+}
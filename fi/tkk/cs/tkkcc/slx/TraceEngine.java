@@ -0,0 +1,342 @@
+package fi.tkk.cs.tkkcc.slx;
+
+import java.util.NoSuchElementException;
+import java.util.logging.Level;
+
+/**
+ * Execution engine that logs every executed instruction.
+ *
+ * Used when the interpreter is created with logging level INFO or
+ * finer. Checks failing at runtime dump the state of the machine.
+ */
+final class TraceEngine extends Engine {
+    /** Maximum number of memory words in a dump */
+    private static final int MAX_DUMP_SIZE = 65536;
+
+    /**
+     * Program execution with per instruction diagnostics.
+     *
+     * @param m the machine
+     * @param input the integer inputs of the program
+     * @param output where the printed integers are written
+     */
+    @Override
+    void execute(final Machine m, final IntInput input,
+                 final IntOutput output) {
+        final Memory memory = m.memory;
+        boolean halt = false;
+        int x1 = 0;
+        int x2 = 0;
+        int step = 0;
+        final int[] code = m.program.getCode();
+        // Start of the current instruction, for diagnostics
+        int pc = 0;
+        
+        log.info("Start executing...");
+        
+        while (!halt && step < m.stepLimit) {
+            pc = m.programCounter;
+            switch (code[m.programCounter++]) {
+            case Opcode.ADD:
+                this.check(m, pc, m.stackPointer >= 2, "Stack underflow");
+                x1 = m.pop();
+                x2 = m.pop();
+                log.info("Stack <- " + x1 + " + " + x2);
+                m.push(x1 + x2);
+                break;
+            case Opcode.ALC:
+                // Allocate memory: take area size from stack, add one for
+                // length field. Move heap pointer and store
+                // length field.
+                // push the pointer to stack
+                this.check(m, pc, m.stackPointer > 0, "Stack underflow");
+                x1 = m.pop();
+                if (m.heap != null) {
+                    x2 = m.heap.allocate(x1, m.stack, m.stackPointer);
+                    m.push(x2);
+                    log.info("Allocate memory: " + x1 + " slots at " + x2);
+                    break;
+                }
+                x2 = x1 + 1;
+                m.heapPointer = m.heapPointer - x2 - 1;
+                this.check(m, pc, m.heapPointer >= memory.getHeapBase(),
+                           "Heap out of memory bounds");
+                memory.set(m.heapPointer, x1);
+                m.push(m.heapPointer);
+                log.info("Allocate memory: " + x1 + " slots, HP=" + 
+                         m.heapPointer);
+                break;
+            case Opcode.DIV:
+                // x = pop(); y = pop(); push(y / x);
+                this.check(m, pc, m.stackPointer >= 2, "Stack underflow");
+                x1 = m.pop();
+                x2 = m.pop();
+                this.check(m, pc, x1 != 0, "Division by zero");
+                m.push(x2 / x1);
+                break;
+            case Opcode.ENT:
+                m.push(code[m.programCounter++]);
+                break;
+            case Opcode.HLT:
+                halt = true;
+                log.info("Halt!");
+                break;
+            case Opcode.JMP:
+                m.programCounter = code[m.programCounter];
+                log.info("Jump to " + m.programCounter);
+                break;
+            case Opcode.JZE:
+                this.check(m, pc, m.stackPointer > 0, "Stack underflow");
+                x1 = m.pop();
+                log.info("Compare " + x1 + " to zero...");
+                if (x1 == 0) {
+                    m.programCounter = code[m.programCounter];
+                    log.info("... true => jump to " + m.programCounter);
+                } else {
+                    m.programCounter++;
+                    log.info("... false => continue");
+                }
+                break;
+            case Opcode.LDL:
+                this.check(m, pc, m.stackPointer > 0, "Stack underflow");
+                x1 = m.pop();
+                log.info("Stack <- mem[" + (x1 + m.framePointer) + "]=" + 
+                         memory.get(m.framePointer + x1));
+                m.push(memory.get(m.framePointer + x1));
+                break;
+            case Opcode.LDM:
+                this.check(m, pc, m.stackPointer > 0, "Stack underflow");
+                x1 = m.pop();
+                this.check(m, pc, x1 >= 0 && x1 < memory.size(), 
+                           "Memory access out of bounds");
+                log.info("Stack <- mem[" + x1 + "]=" + memory.get(x1));
+                m.push(memory.get(x1));
+                break;
+            case Opcode.MUL:
+                this.check(m, pc, m.stackPointer >= 2, "Stack underflow");
+                x1 = m.pop();
+                x2 = m.pop();
+                log.info("Stack <- " + x1 + " * " + x2);
+                m.push(x1 * x2);
+                break;
+            case Opcode.NOT:
+                this.check(m, pc, m.stackPointer > 0, "Stack underflow");
+                x1 = m.pop();
+                log.info("Stack <- !" + x1);
+                m.push(x1 == 1 ? 0 : 1);
+                break;
+            case Opcode.REQ:
+                this.check(m, pc, m.stackPointer >= 2, "Stack underflow");
+                x1 = m.pop();
+                x2 = m.pop();
+                log.info("Stack <-" + x2 + " == " + x1);
+                m.push(x1 == x2 ? 1 : 0);
+                break;
+            case Opcode.RET:
+                m.programCounter = memory.get(m.framePointer);
+                m.heapPointer = memory.get(m.framePointer - Machine.FRAME_SIZE + 1);
+                m.framePointer = memory.get(m.framePointer - Machine.FRAME_SIZE);
+                log.info("Return from subroutine to " + m.programCounter + 
+                         ", FP=" + m.framePointer);
+                break;
+            case Opcode.RGE:
+                this.check(m, pc, m.stackPointer >= 2, "Stack underflow");
+                x1 = m.pop();
+                x2 = m.pop();
+                log.info("Stack <- " + x2 + " >= " + x1);
+                m.push(x2 >= x1 ? 1 : 0);
+                break;
+            case Opcode.RGT:
+                this.check(m, pc, m.stackPointer >= 2, "Stack underflow");
+                x1 = m.pop();
+                x2 = m.pop();
+                log.info("Stack <- " + x2 + " > " + x1);
+                m.push(x2 > x1 ? 1 : 0);
+                break;
+            case Opcode.RLE:
+                this.check(m, pc, m.stackPointer >= 2, "Stack underflow");
+                x1 = m.pop();
+                x2 = m.pop();
+                log.info("Stack <- " + x2 + " <= " + x1);
+                m.push(x2 <= x1 ? 1 : 0);
+                break;
+            case Opcode.RLT:
+                this.check(m, pc, m.stackPointer >= 2, "Stack underflow");
+                x1 = m.pop();
+                x2 = m.pop();
+                log.info("Stack <- " + x2 + " < " + x1);
+                m.push(x2 < x1 ? 1 : 0);
+                break;
+            case Opcode.RNE:
+                this.check(m, pc, m.stackPointer >= 2, "Stack underflow");
+                x1 = m.pop();
+                x2 = m.pop();
+                log.info("Stack <- " + x2 + " != " + x1);
+                m.push(x1 != x2 ? 1 : 0);
+                break;
+            case Opcode.SBR:
+                // Previous command has to be SFR, otherwise framepointer points
+                // to old frame
+                x2 = code[m.programCounter + 1];
+                memory.set(m.framePointer, m.programCounter + 2);
+                m.programCounter = code[m.programCounter];
+                log.info("Call subroutine, jump to " + m.programCounter + 
+                         ", old PC stored to " + m.framePointer);
+                this.check(m, pc, m.stackPointer >= x2, "Stack underflow");
+                this.check(m, pc, x2 >= 0, "Negative amount of parameters");
+                this.check(m, pc, m.framePointer + x2 < memory.getStackLimit(),
+                           "Memory access out of bounds");
+                // Load parameters into frame in reverse order
+                for (int i = x2; i > 0; i--) {
+                    x1 = m.pop();
+                    memory.set(m.framePointer + i, x1);
+                    log.info("Store parameter " + (i - 1) + "(value=" + x1 + 
+                             ") at FP=" + (m.framePointer + i));
+                }
+                break;
+            case Opcode.SFR:
+                int frameOffset = code[m.programCounter++];
+                this.check(m, pc, m.framePointer + frameOffset + 
+                           Machine.FRAME_SIZE + 1 < memory.getStackLimit(),
+                           "Frame pointer out of memory bounds");
+                log.info("Store FP=" + m.framePointer + " to memory location " 
+                         + (m.framePointer + frameOffset + 1)
+                         + "(Offset=" + frameOffset + ")");
+                memory.set(m.framePointer + frameOffset + Machine.FRAME_SIZE - 1,
+                           m.framePointer);
+                memory.set(m.framePointer + frameOffset + Machine.FRAME_SIZE,
+                           m.heapPointer);
+                m.framePointer = m.framePointer + frameOffset + Machine.FRAME_SIZE + 1;
+                log.info("New FP=" + m.framePointer);
+                break;
+            case Opcode.STL:
+                this.check(m, pc, m.stackPointer >= 2, "Stack underflow");
+                x1 = m.pop();
+                x2 = m.pop();
+                this.check(m, pc, (m.framePointer + x2) >= 0 && 
+                           (m.framePointer + x2) < memory.size(),
+                           "Memory access out of bounds");
+                log.info("Stack (value=" + x1 + ") -> mem[" + 
+                         (x2 + m.framePointer) + "]");
+                memory.set(m.framePointer + x2, x1);
+                break;
+            case Opcode.STM:
+                this.check(m, pc, m.stackPointer >= 2, "Stack underflow");
+                x1 = m.pop();
+                x2 = m.pop();
+                this.check(m, pc, x2 >= 0 && x2 < memory.size(), 
+                           "Memory access out of bounds");
+                log.info("Stack (value=" + x1 + ") -> mem[" + x2 + 
+                         "]");
+                memory.set(x2, x1);
+                break;
+            case Opcode.SUB:
+                // x = pop(); y = pop(); push(y - x);
+                this.check(m, pc, m.stackPointer >= 2, "Stack underflow");
+                x1 = m.pop();
+                x2 = m.pop();
+                log.info("Stack <- " + x2 + " - " + x1);
+                m.push(x2 - x1);
+                break;
+            case Opcode.UMN:
+                this.check(m, pc, m.stackPointer > 0, "Stack underflow");
+                x1 = m.pop();
+                log.info("Stack <- -" + x1);
+                m.push(-x1);
+                break;
+            case Opcode.WRI:
+                this.check(m, pc, m.stackPointer > 0, "Stack underflow");
+                x1 = m.pop();
+                output.write(x1);
+                break;
+            case Opcode.REA:
+                try {
+                    m.push(input.read());
+                } catch (NoSuchElementException e) {
+                    // No more input
+                    log.severe("Could not read input at line " + 
+                               m.program.getSourceLine(pc));
+                    halt = true;
+                }
+                break;
+            default:
+                // Unknown instruction
+                log.severe("Unknown instruction: " + 
+                           m.program.getInstruction(pc) + " at line " + 
+                           m.program.getSourceLine(pc));
+                halt = true;
+                break;
+            }
+            step++;
+        }
+        
+        if (step >= m.stepLimit) {
+            log.severe("Program execution halted due too many steps");
+            throw new ExecutionException();
+        }
+        
+    }
+
+    /**
+     * Helper method for checking conditions and printing messages if
+     * the test is not passed.
+     *
+     * @param m the machine (for logging)
+     * @param pc the pc of the related instruction (for logging)
+     * @param checkExpression the boolean value to check
+     * @param message the message to print if the check is not passed
+     */
+    private void check(final Machine m, final int pc,
+                       final boolean checkExpression, final String message) {
+        if(!checkExpression) {
+            log.severe(message);
+            this.logCurrentState(m, pc);
+            throw new ExecutionException();
+        }
+    }
+
+    /**
+     * Log the current state of the machine.
+     *
+     * @param m the machine
+     * @param pc the pc of the current instruction
+     */
+    private void logCurrentState(final Machine m, final int pc) {
+        if (log.isLoggable(Level.INFO)) {
+            log.info("Current instruction: " + 
+                     m.program.getInstruction(pc) + " (line " + 
+                     m.program.getSourceLine(pc) + ")");
+            log.info("PC: " + m.programCounter + "\tFP: " + m.framePointer + 
+                     "\tHP:" + m.heapPointer);
+            log.info("Stack contents:");
+            if(m.stackPointer > 0) {
+                int limit = Math.max(m.stackPointer - 10, -1);
+                for(int i = m.stackPointer - 1; i > limit; i--) {
+                    log.info(i + ": " + m.stack[i]);
+                }
+            } else {
+                log.info("Stack is empty!");
+            }
+            
+            log.info("Memory dump:");
+            StringBuilder stringBuilder = new StringBuilder();
+            stringBuilder.append("0x00000001\t");
+            final int words = Math.min(m.memory.size(), MAX_DUMP_SIZE);
+            int i = 0;
+            while (i < words) {
+                stringBuilder.append("0x");
+                stringBuilder.append(String.format("%08X", m.memory.get(i)));
+                stringBuilder.append(" ");
+                i++;
+                if(i < words && (i % 8) == 0) {
+                    log.info(stringBuilder.toString());
+                    stringBuilder = new StringBuilder();
+                    stringBuilder.append("0x");
+                    stringBuilder.append(String.format("%08X", i));
+                    stringBuilder.append("\t");
+                }
+            }
+            log.info(stringBuilder.toString());			
+        }
+    }
+}
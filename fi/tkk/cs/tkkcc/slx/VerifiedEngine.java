@@ -0,0 +1,388 @@
+package fi.tkk.cs.tkkcc.slx;
+
+import java.util.NoSuchElementException;
+
+/**
+ * Execution engine of verified programs.
+ *
+ * The program is checked once by the {@link Verifier} before it runs.
+ * A verified program never pops more values than there are on the
+ * stack and never needs more stack than its deepest function, so this
+ * engine is the {@link FastEngine} without the stack checks: the stack
+ * only grows at a call, to the room the callee may need. The checks
+ * of the values, such as the division by zero and the memory bounds,
+ * remain.
+ *
+ * A program that overwrites the return address in a frame can return
+ * where the verified stack depth does not hold. A return is checked
+ * against the depths of the {@link Verifier}: if no call returns to
+ * its pc, or the stack of the caller would not fit in the array with
+ * the depth at that pc, the program goes on from the RET in the
+ * {@link FastEngine}, which runs it as it would have from the start,
+ * and it is no longer treated as verified by this engine.
+ *
+ * Programs that do not verify are run by the {@link FastEngine}.
+ */
+final class VerifiedEngine extends Engine {
+    /** The engine of the programs that do not verify */
+    private final FastEngine checked = new FastEngine();
+    /** The program verified last */
+    private LinkedProgram verified;
+    /** Stack room of the verified program, -1 if it did not verify */
+    private int room;
+    /** Stack depth at each return pc of the verified program */
+    private int[] returns;
+
+    @Override
+    boolean isFusing() {
+        return true;
+    }
+
+    @Override
+    void execute(final Machine m, final IntInput input,
+                 final IntOutput output) {
+        this.run(m, input, output, m.stepLimit);
+    }
+
+    /**
+     * Verify a program, unless it is the program verified last.
+     *
+     * @param program the program
+     * @return the number of stack slots a function may use above the
+     *         values of its callers, -1 if the program did not verify
+     */
+    private int verify(final LinkedProgram program) {
+        if (program != this.verified) {
+            this.verified = program;
+            try {
+                final Verifier verifier = new Verifier(program.getCode(), 0);
+                this.room = verifier.getMaxDepth();
+                this.returns = verifier.getReturnDepths();
+            } catch (IllegalInstructionException e) {
+                log.fine("Program not verified: " + e.getMessage());
+                this.room = -1;
+                this.returns = null;
+            }
+        }
+        return this.room;
+    }
+
+    /**
+     * Grow the operand stack to hold at least a number of values.
+     *
+     * @param m the machine
+     * @param size the number of values
+     * @return the new stack array
+     */
+    private static int[] grow(final Machine m, final int size) {
+        int[] stack = m.stack;
+        while (stack.length < size) {
+            stack = m.growStack();
+        }
+        return stack;
+    }
+
+    @Override
+    boolean run(final Machine m, final IntInput input,
+                final IntOutput output, final int steps) {
+        final int room = this.verify(m.program);
+        if (room < 0) {
+            return this.checked.run(m, input, output, steps);
+        }
+        final int[] code = m.program.getCode();
+        final int[] returns = this.returns;
+        final Memory memory = m.memory;
+        int[] stack = m.stack;
+        int sp = m.stackPointer;
+        int pc = m.programCounter;
+        int fp = m.framePointer;
+        int hp = m.heapPointer;
+        int step = m.steps;
+        // The slice ends at the step limit at the latest
+        final int end = steps < m.stepLimit - step ? step + steps
+            : m.stepLimit;
+        boolean halt = false;
+        // True if a return did not match a call
+        boolean corrupted = false;
+        // Start of the current instruction, for diagnostics
+        int start = pc;
+        int x1;
+        int x2;
+        if (sp + room > stack.length) {
+            stack = VerifiedEngine.grow(m, sp + room);
+        }
+
+        try {
+            loop:
+            while (!halt && step < end) {
+                start = pc;
+                switch (code[pc++]) {
+                case Opcode.ADD:
+                    x1 = stack[--sp];
+                    stack[sp - 1] = x1 + stack[sp - 1];
+                    break;
+                case Opcode.ALC:
+                    // Allocate memory: take area size from stack, add one
+                    // for length field. Move heap pointer and store
+                    // length field. Push the pointer to stack.
+                    x1 = stack[sp - 1];
+                    if (m.heap != null) {
+                        stack[sp - 1] = m.heap.allocate(x1, stack, sp - 1);
+                        break;
+                    }
+                    hp = hp - (x1 + 1) - 1;
+                    if (hp < memory.getHeapBase()) {
+                        throw Engine.fail("Heap out of memory bounds");
+                    }
+                    memory.set(hp, x1);
+                    stack[sp - 1] = hp;
+                    break;
+                case Opcode.DIV:
+                    // x = pop(); y = pop(); push(y / x);
+                    x1 = stack[--sp];
+                    if (x1 == 0) {
+                        throw Engine.fail("Division by zero");
+                    }
+                    stack[sp - 1] = stack[sp - 1] / x1;
+                    break;
+                case Opcode.ENT:
+                    stack[sp++] = code[pc++];
+                    break;
+                case Opcode.HLT:
+                    halt = true;
+                    break;
+                case Opcode.JMP:
+                    pc = code[pc];
+                    break;
+                case Opcode.JZE:
+                    pc = stack[--sp] == 0 ? code[pc] : pc + 1;
+                    break;
+                case Opcode.LDL:
+                    stack[sp - 1] = memory.get(fp + stack[sp - 1]);
+                    break;
+                case Opcode.LDM:
+                    x1 = stack[sp - 1];
+                    stack[sp - 1] = memory.get(x1);
+                    break;
+                case Opcode.MUL:
+                    x1 = stack[--sp];
+                    stack[sp - 1] = x1 * stack[sp - 1];
+                    break;
+                case Opcode.NOT:
+                    stack[sp - 1] = stack[sp - 1] == 1 ? 0 : 1;
+                    break;
+                case Opcode.REQ:
+                    x1 = stack[--sp];
+                    stack[sp - 1] = stack[sp - 1] == x1 ? 1 : 0;
+                    break;
+                case Opcode.RET:
+                    pc = memory.get(fp);
+                    // The stack of the caller starts at the depth of the
+                    // return pc below the top, and has its room above
+                    if (pc < 0 || pc >= returns.length
+                        || Integer.compareUnsigned(sp - returns[pc],
+                                                   stack.length - room) > 0) {
+                        // The frame was overwritten
+                        pc = start;
+                        corrupted = true;
+                        break loop;
+                    }
+                    hp = memory.get(fp - Machine.FRAME_SIZE + 1);
+                    fp = memory.get(fp - Machine.FRAME_SIZE);
+                    break;
+                case Opcode.RGE:
+                    x1 = stack[--sp];
+                    stack[sp - 1] = stack[sp - 1] >= x1 ? 1 : 0;
+                    break;
+                case Opcode.RGT:
+                    x1 = stack[--sp];
+                    stack[sp - 1] = stack[sp - 1] > x1 ? 1 : 0;
+                    break;
+                case Opcode.RLE:
+                    x1 = stack[--sp];
+                    stack[sp - 1] = stack[sp - 1] <= x1 ? 1 : 0;
+                    break;
+                case Opcode.RLT:
+                    x1 = stack[--sp];
+                    stack[sp - 1] = stack[sp - 1] < x1 ? 1 : 0;
+                    break;
+                case Opcode.RNE:
+                    x1 = stack[--sp];
+                    stack[sp - 1] = stack[sp - 1] != x1 ? 1 : 0;
+                    break;
+                case Opcode.SBR:
+                    // Previous command has to be SFR, otherwise framepointer
+                    // points to old frame
+                    x2 = code[pc + 1];
+                    memory.set(fp, pc + 2);
+                    pc = code[pc];
+                    if (fp + x2 >= memory.getStackLimit()) {
+                        throw Engine.fail("Memory access out of bounds");
+                    }
+                    // Load parameters into frame in reverse order
+                    for (int i = x2; i > 0; i--) {
+                        memory.set(fp + i, stack[--sp]);
+                    }
+                    // Make room for the stack of the callee
+                    if (sp + room > stack.length) {
+                        m.stackPointer = sp;
+                        stack = VerifiedEngine.grow(m, sp + room);
+                    }
+                    break;
+                case Opcode.SFR:
+                    x1 = code[pc++];
+                    if (fp + x1 + Machine.FRAME_SIZE + 1
+                        >= memory.getStackLimit()) {
+                        throw Engine.fail("Frame pointer out of memory bounds");
+                    }
+                    memory.set(fp + x1 + Machine.FRAME_SIZE - 1, fp);
+                    memory.set(fp + x1 + Machine.FRAME_SIZE, hp);
+                    fp = fp + x1 + Machine.FRAME_SIZE + 1;
+                    break;
+                case Opcode.STL:
+                    x1 = stack[--sp];
+                    x2 = fp + stack[--sp];
+                    memory.set(x2, x1);
+                    break;
+                case Opcode.STM:
+                    x1 = stack[--sp];
+                    x2 = stack[--sp];
+                    memory.set(x2, x1);
+                    break;
+                case Opcode.SUB:
+                    // x = pop(); y = pop(); push(y - x);
+                    x1 = stack[--sp];
+                    stack[sp - 1] = stack[sp - 1] - x1;
+                    break;
+                case Opcode.UMN:
+                    stack[sp - 1] = -stack[sp - 1];
+                    break;
+                case Opcode.WRI:
+                    output.write(stack[--sp]);
+                    break;
+                case Opcode.REA:
+                    try {
+                        x1 = input.read();
+                    } catch (NoSuchElementException e) {
+                        // No more input
+                        log.severe("Could not read input at line " +
+                                   m.program.getSourceLine(start));
+                        halt = true;
+                        break;
+                    }
+                    stack[sp++] = x1;
+                    break;
+                case Opcode.LDLI:
+                    stack[sp++] = memory.get(fp + code[pc++]);
+                    step += 1;
+                    break;
+                case Opcode.STLI:
+                    x2 = fp + code[pc++];
+                    memory.set(x2, stack[--sp]);
+                    step += 1;
+                    break;
+                case Opcode.ADDI:
+                    stack[sp - 1] = stack[sp - 1] + code[pc++];
+                    step += 1;
+                    break;
+                case Opcode.INCL:
+                    x2 = fp + code[pc];
+                    memory.set(x2, memory.get(x2) + code[pc + 1]);
+                    pc += 2;
+                    step += 5;
+                    break;
+                case Opcode.ALDE:
+                    x1 = stack[--sp];
+                    x2 = stack[sp - 1] + x1 + 1;
+                    stack[sp - 1] = memory.get(x2);
+                    step += 3;
+                    break;
+                case Opcode.AIDX:
+                    x1 = stack[--sp];
+                    stack[sp - 1] = stack[sp - 1] + x1 + 1;
+                    step += 2;
+                    break;
+                case Opcode.REQI:
+                    stack[sp - 1] = stack[sp - 1] == code[pc++] ? 1 : 0;
+                    step += 1;
+                    break;
+                case Opcode.BLT:
+                    x1 = stack[--sp];
+                    pc = stack[--sp] < x1 ? code[pc] : pc + 1;
+                    step += 2;
+                    break;
+                case Opcode.BGE:
+                    x1 = stack[--sp];
+                    pc = stack[--sp] < x1 ? pc + 1 : code[pc];
+                    step += 1;
+                    break;
+                case Opcode.JLT:
+                    x1 = stack[--sp];
+                    pc = stack[--sp] < x1 ? code[pc] : pc + 1;
+                    step += 1;
+                    break;
+                case Opcode.JONE:
+                    pc = stack[--sp] == 1 ? code[pc] : pc + 1;
+                    step += 1;
+                    break;
+                case Opcode.CALL:
+                    // SFR n; SBR l a
+                    x1 = code[pc + 2];
+                    x2 = code[pc + 1];
+                    if (fp + x1 + Machine.FRAME_SIZE + 1
+                        >= memory.getStackLimit()) {
+                        throw Engine.fail("Frame pointer out of memory bounds");
+                    }
+                    memory.set(fp + x1 + Machine.FRAME_SIZE - 1, fp);
+                    memory.set(fp + x1 + Machine.FRAME_SIZE, hp);
+                    fp = fp + x1 + Machine.FRAME_SIZE + 1;
+                    memory.set(fp, pc + 3);
+                    pc = code[pc];
+                    if (fp + x2 >= memory.getStackLimit()) {
+                        throw Engine.fail("Memory access out of bounds");
+                    }
+                    sp -= x2;
+                    for (int i = 0; i < x2; i++) {
+                        memory.set(fp + 1 + i, stack[sp + i]);
+                    }
+                    if (sp + room > stack.length) {
+                        m.stackPointer = sp;
+                        stack = VerifiedEngine.grow(m, sp + room);
+                    }
+                    step += 1;
+                    break;
+                default:
+                    // Unknown instruction
+                    log.severe("Unknown instruction: " +
+                               m.program.getInstruction(start) + " at line " +
+                               m.program.getSourceLine(start));
+                    halt = true;
+                    break;
+                }
+                step++;
+            }
+        } finally {
+            m.stack = stack;
+            m.stackPointer = sp;
+            m.programCounter = pc;
+            m.framePointer = fp;
+            m.heapPointer = hp;
+            m.steps = step;
+        }
+
+        if (corrupted) {
+            log.fine("Return to pc " + memory.get(fp) + " at line "
+                     + m.program.getSourceLine(start)
+                     + " does not match a call, continuing unverified");
+            this.room = -1;
+            this.returns = null;
+            return this.checked.run(m, input, output, end - step);
+        }
+
+        if (step >= m.stepLimit) {
+            log.severe("Program execution halted due too many steps");
+            throw new ExecutionException();
+        }
+        return halt;
+    }
+}
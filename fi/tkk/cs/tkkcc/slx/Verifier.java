@@ -0,0 +1,409 @@
+package fi.tkk.cs.tkkcc.slx;
+
+import java.util.Arrays;
+import java.util.HashMap;
+import java.util.Map;
+
+/**
+ * Static verifier of linked code.
+ *
+ * The {@link ControlFlow} analysis proves the depth of the operand
+ * stack at every instruction. On top of it the verifier interprets
+ * each function abstractly, tracking the stack slots that hold a
+ * constant, and checks that
+ * <ul>
+ * <li>every SBR follows the SFR of its call and is not a jump target,
+ * unless the two are fused into a CALL, and all calls of a function
+ * pass the same number of arguments;</li>
+ * <li>the SFR instructions of a function agree on its frame size, and
+ * a function does not get more arguments than its frame holds;</li>
+ * <li>every frame access has a constant offset within the frame: from
+ * 1 to the frame size, or from 0 in the main program, whose frame has
+ * no return address.</li>
+ * </ul>
+ * A function without calls has no SFR, and its frame is only bounded
+ * by the memory.
+ *
+ * Code that passes can run without the stack checks of the
+ * {@link FastEngine}: the stack only needs room for the deepest
+ * function above the values of its callers, and no instruction pops
+ * more values than it finds. This holds as long as every RET returns
+ * to the call that made its frame. The frame is in the memory, where
+ * a store through a wild address can overwrite the return address, so
+ * the verifier also gives the stack depth at each return address, which
+ * an engine can check a return against.
+ */
+final class Verifier {
+    /** Return depth of a pc that no call returns to */
+    static final int NO_RETURN = Integer.MAX_VALUE;
+    /** Abstract value of a slot whose value is not known */
+    private static final long UNKNOWN = Long.MIN_VALUE;
+    /** Frame size of a function without SFR instructions */
+    private static final int UNBOUNDED = Integer.MAX_VALUE;
+
+    /** The analysis the verification builds on */
+    private final ControlFlow flow;
+    /** The verified code */
+    private final int[] code;
+    /** True for the pcs some jump may land on */
+    private final boolean[] targets;
+    /** Number of arguments, by entry pc of the called function */
+    private final Map<Integer, Integer> arguments =
+        new HashMap<Integer, Integer>();
+    /** Frame size, by entry pc of the function */
+    private final Map<Integer, Integer> frames =
+        new HashMap<Integer, Integer>();
+    /** Stack depth after a call, by its return pc, or NO_RETURN */
+    private final int[] returns;
+    /** Deepest stack of any function */
+    private int maxDepth = 0;
+
+    /**
+     * Verify linked code.
+     *
+     * @param code the linked code, fused or not
+     * @param entry the pc of the main program
+     * @throws IllegalInstructionException if the code can not be
+     *         verified
+     */
+    Verifier(final int[] code, final int entry)
+        throws IllegalInstructionException {
+        super();
+        this.flow = new ControlFlow(code, entry);
+        this.code = code;
+        this.targets = new boolean[code.length];
+        this.returns = new int[code.length];
+        Arrays.fill(this.returns, NO_RETURN);
+        for (int pc = 0; pc < code.length; pc = this.flow.next(pc)) {
+            if (Opcode.isBranch(code[pc]) && code[pc] != Opcode.SBR
+                && code[pc] != Opcode.CALL) {
+                this.targets[code[pc + 1]] = true;
+            }
+        }
+        for (ControlFlow.Function function : this.flow.getFunctions()) {
+            this.frames.put(function.getEntry(), this.frameSize(function));
+            this.maxDepth = Math.max(this.maxDepth, function.getMaxDepth());
+        }
+        for (ControlFlow.Function function : this.flow.getFunctions()) {
+            this.checkCalls(function);
+            this.checkFrameAccesses(function);
+        }
+    }
+
+    /**
+     * Get the deepest operand stack of any function, counted from the
+     * depth at its entry.
+     *
+     * @return the number of values
+     */
+    int getMaxDepth() {
+        return this.maxDepth;
+    }
+
+    /**
+     * Get the stack depth of the calling function after each call, by
+     * the return pc of the call. The depth includes the result of the
+     * call. The pcs that no call returns to have NO_RETURN.
+     *
+     * @return the depths, by pc
+     */
+    int[] getReturnDepths() {
+        return this.returns;
+    }
+
+    /**
+     * Find the frame size of a function from its SFR instructions.
+     *
+     * @param function the function
+     * @return the frame size, UNBOUNDED if the function has no SFR
+     */
+    private int frameSize(final ControlFlow.Function function) {
+        int size = UNBOUNDED;
+        for (int pc = 0; pc < this.code.length; pc = this.flow.next(pc)) {
+            final int frame;
+            if (function.getDepth(pc) == ControlFlow.UNREACHABLE) {
+                continue;
+            } else if (this.code[pc] == Opcode.SFR) {
+                frame = this.code[pc + 1];
+            } else if (this.code[pc] == Opcode.CALL) {
+                frame = this.code[pc + 3];
+            } else {
+                continue;
+            }
+            if (size != UNBOUNDED && size != frame) {
+                throw new IllegalInstructionException
+                    ("Inconsistent frame size at pc " + pc);
+            }
+            size = frame;
+            if (size < 0) {
+                throw new IllegalInstructionException
+                    ("Negative frame size at pc " + pc);
+            }
+        }
+        return size;
+    }
+
+    /**
+     * Check the calls of a function.
+     *
+     * @param function the calling function
+     */
+    private void checkCalls(final ControlFlow.Function function) {
+        for (int pc = 0; pc < this.code.length; pc = this.flow.next(pc)) {
+            if (function.getDepth(pc) == ControlFlow.UNREACHABLE
+                || (this.code[pc] != Opcode.SBR
+                    && this.code[pc] != Opcode.CALL)) {
+                continue;
+            }
+            // The SFR is the previous instruction, as it has one operand
+            if (this.code[pc] == Opcode.SBR
+                && (pc < 2 || this.code[pc - 2] != Opcode.SFR
+                    || function.getDepth(pc - 2) == ControlFlow.UNREACHABLE
+                    || this.targets[pc])) {
+                throw new IllegalInstructionException
+                    ("Call without a frame at pc " + pc);
+            }
+            final int target = this.code[pc + 1];
+            final int count = this.code[pc + 2];
+            final Integer previous = this.arguments.put(target, count);
+            if (previous != null && previous != count) {
+                throw new IllegalInstructionException
+                    ("Inconsistent argument count at pc " + pc);
+            }
+            if (count > this.frames.get(target)) {
+                throw new IllegalInstructionException
+                    ("More arguments than frame words at pc " + pc);
+            }
+            // The analysis continues after the call in the calling
+            // function, so the depth there is known
+            final int next = this.flow.next(pc);
+            if (this.returns[next] != NO_RETURN
+                && this.returns[next] != function.getDepth(next)) {
+                throw new IllegalInstructionException
+                    ("Inconsistent return depth at pc " + next);
+            }
+            this.returns[next] = function.getDepth(next);
+        }
+    }
+
+    /**
+     * Check that the frame accesses of a function stay in its frame.
+     *
+     * @param function the function
+     */
+    private void checkFrameAccesses(final ControlFlow.Function function) {
+        final int[] code = this.code;
+        final int low = function.isMain() ? 0 : 1;
+        final int high = this.frames.get(function.getEntry());
+        // The abstract stack before each instruction, null if not seen
+        final long[][] states = new long[code.length][];
+        // The instructions to visit, each on the list at most once
+        final int[] work = new int[code.length];
+        final boolean[] queued = new boolean[code.length];
+        int count = 0;
+        states[function.getEntry()] = new long[0];
+        work[count++] = function.getEntry();
+        queued[function.getEntry()] = true;
+        while (count > 0) {
+            final int pc = work[--count];
+            queued[pc] = false;
+            final long[] state = states[pc];
+            final int depth = state.length;
+            long[] after;
+            int offset = -1;
+            boolean frameAccess = false;
+            switch (code[pc]) {
+            case Opcode.ENT:
+                after = Arrays.copyOf(state, depth + 1);
+                after[depth] = code[pc + 1];
+                break;
+            case Opcode.LDL:
+                frameAccess = true;
+                offset = depth - 1;
+                after = state.clone();
+                after[depth - 1] = UNKNOWN;
+                break;
+            case Opcode.STL:
+                frameAccess = true;
+                offset = depth - 2;
+                after = Arrays.copyOf(state, depth - 2);
+                break;
+            case Opcode.LDLI:
+            case Opcode.STLI:
+            case Opcode.INCL:
+                this.checkOffset(code[pc + 1], low, high, pc);
+                after = this.transfer(pc, state);
+                break;
+            default:
+                after = this.transfer(pc, state);
+                break;
+            }
+            if (frameAccess) {
+                if (state[offset] == UNKNOWN) {
+                    throw new IllegalInstructionException
+                        ("Computed frame offset at pc " + pc);
+                }
+                this.checkOffset(state[offset], low, high, pc);
+            }
+            count = this.flow(states, work, queued, count, pc, after);
+        }
+    }
+
+    /**
+     * Compute the abstract stack after an instruction that pushes no
+     * known constant.
+     *
+     * @param pc the pc of the instruction
+     * @param state the abstract stack before the instruction
+     * @return the abstract stack after it
+     */
+    private long[] transfer(final int pc, final long[] state) {
+        int popped;
+        int pushed;
+        switch (this.code[pc]) {
+        case Opcode.ENT:
+        case Opcode.REA:
+        case Opcode.LDLI:
+            popped = 0;
+            pushed = 1;
+            break;
+        case Opcode.JMP:
+        case Opcode.SFR:
+        case Opcode.RET:
+        case Opcode.HLT:
+        case Opcode.INCL:
+            popped = 0;
+            pushed = 0;
+            break;
+        case Opcode.SBR:
+        case Opcode.CALL:
+            popped = this.code[pc + 2];
+            pushed = this.flow.getFunction(this.code[pc + 1]).getResults();
+            break;
+        case Opcode.LDM:
+        case Opcode.ALC:
+        case Opcode.NOT:
+        case Opcode.UMN:
+        case Opcode.ADDI:
+        case Opcode.REQI:
+            popped = 1;
+            pushed = 1;
+            break;
+        case Opcode.WRI:
+        case Opcode.JZE:
+        case Opcode.STLI:
+        case Opcode.JONE:
+            popped = 1;
+            pushed = 0;
+            break;
+        case Opcode.BLT:
+        case Opcode.BGE:
+        case Opcode.JLT:
+        case Opcode.STM:
+            popped = 2;
+            pushed = 0;
+            break;
+        default:
+            // The arithmetic and relational operators, ALDE and AIDX
+            popped = 2;
+            pushed = 1;
+            break;
+        }
+        final int kept = state.length - popped;
+        final long[] after = Arrays.copyOf(state, kept + pushed);
+        Arrays.fill(after, kept, after.length, UNKNOWN);
+        return after;
+    }
+
+    /**
+     * Check a constant frame offset.
+     *
+     * @param offset the offset
+     * @param low the lowest offset allowed
+     * @param high the highest offset allowed
+     * @param pc the pc of the access, for diagnostics
+     */
+    private void checkOffset(final long offset, final int low,
+                             final int high, final int pc) {
+        if (offset < low || offset > high) {
+            throw new IllegalInstructionException
+                ("Frame offset " + offset + " outside the frame at pc "
+                 + pc);
+        }
+    }
+
+    /**
+     * Pass the abstract stack after an instruction to its successors,
+     * merging it with the stack already recorded there.
+     *
+     * @param states the abstract stacks by pc
+     * @param work the work list
+     * @param queued true for the pcs on the work list
+     * @param count the length of the work list
+     * @param pc the instruction
+     * @param after the abstract stack after the instruction
+     * @return the new length of the work list
+     */
+    private int flow(final long[][] states, final int[] work,
+                     final boolean[] queued, final int count, final int pc,
+                     final long[] after) {
+        final int next = this.flow.next(pc);
+        switch (this.code[pc]) {
+        case Opcode.RET:
+        case Opcode.HLT:
+            return count;
+        case Opcode.JMP:
+            return this.merge(states, work, queued, count,
+                              this.code[pc + 1], after);
+        case Opcode.JZE:
+        case Opcode.JONE:
+        case Opcode.BLT:
+        case Opcode.BGE:
+        case Opcode.JLT:
+            return this.merge(states, work, queued,
+                              this.merge(states, work, queued, count,
+                                         this.code[pc + 1], after),
+                              next, after);
+        default:
+            return this.merge(states, work, queued, count, next, after);
+        }
+    }
+
+    /**
+     * Merge an abstract stack into the one recorded at a pc. A slot
+     * stays a constant only if it holds the same constant on every
+     * path.
+     *
+     * @param states the abstract stacks by pc
+     * @param work the work list
+     * @param queued true for the pcs on the work list
+     * @param count the length of the work list
+     * @param target the pc
+     * @param state the incoming abstract stack
+     * @return the new length of the work list
+     */
+    private int merge(final long[][] states, final int[] work,
+                      final boolean[] queued, final int count,
+                      final int target, final long[] state) {
+        final long[] old = states[target];
+        if (old == null) {
+            states[target] = state.clone();
+            queued[target] = true;
+            work[count] = target;
+            return count + 1;
+        }
+        boolean changed = false;
+        for (int i = 0; i < old.length; i++) {
+            if (old[i] != state[i] && old[i] != UNKNOWN) {
+                old[i] = UNKNOWN;
+                changed = true;
+            }
+        }
+        if (changed && !queued[target]) {
+            queued[target] = true;
+            work[count] = target;
+            return count + 1;
+        }
+        return count;
+    }
+}
@@ -0,0 +1,59 @@
+// Constant subexpressions, algebraic identities and the wrap-around
+// at 32 bits. An operand that prints is kept even where its value does
+// not matter. It should print 7, -2147483648 four times, 7, -7, 0, 0,
+// 7, 0, 3, 10, 42, -2147483646, 7, -7, -7, 2, 3, 8, 20, 5, 5 and 6.
+int id(int x) begin
+  print(x);
+  return x;
+end
+
+boolean t(boolean b) begin
+  return b;
+end
+
+main begin
+  int a;
+  int b;
+  int[] arr;
+  boolean c;
+  boolean u;
+  u = false;
+  a = 6 / 2 + 3 * 0 - 1 + 6 - 1;
+  print(a);
+  b = 2147483647 + 1;
+  print(b);
+  b = (0 - 2147483647 - 1) / (0 - 1);
+  print(b);
+  print(- - b);
+  print(b * 1 + 0 - 0);
+  print(1 * a + 0);
+  print(0 - a);
+  print(a - a);
+  print(a * 0);
+  print(id(a) * 0);
+  print(a + 1 + 2 + 3 - 10);
+  print(1 + a + 2);
+  print(a * 2 * 3);
+  print(a - 2147483647 - 1 - 5);
+  print(a / 1);
+  print(a / (0 - 1));
+  print(a * (0 - 1));
+  c = true && a < 3;
+  if (c) then print(1);
+  c = !!(a < 9);
+  if (c) then print(2);
+  if (true && true) then print(3);
+  if (false && id(7) < 8) then print(4);
+  if (!(1 < 2)) then print(5);
+  if (!!u) then print(6);
+  if (true && u) then print(7);
+  if (t(true) && true) then print(8);
+  if (a < a) then print(9);
+  arr = new int[2 + 3];
+  arr[1 + 1] = 4 * 5;
+  print(arr[2]);
+  print(arr.length);
+  print(-(-5));
+  print(7 / 2 - 7 / (0 - 2));
+  return 0;
+end
@@ -0,0 +1,89 @@
+// Code that can never run or whose result is never used: functions
+// main never calls, dead stores, constant and empty if statements and
+// the statements after a loop that never ends. A call that prints is
+// kept even where its value is not used, so the output is 21, 22, 13
+// and 13.
+int noisy(int x)
+begin
+  print(x);
+  return x;
+end
+
+int helper(int x)
+begin
+  return x * 2;
+end
+
+int unused(int x)
+begin
+  return helper(x) + 1;
+end
+
+int used(int x)
+begin
+  int y;
+  int z;
+  y = x + 1;
+  z = 5;
+  y = x + 2;
+  if (false) then print(unused(1));
+  if (true) then
+  begin
+    z = 7;
+  end
+  do
+  begin
+    z = z + 1;
+    y = 3;
+  end
+  while(z < 10);
+  return y + z;
+end
+
+int loop(int n)
+begin
+  int k;
+  k = n;
+  do
+  begin
+    k = k + 1;
+    print(k);
+  end
+  while(true);
+  print(k);
+  return k;
+end
+
+main
+begin
+  int a;
+  int b;
+  int[] arr;
+  boolean f;
+  arr = new int[3];
+  b = noisy(21);
+  b = 0;
+  if (noisy(22) < 0) then
+  begin
+  end
+  a = 1;
+  a = used(a);
+  b = a;
+  arr[0] = a;
+  f = a < 3;
+  if (f) then
+  begin
+  end
+  if (used(2) < 0) then
+  begin
+  end
+  do
+  begin
+  end
+  while(false);
+  if (arr.length < 0) then print(loop(1));
+  print(a);
+  print(arr[0]);
+
+  return 0;
+end
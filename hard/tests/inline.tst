@@ -0,0 +1,58 @@
+// Calls that can be inlined: nested, in arguments, with array and
+// local parameters, in a loop condition with a side effect, next to a
+// recursive function that is not. It should print 15, 10, 30, 81,
+// 1, 2, 3, 4, 5, 720 and 14.
+int add(int a, int b)
+begin
+  return a + b;
+end
+int get(int[] arr, int i)
+begin
+  return arr[i];
+end
+int sq(int x)
+begin
+  int t;
+  t = x * x;
+  return t;
+end
+int sumsq(int n)
+begin
+  int i;
+  int s;
+  i = 0;
+  s = 0;
+  do begin
+    i = i + 1;
+    s = add(s, sq(i));
+  end while (i < n);
+  return s;
+end
+boolean noisy(int x)
+begin
+  print(x);
+  return x < 5;
+end
+int fact(int n)
+begin
+  int r;
+  r = 1;
+  if (1 < n) then r = n * fact(n - 1);
+  return r;
+end
+main
+begin
+  int[] v;
+  int k;
+  v = new int[3];
+  v[0] = 4; v[1] = 5; v[2] = 6;
+  print(add(add(1, 2), add(3, add(4, 5))));
+  print(add(get(v, 0), get(v, 2)));
+  print(sumsq(4));
+  print(sq(sq(3)));
+  k = 0;
+  do k = add(k, 1); while (noisy(k) && k < 7);
+  print(fact(6));
+  print(add(sq(2), sumsq(3)) - sq(add(1, 1)));
+  return add(k, 0);
+end
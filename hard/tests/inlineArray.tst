@@ -0,0 +1,25 @@
+// The call of f is small enough to inline, but each call creates an
+// array, which only the return of the call frees. Without the returns
+// the loop runs out of heap; it should print 20000.
+int f(int n) begin
+  int[] a;
+  a = new int [n];
+  a[0] = n;
+  return a[0];
+end
+
+main begin
+  int i;
+  int sum;
+  i = 0;
+  sum = 0;
+  do
+  begin
+    sum = sum + f(10);
+    i = i + 1;
+  end
+  while(i < 2000);
+  print(sum);
+
+  return 0;
+end
@@ -0,0 +1,12 @@
+// Prints the integers read from readLines.in, one per line, until the
+// input ends. The lines with non-ASCII bytes or garbage are skipped, so
+// the output is 7 and 8.
+main begin
+  do
+  begin
+    print(read());
+  end
+  while(true);
+
+  return 0;
+end
@@ -0,0 +1,60 @@
+// The right operand of && and || is evaluated only when the left one
+// does not decide the value. t and f print their argument, so the
+// output shows which operands ran: 1, 3, 101, 5, 6, 102, 7, 8, 9, 103,
+// 10, 11, 12, 13, 105, 15, 16, 106, 20, 3, 107, 21, 109, 41, 52 and 2.
+boolean t(int x)
+begin
+  print(x);
+  return true;
+end
+
+boolean f(int x)
+begin
+  print(x);
+  return false;
+end
+
+main
+begin
+  boolean b;
+  int i;
+  int j;
+  if (f(1) && t(2)) then print(100);
+  if (t(3) || f(4)) then print(101);
+  if (!(f(5) || f(6))) then print(102);
+  if (t(7) && !t(8) || t(9)) then print(103);
+  b = f(10) || t(11) && f(12);
+  if (b) then print(104);
+  b = t(13) || f(14);
+  if (b) then print(105);
+  b = t(15) && t(16);
+  if (b) then print(106);
+  i = 0;
+  do
+  begin
+    i = i + 1;
+  end
+  while(i < 3 || f(20) && i < 5);
+  print(i);
+  b = false || true;
+  if (b) then print(107);
+  b = f(21) && false;
+  if (b) then print(108);
+  b = true || f(22);
+  if (b) then print(109);
+  j = 0;
+  do
+  begin
+    j = j + 1;
+  end
+  while(j < 2 && t(40 + j));
+  j = 0;
+  do
+  begin
+    j = j + 1;
+  end
+  while(j < 2 || f(50 + j));
+  print(j);
+
+  return 0;
+end